@@ -0,0 +1,83 @@
+package nuber.students.bench;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.Future;
+
+import nuber.students.BookingLatencies;
+import nuber.students.BookingResult;
+import nuber.students.Driver;
+import nuber.students.DriverMatching;
+import nuber.students.ExecutionMode;
+import nuber.students.LatencyHistogram;
+import nuber.students.NuberDispatch;
+import nuber.students.Passenger;
+import nuber.students.Person;
+
+/**
+ * Throughput of batched driver matching against matching each booking as it asks: the same
+ * drivers and passengers, from the same seed, are booked through a dispatch for each matching
+ * policy in turn, and the bookings per second and wait for a driver are printed side by side.
+ *
+ * This is a plain program rather than a JMH benchmark, each run is one whole simulation. Run it with
+ *
+ *     java -Dnuber.batch.millis=20 -cp bench/target/benchmarks.jar nuber.students.bench.BatchMatchingBenchmark [drivers] [passengers] [maxSleep] [seed]
+ *
+ * The execution mode comes from -Dnuber.mode as usual, and the tick from -Dnuber.batch.millis.
+ *
+ * @author james
+ *
+ */
+public class BatchMatchingBenchmark {
+
+	private static final DriverMatching[] MATCHINGS = { DriverMatching.ANY, DriverMatching.BATCHED };
+
+	public static void main(String[] args) throws Exception
+	{
+		int drivers = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+		int passengers = args.length > 1 ? Integer.parseInt(args[1]) : 20000;
+		int maxSleep = args.length > 2 ? Integer.parseInt(args[2]) : 0;
+		long seed = args.length > 3 ? Long.parseLong(args[3]) : 42;
+
+		List<String> lines = new ArrayList<String>();
+		for (DriverMatching matching : MATCHINGS) {
+			HashMap<String, Integer> regions = new HashMap<String, Integer>();
+			regions.put("North", 500);
+			regions.put("South", 500);
+			NuberDispatch dispatch = new NuberDispatch(regions, false, ExecutionMode.fromSystemProperty(), matching);
+			SplittableRandom random = new SplittableRandom(seed);
+			for (int i = 0; i < drivers; i++) {
+				dispatch.addDriver(new Driver("D-" + Person.getRandomName(), maxSleep, random));
+			}
+
+			long start = System.nanoTime();
+			List<Future<BookingResult>> results = new ArrayList<Future<BookingResult>>(passengers);
+			for (int i = 0; i < passengers; i++) {
+				results.add(dispatch.bookPassenger(new Passenger("P-" + Person.getRandomName(), maxSleep, random),
+						random.nextBoolean() ? "North" : "South"));
+			}
+			dispatch.shutdown();
+			long completed = 0;
+			for (Future<BookingResult> result : results) {
+				if (result != null && result.get() != null) {
+					completed++;
+				}
+			}
+			double seconds = (System.nanoTime() - start) / 1e9;
+
+			LatencyHistogram driverWait = dispatch.getLatencies().get(BookingLatencies.Phase.DRIVER_WAIT);
+			lines.add(String.format("%-8s %d of %d completed in %.1fs: %.0f bookings/s, driver wait mean %.1fms p99 %.1fms",
+					matching, completed, passengers, seconds, completed / seconds, driverWait.getMean() / 1e6,
+					driverWait.getValueAtPercentile(99) / 1e6));
+			if (dispatch.getBatchMatchingReport() != null) {
+				lines.add("         " + dispatch.getBatchMatchingReport());
+			}
+		}
+		System.out.println(drivers + " drivers, " + passengers + " passengers, maxSleep " + maxSleep + ", seed " + seed + ":");
+		for (String line : lines) {
+			System.out.println(line);
+		}
+	}
+}
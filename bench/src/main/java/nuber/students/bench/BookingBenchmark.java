@@ -0,0 +1,55 @@
+package nuber.students.bench;
+
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import nuber.students.Booking;
+import nuber.students.BookingResult;
+import nuber.students.Driver;
+import nuber.students.NuberDispatch;
+import nuber.students.Passenger;
+import nuber.students.Person;
+
+/**
+ * End to end cost of one booking on the calling thread: creating the Booking, then call()
+ * getting a driver, a zero length pickup and trip, and handing the driver back.
+ * 
+ * @author james
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BookingBenchmark {
+
+	private NuberDispatch dispatch;
+	private Passenger passenger;
+	
+	@Setup
+	public void setup()
+	{
+		dispatch = new NuberDispatch(new HashMap<String, Integer>(), false);
+		dispatch.addDriver(new Driver("D-" + Person.getRandomName(), 0));
+		passenger = new Passenger("P-" + Person.getRandomName(), 0);
+	}
+	
+	@Benchmark
+	public BookingResult call() throws InterruptedException
+	{
+		return new Booking(dispatch, passenger).call();
+	}
+}
@@ -0,0 +1,195 @@
+package nuber.students.bench;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Iterator;
+
+import nuber.students.BookingPriority;
+import nuber.students.BookingProtocol;
+import nuber.students.BookingServer;
+import nuber.students.Driver;
+import nuber.students.ExecutionMode;
+import nuber.students.LatencyHistogram;
+import nuber.students.NuberDispatch;
+import nuber.students.Person;
+
+/**
+ * Load test for BookingServer over loopback: opens thousands of connections, keeps a fixed
+ * number of binary bookings in flight on each, and reports the bookings per second the server
+ * sustained and the p99 latency from each request being written to its reply being read.
+ *
+ * This is a plain program rather than a JMH benchmark, one client thread drives every
+ * connection through a selector the same way the server does. Run it with
+ *
+ *     java -cp bench/target/benchmarks.jar nuber.students.bench.BookingServerBenchmark [server] [connections] [pipeline] [seconds]
+ *
+ * where server is host:port of a running BookingServer, or "embedded" (the default) to start
+ * one in this JVM with 1000 zero-length-trip drivers. Embedded, each connection uses two file
+ * descriptors in the one process, so 10k connections needs ulimit -n above 20k; otherwise
+ * start the server on its own with "java -cp bench/target/benchmarks.jar nuber.students.BookingServer".
+ *
+ * @author james
+ *
+ */
+public class BookingServerBenchmark {
+
+	private static final int WARMUP_SECONDS = 2;
+	private static final byte[][] REGIONS = { "North".getBytes(StandardCharsets.UTF_8), "South".getBytes(StandardCharsets.UTF_8) };
+
+	/**
+	 * One client connection, keeping its pipeline of bookings full
+	 */
+	private static class Client {
+		final int index;
+		final SocketChannel channel;
+		final byte[] region;
+		final byte[] passenger;
+		final long[] sentAt;
+		final ByteBuffer in = ByteBuffer.allocate(4 * 1024);
+		final ByteBuffer out;
+		SelectionKey key;
+
+		Client(int index, SocketChannel channel, int pipeline)
+		{
+			this.index = index;
+			this.channel = channel;
+			this.region = REGIONS[index % REGIONS.length];
+			this.passenger = ("P-" + index).getBytes(StandardCharsets.UTF_8);
+			this.sentAt = new long[pipeline];
+			this.out = ByteBuffer.allocate(pipeline * 64);
+		}
+
+		//request ids are the connection and the pipeline slot, so a reply finds its send time
+		void book(int slot, long now)
+		{
+			BookingProtocol.putBook(out, (long) index * sentAt.length + slot, region, passenger, BookingPriority.STANDARD, -1);
+			sentAt[slot] = now;
+		}
+
+		void flush() throws IOException
+		{
+			out.flip();
+			channel.write(out);
+			out.compact();
+			key.interestOps(out.position() > 0 ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+		}
+	}
+
+	public static void main(String[] args) throws Exception
+	{
+		String target = args.length > 0 ? args[0] : "embedded";
+		int connections = args.length > 1 ? Integer.parseInt(args[1]) : 10_000;
+		int pipeline = args.length > 2 ? Integer.parseInt(args[2]) : 1;
+		int seconds = args.length > 3 ? Integer.parseInt(args[3]) : 10;
+
+		InetSocketAddress address;
+		NuberDispatch dispatch = null;
+		BookingServer server = null;
+		if (target.equals("embedded")) {
+			HashMap<String, Integer> regions = new HashMap<String, Integer>();
+			regions.put("North", 256);
+			regions.put("South", 256);
+			dispatch = new NuberDispatch(regions, false, ExecutionMode.fromSystemProperty());
+			for (int i = 0; i < 1000; i++) {
+				dispatch.addDriver(new Driver("D-" + Person.getRandomName(), 0));
+			}
+			server = new BookingServer(dispatch, 0, Math.max(1 << 16, connections * pipeline), 0);
+			address = server.getAddress();
+		} else {
+			int colon = target.lastIndexOf(':');
+			address = new InetSocketAddress(target.substring(0, colon), Integer.parseInt(target.substring(colon + 1)));
+		}
+
+		Selector selector = Selector.open();
+		long completed = 0, rejected = 0, failed = 0, connected = 0;
+		for (int i = 0; i < connections; i++) {
+			SocketChannel channel = SocketChannel.open();
+			channel.configureBlocking(false);
+			channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+			Client client = new Client(i, channel, pipeline);
+			client.key = channel.register(selector, channel.connect(address) ? SelectionKey.OP_READ : SelectionKey.OP_CONNECT, client);
+			if (channel.isConnected()) {
+				connected++;
+				start(client);
+			}
+		}
+
+		BookingProtocol.Reply reply = new BookingProtocol.Reply();
+		LatencyHistogram latency = new LatencyHistogram();
+		long begin = System.nanoTime();
+		long measureFrom = begin + WARMUP_SECONDS * 1_000_000_000L;
+		long measureTo = measureFrom + seconds * 1_000_000_000L;
+
+		while (System.nanoTime() - measureTo < 0) {
+			selector.select(100);
+			Iterator<SelectionKey> ready = selector.selectedKeys().iterator();
+			while (ready.hasNext()) {
+				SelectionKey key = ready.next();
+				ready.remove();
+				Client client = (Client) key.attachment();
+				if (key.isConnectable()) {
+					client.channel.finishConnect();
+					connected++;
+					start(client);
+					continue;
+				}
+				if (key.isWritable()) {
+					client.flush();
+				}
+				if (!key.isReadable()) {
+					continue;
+				}
+				if (client.channel.read(client.in) < 0) {
+					throw new IOException("Server closed connection " + client.index);
+				}
+				client.in.flip();
+				long now = System.nanoTime();
+				while (BookingProtocol.readReply(client.in, reply)) {
+					int slot = (int) (reply.requestId % pipeline);
+					long sent = client.sentAt[slot];
+					if (sent - measureFrom >= 0 && now - measureTo < 0) {
+						latency.record(now - sent);
+						if (reply.type == BookingProtocol.RESULT) {
+							completed++;
+						} else if (reply.type == BookingProtocol.REJECTED) {
+							rejected++;
+						} else {
+							failed++;
+						}
+					}
+					client.book(slot, now);
+				}
+				client.in.compact();
+				client.flush();
+			}
+		}
+
+		System.out.println(String.format("%d connections (%d connected), %d in flight each, %ds: %.0f bookings/s, p99 %.1fms, rejected=%d, failed=%d",
+				connections, connected, pipeline, seconds, completed / (double) seconds, latency.getValueAtPercentile(99) / 1e6, rejected, failed));
+		System.out.println("Request to reply: " + latency);
+		for (SelectionKey key : selector.keys()) {
+			key.channel().close();
+		}
+		selector.close();
+		if (server != null) {
+			server.close();
+			dispatch.shutdown();
+		}
+	}
+
+	private static void start(Client client) throws IOException
+	{
+		long now = System.nanoTime();
+		for (int slot = 0; slot < client.sentAt.length; slot++) {
+			client.book(slot, now);
+		}
+		client.flush();
+	}
+}
@@ -0,0 +1,86 @@
+package nuber.students.bench;
+
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import nuber.students.Driver;
+import nuber.students.NuberDispatch;
+import nuber.students.Person;
+
+/**
+ * Cost of taking a driver from dispatch and handing it straight back, as every booking does,
+ * with 1 to 64 threads sharing the one dispatch.
+ * 
+ * There are always more idle drivers than threads, so getDriver() never has to wait.
+ * 
+ * @author james
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DispatchBenchmark {
+
+	private static final int DRIVERS = 128;
+	
+	private NuberDispatch dispatch;
+	
+	@Setup
+	public void setup()
+	{
+		dispatch = new NuberDispatch(new HashMap<String, Integer>(), false);
+		for (int i = 0; i < DRIVERS; i++) {
+			dispatch.addDriver(new Driver("D-" + Person.getRandomName(), 0));
+		}
+	}
+	
+	private Driver getAndAddDriver()
+	{
+		Driver driver = dispatch.getDriver();
+		dispatch.addDriver(driver);
+		return driver;
+	}
+	
+	@Benchmark
+	@Threads(1)
+	public Driver getAndAddDriver01()
+	{
+		return getAndAddDriver();
+	}
+	
+	@Benchmark
+	@Threads(4)
+	public Driver getAndAddDriver04()
+	{
+		return getAndAddDriver();
+	}
+	
+	@Benchmark
+	@Threads(16)
+	public Driver getAndAddDriver16()
+	{
+		return getAndAddDriver();
+	}
+	
+	@Benchmark
+	@Threads(64)
+	public Driver getAndAddDriver64()
+	{
+		return getAndAddDriver();
+	}
+}
@@ -0,0 +1,99 @@
+package nuber.students.bench;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import nuber.students.Driver;
+import nuber.students.DriverPool;
+import nuber.students.Person;
+
+/**
+ * Contention on the idle driver pool: each thread takes a driver and adds it straight back,
+ * which is the pattern every booking puts on dispatch. The striped DriverPool is compared 
+ * against the single ArrayBlockingQueue(999) that dispatch used before, with 1 to 64 threads.
+ * 
+ * @author james
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DriverPoolBenchmark {
+
+	private static final int DRIVERS = 512;
+	
+	@Param({"queue", "striped"})
+	public String pool;
+	
+	private BlockingQueue<Driver> queue;
+	private DriverPool striped;
+	
+	@Setup
+	public void setup()
+	{
+		queue = new ArrayBlockingQueue<Driver>(999);
+		striped = new DriverPool();
+		for (int i = 0; i < DRIVERS; i++) {
+			Driver driver = new Driver("D-" + Person.getRandomName(), 0);
+			queue.add(driver);
+			striped.offer(driver);
+		}
+	}
+	
+	private Driver takeAndOffer() throws InterruptedException
+	{
+		if (pool.equals("queue")) {
+			Driver driver = queue.take();
+			queue.put(driver);
+			return driver;
+		}
+		Driver driver = striped.take();
+		striped.offer(driver);
+		return driver;
+	}
+	
+	@Benchmark
+	@Threads(1)
+	public Driver takeAndOffer01() throws InterruptedException
+	{
+		return takeAndOffer();
+	}
+	
+	@Benchmark
+	@Threads(4)
+	public Driver takeAndOffer04() throws InterruptedException
+	{
+		return takeAndOffer();
+	}
+	
+	@Benchmark
+	@Threads(16)
+	public Driver takeAndOffer16() throws InterruptedException
+	{
+		return takeAndOffer();
+	}
+	
+	@Benchmark
+	@Threads(64)
+	public Driver takeAndOffer64() throws InterruptedException
+	{
+		return takeAndOffer();
+	}
+}
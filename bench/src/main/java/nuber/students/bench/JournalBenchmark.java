@@ -0,0 +1,76 @@
+package nuber.students.bench;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import nuber.students.BookingJournal;
+import nuber.students.BookingPriority;
+import nuber.students.Driver;
+import nuber.students.Passenger;
+import nuber.students.Person;
+
+/**
+ * Cost of journaling one booking state change, from one thread and from four.
+ * 
+ * Each op appends a BOOKED record and an ASSIGNED record for it, so the score is the cost of
+ * two state changes. The journal's group commit runs at its default 5ms alongside.
+ * 
+ * @author james
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JournalBenchmark {
+
+	private BookingJournal journal;
+	private Passenger passenger;
+	private Driver driver;
+	
+	@Setup
+	public void setup() throws IOException
+	{
+		journal = new BookingJournal(Files.createTempDirectory("nuber-journal"), 0, 64 << 20, 5);
+		passenger = new Passenger("P-" + Person.getRandomName(), 0);
+		driver = new Driver("D-" + Person.getRandomName(), 0);
+	}
+	
+	@TearDown
+	public void tearDown()
+	{
+		journal.close(true);
+	}
+	
+	@Benchmark
+	@Threads(1)
+	public void bookAndAssign01()
+	{
+		long key = journal.booked(passenger, "North", BookingPriority.STANDARD);
+		journal.booking(BookingJournal.Type.ASSIGNED, key, driver);
+	}
+	
+	@Benchmark
+	@Threads(4)
+	public void bookAndAssign04()
+	{
+		long key = journal.booked(passenger, "North", BookingPriority.STANDARD);
+		journal.booking(BookingJournal.Type.ASSIGNED, key, driver);
+	}
+}
@@ -0,0 +1,88 @@
+package nuber.students.bench;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import nuber.students.Booking;
+import nuber.students.BookingEvent;
+import nuber.students.NuberDispatch;
+import nuber.students.Passenger;
+import nuber.students.Person;
+
+/**
+ * Cost of NuberDispatch.logEvent() with logging off and on, from one thread and from four,
+ * printing straight to System.out or going through the async EventLog.
+ * 
+ * System.out is swapped for a stream that discards its output, so the score is building the
+ * message and going through the PrintStream, not the terminal. The async log writes to the
+ * same stream from its own thread.
+ * 
+ * @author james
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LogEventBenchmark {
+
+	@Param({"false", "true"})
+	public boolean logEvents;
+	
+	@Param({"print", "async"})
+	public String log;
+	
+	private NuberDispatch dispatch;
+	private Booking booking;
+	private PrintStream originalOut;
+	
+	@Setup
+	public void setup()
+	{
+		originalOut = System.out;
+		System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+		System.setProperty("nuber.log", log);
+		System.setProperty("nuber.log.file", "-");
+		dispatch = new NuberDispatch(new HashMap<String, Integer>(), logEvents);
+		booking = new Booking(dispatch, new Passenger("P-" + Person.getRandomName(), 0));
+	}
+	
+	@TearDown
+	public void tearDown()
+	{
+		dispatch.closeEventLog();
+		System.setOut(originalOut);
+	}
+	
+	@Benchmark
+	@Threads(1)
+	public void logEvent01()
+	{
+		dispatch.logEvent(booking, BookingEvent.PICKED_UP);
+	}
+	
+	@Benchmark
+	@Threads(4)
+	public void logEvent04()
+	{
+		dispatch.logEvent(booking, BookingEvent.PICKED_UP);
+	}
+}
@@ -0,0 +1,72 @@
+package nuber.students.bench;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import nuber.students.Driver;
+import nuber.students.DriverMatching;
+import nuber.students.IdleDriverPool;
+import nuber.students.Passenger;
+import nuber.students.Person;
+
+/**
+ * Cost of matching a passenger at a random location to an idle driver and returning the
+ * driver to the pool, for each matching policy, with thousands of idle drivers.
+ * 
+ * @author james
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MatchingBenchmark {
+
+	@Param({"ANY", "NEAREST"})
+	public DriverMatching matching;
+	
+	@Param({"1000", "10000"})
+	public int idleDrivers;
+	
+	private IdleDriverPool pool;
+	private Passenger[] passengers;
+	private int next = 0;
+	
+	@Setup
+	public void setup()
+	{
+		pool = matching.newPool();
+		for (int i = 0; i < idleDrivers; i++) {
+			pool.offer(new Driver("D-" + Person.getRandomName(), 0));
+		}
+		passengers = new Passenger[1024];
+		for (int i = 0; i < passengers.length; i++) {
+			passengers[i] = new Passenger("P-" + Person.getRandomName(), 0);
+		}
+	}
+	
+	@Benchmark
+	public Driver matchAndReturn()
+	{
+		Passenger passenger = passengers[next++ & (passengers.length - 1)];
+		Driver driver = pool.poll(passenger);
+		//drop the driver back somewhere random so the grid doesn't drain around hot passengers
+		driver.moveTo(ThreadLocalRandom.current().nextDouble(Person.CITY_SIZE), ThreadLocalRandom.current().nextDouble(Person.CITY_SIZE));
+		pool.offer(driver);
+		return driver;
+	}
+}
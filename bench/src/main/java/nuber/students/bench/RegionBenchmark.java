@@ -0,0 +1,90 @@
+package nuber.students.bench;
+
+import java.util.HashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import nuber.students.BookingResult;
+import nuber.students.Driver;
+import nuber.students.ExecutionMode;
+import nuber.students.NuberDispatch;
+import nuber.students.NuberRegion;
+import nuber.students.Passenger;
+import nuber.students.Person;
+
+/**
+ * Booking throughput of a single region, for each execution mode.
+ * 
+ * Each invocation books a batch of passengers with zero length trips into the region and then
+ * waits for all of them, so the score is bookings submitted and completed per millisecond.
+ * 
+ * @author james
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RegionBenchmark {
+
+	private static final int BATCH = 256;
+	
+	@Param({"FIXED", "VIRTUAL", "ASYNC"})
+	public ExecutionMode executionMode;
+	
+	@Param({"16"})
+	public int maxSimultaneousJobs;
+	
+	private NuberDispatch dispatch;
+	private NuberRegion region;
+	private Passenger passenger;
+	@SuppressWarnings("unchecked")
+	private final Future<BookingResult>[] bookings = new Future[BATCH];
+	
+	@Setup
+	public void setup()
+	{
+		dispatch = new NuberDispatch(new HashMap<String, Integer>(), false, executionMode);
+		region = new NuberRegion(dispatch, "Bench", maxSimultaneousJobs, executionMode);
+		for (int i = 0; i < maxSimultaneousJobs; i++) {
+			dispatch.addDriver(new Driver("D-" + Person.getRandomName(), 0));
+		}
+		passenger = new Passenger("P-" + Person.getRandomName(), 0);
+	}
+	
+	@TearDown
+	public void tearDown()
+	{
+		region.shutdown();
+	}
+	
+	@Benchmark
+	@OperationsPerInvocation(BATCH)
+	public long bookPassenger() throws Exception
+	{
+		for (int i = 0; i < BATCH; i++) {
+			bookings[i] = region.bookPassenger(passenger);
+		}
+		long jobIds = 0;
+		for (int i = 0; i < BATCH; i++) {
+			jobIds += bookings[i].get().jobID;
+		}
+		return jobIds;
+	}
+}
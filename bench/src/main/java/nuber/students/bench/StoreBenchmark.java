@@ -0,0 +1,92 @@
+package nuber.students.bench;
+
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import nuber.students.BookingPriority;
+import nuber.students.Driver;
+import nuber.students.ExecutionMode;
+import nuber.students.NuberDispatch;
+import nuber.students.Passenger;
+import nuber.students.Person;
+
+/**
+ * Booking throughput of a single region through NuberDispatch.submit() and its BookingStore,
+ * the counterpart of RegionBenchmark without a Future or BookingResult per booking.
+ * 
+ * Run with -prof gc to compare gc.alloc.rate.norm, the bytes allocated per booking, with
+ * RegionBenchmark's.
+ * 
+ * @author james
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StoreBenchmark {
+
+	private static final int BATCH = 256;
+	
+	@Param({"FIXED", "ASYNC"})
+	public ExecutionMode executionMode;
+	
+	@Param({"16"})
+	public int maxSimultaneousJobs;
+	
+	private NuberDispatch dispatch;
+	private int region;
+	private Passenger passenger;
+	private final AtomicLong finished = new AtomicLong();
+	
+	@Setup
+	public void setup()
+	{
+		HashMap<String, Integer> regions = new HashMap<String, Integer>();
+		regions.put("Bench", maxSimultaneousJobs);
+		dispatch = new NuberDispatch(regions, false, executionMode);
+		for (int i = 0; i < maxSimultaneousJobs; i++) {
+			dispatch.addDriver(new Driver("D-" + Person.getRandomName(), 0));
+		}
+		dispatch.openBookingStore(BATCH, (store, slot) -> finished.incrementAndGet());
+		region = dispatch.getRegionHandle("Bench");
+		passenger = new Passenger("P-" + Person.getRandomName(), 0);
+	}
+	
+	@TearDown
+	public void tearDown()
+	{
+		dispatch.shutdown();
+	}
+	
+	@Benchmark
+	@OperationsPerInvocation(BATCH)
+	public long submit() throws Exception
+	{
+		long target = finished.get() + BATCH;
+		for (int i = 0; i < BATCH; i++) {
+			dispatch.submit(passenger, region, BookingPriority.STANDARD, -1);
+		}
+		while (finished.get() < target) {
+			Thread.yield();
+		}
+		return target;
+	}
+}
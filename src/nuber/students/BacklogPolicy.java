@@ -0,0 +1,61 @@
+package nuber.students;
+
+/**
+ * What a region does with a new booking when all its job slots are busy and its backlog 
+ * of waiting bookings is full.
+ * 
+ * BLOCK makes the caller of bookPassenger() wait until there is room. NuberDispatch.offer()
+ * never waits, so its booking is refused with BACKLOG_FULL as under REJECT.
+ * 
+ * REJECT refuses the new booking with BookingRejectedException.Reason.BACKLOG_FULL.
+ * 
+ * SHED_OLDEST drops the booking that has waited longest in the lowest class of service 
+ * waiting, see BookingPriority, failing its Future with BookingRejectedException.Reason.SHED, 
+ * and queues the new booking in its place. With a backlog size of 0 there is nothing to shed,
+ * and the new booking is refused with BACKLOG_FULL as under REJECT.
+ * 
+ * The policy is picked at startup with -Dnuber.region.backlog.policy=block|reject|shed_oldest 
+ * (default is block), and the backlog size with -Dnuber.region.backlog (default 1000).
+ * 
+ * @author james
+ *
+ */
+public enum BacklogPolicy {
+	BLOCK,
+	REJECT,
+	SHED_OLDEST;
+
+	/**
+	 * System property used to choose the policy at startup
+	 */
+	public static final String PROPERTY = "nuber.region.backlog.policy";
+	
+	/**
+	 * System property used to set each region's backlog size
+	 */
+	public static final String SIZE_PROPERTY = "nuber.region.backlog";
+
+	/**
+	 * Reads the policy from the nuber.region.backlog.policy system property, falling back to BLOCK
+	 * 
+	 * @return The policy for full backlogs
+	 */
+	public static BacklogPolicy fromSystemProperty()
+	{
+		String value = System.getProperty(PROPERTY, "block");
+		try {
+			return BacklogPolicy.valueOf(value.trim().toUpperCase());
+		} catch (IllegalArgumentException e) {
+			System.out.println("Unknown " + PROPERTY + " value '" + value + "', using BLOCK");
+			return BLOCK;
+		}
+	}
+	
+	/**
+	 * @return The backlog size from the nuber.region.backlog system property, default 1000
+	 */
+	public static int backlogSizeFromSystemProperty()
+	{
+		return Math.max(0, Integer.getInteger(SIZE_PROPERTY, 1000));
+	}
+}
@@ -0,0 +1,235 @@
+package nuber.students;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Matches waiting bookings to idle drivers in batches, for BATCHED driver matching.
+ * 
+ * Instead of each booking grabbing a driver the moment it asks, bookings wait in dispatch's 
+ * driver waiter queue. Every tick, the matcher takes all idle drivers and as many of the oldest 
+ * waiting bookings as there are drivers, and works out the assignment with the least total 
+ * pickup distance. When there are many more idle drivers than bookings, each booking is only
+ * offered its CANDIDATES nearest drivers, so the cost of a batch grows with the bookings in it
+ * rather than with the idle fleet. Batches up to HUNGARIAN_LIMIT bookings are solved exactly 
+ * over those drivers, larger ones, and any whose candidates can't give every booking its own 
+ * driver, with the greedy solver in MinCostAssignment.
+ * 
+ * For every batch the matcher also works out what matching in arrival order would have cost, 
+ * so getReport() can show how much pickup distance batching saves. Only bookings that took
+ * their driver are counted. getReport() also gives the rate bookings were matched at and the
+ * mean wait for a driver, the same DRIVER_WAIT latency dispatch records under ANY matching, so
+ * a batched run can be put next to an ANY run of the same load to see what the wait for the
+ * next tick costs in throughput.
+ * 
+ * The tick is set with -Dnuber.batch.millis (default 100).
+ * 
+ * @author james
+ *
+ */
+public class BatchMatcher {
+
+	/**
+	 * System property used to set the tick in milliseconds
+	 */
+	public static final String PROPERTY = "nuber.batch.millis";
+	
+	/**
+	 * Largest batch solved exactly with the Hungarian algorithm
+	 */
+	public static final int HUNGARIAN_LIMIT = 200;
+	
+	/**
+	 * How many of its nearest idle drivers each booking in a batch is offered
+	 */
+	public static final int CANDIDATES = 8;
+	
+	private final NuberDispatch dispatch;
+	private final long tickMillis;
+	private final ScheduledExecutorService ticker;
+	
+	//only written by the ticker thread, read by getReport(), both synchronized.
+	private long batches = 0;
+	private long matched = 0;
+	private double batchCost = 0;
+	private double inOrderCost = 0;
+	//System.nanoTime() of the first and last batch that matched anyone
+	private long firstMatchedAt = 0;
+	private long lastMatchedAt = 0;
+	
+	/**
+	 * Creates a matcher ticking at the interval given by the nuber.batch.millis system property
+	 * 
+	 * @param dispatch The dispatch whose waiting bookings and idle drivers are matched
+	 */
+	public BatchMatcher(NuberDispatch dispatch)
+	{
+		this(dispatch, Long.getLong(PROPERTY, 100));
+	}
+	
+	/**
+	 * Creates a matcher and starts its ticks
+	 * 
+	 * @param dispatch The dispatch whose waiting bookings and idle drivers are matched
+	 * @param tickMillis Time between batches in milliseconds
+	 */
+	public BatchMatcher(NuberDispatch dispatch, long tickMillis)
+	{
+		this.dispatch = dispatch;
+		this.tickMillis = Math.max(1, tickMillis);
+		this.ticker = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "nuber-batch-matcher");
+			thread.setDaemon(true);
+			return thread;
+		});
+		ticker.scheduleWithFixedDelay(this::tick, this.tickMillis, this.tickMillis, TimeUnit.MILLISECONDS);
+	}
+	
+	/**
+	 * @return The time between batches in milliseconds
+	 */
+	public long getTickMillis()
+	{
+		return tickMillis;
+	}
+	
+	/**
+	 * Stops matching. Bookings still waiting for a driver will not be given one.
+	 */
+	public void shutdown()
+	{
+		ticker.shutdown();
+	}
+	
+	//an exception would cancel the scheduled ticks, so log it and carry on next tick.
+	private void tick()
+	{
+		try {
+			matchBatch();
+		} catch (RuntimeException e) {
+			System.out.println("Batch matching failed: " + e);
+		}
+	}
+	
+	/**
+	 * Runs one batch: matches as many waiting bookings to idle drivers as possible
+	 */
+	protected void matchBatch()
+	{
+		//a batch spans every region, unused drivers go back to the pool they came from
+		List<Driver> drivers = new ArrayList<Driver>();
+		List<IdleDriverPool> from = new ArrayList<IdleDriverPool>();
+		takeAll(dispatch.idleDriver, drivers, from);
+		for (NuberRegion region : dispatch.regionRing) {
+			takeAll(region.idleDrivers, drivers, from);
+		}
+		if (drivers.isEmpty()) {
+			return;
+		}
+		
+		List<NuberDispatch.DriverWaiter> waiters = new ArrayList<NuberDispatch.DriverWaiter>();
+		synchronized (dispatch.driverHandOffLock) {
+			while (waiters.size() < drivers.size() && !dispatch.driverWaiters.isEmpty()) {
+				NuberDispatch.DriverWaiter waiter = dispatch.driverWaiters.poll();
+				dispatch.driverWaiterCount--;
+				//skip bookings cancelled while they waited
+				if (!waiter.driver.isDone()) {
+					waiters.add(waiter);
+				}
+			}
+		}
+		
+		boolean[] given = new boolean[drivers.size()];
+		if (!waiters.isEmpty()) {
+			double[] passengerX = new double[waiters.size()];
+			double[] passengerY = new double[waiters.size()];
+			for (int i = 0; i < waiters.size(); i++) {
+				passengerX[i] = waiters.get(i).passenger.getX();
+				passengerY[i] = waiters.get(i).passenger.getY();
+			}
+			double[] driverX = new double[drivers.size()];
+			double[] driverY = new double[drivers.size()];
+			for (int i = 0; i < drivers.size(); i++) {
+				driverX[i] = drivers.get(i).getX();
+				driverY[i] = drivers.get(i).getY();
+			}
+			
+			int[] assignment;
+			if (drivers.size() <= CANDIDATES * waiters.size()) {
+				//too few drivers to spare, most would be candidates anyway and pruning costs optimality
+				assignment = waiters.size() <= HUNGARIAN_LIMIT 
+						? MinCostAssignment.hungarian(passengerX, passengerY, driverX, driverY)
+						: MinCostAssignment.greedy(passengerX, passengerY, driverX, driverY);
+			} else {
+				int[][] candidates = MinCostAssignment.nearestColumns(passengerX, passengerY, driverX, driverY, CANDIDATES);
+				assignment = waiters.size() <= HUNGARIAN_LIMIT 
+						? MinCostAssignment.hungarian(passengerX, passengerY, driverX, driverY, candidates)
+						: null;
+				if (assignment == null) {
+					assignment = MinCostAssignment.greedy(passengerX, passengerY, driverX, driverY, candidates);
+				}
+			}
+			int[] inOrder = MinCostAssignment.inOrder(passengerX, passengerY, driverX, driverY);
+			
+			int accepted = 0;
+			double cost = 0;
+			double inOrderCost = 0;
+			for (int i = 0; i < waiters.size(); i++) {
+				//a booking cancelled since it was taken off the queue refuses its driver, and isn't counted
+				if (waiters.get(i).driver.complete(drivers.get(assignment[i]))) {
+					given[assignment[i]] = true;
+					accepted++;
+					cost += MinCostAssignment.cost(passengerX, passengerY, driverX, driverY, i, assignment[i]);
+					inOrderCost += MinCostAssignment.cost(passengerX, passengerY, driverX, driverY, i, inOrder[i]);
+				}
+			}
+			
+			long now = System.nanoTime();
+			synchronized (this) {
+				batches++;
+				matched += accepted;
+				batchCost += cost;
+				this.inOrderCost += inOrderCost;
+				if (accepted > 0) {
+					if (firstMatchedAt == 0) {
+						firstMatchedAt = now;
+					}
+					lastMatchedAt = now;
+				}
+			}
+		}
+		
+		for (int i = 0; i < drivers.size(); i++) {
+			if (!given[i]) {
+				from.get(i).offer(drivers.get(i));
+			}
+		}
+	}
+	
+	private static void takeAll(IdleDriverPool pool, List<Driver> drivers, List<IdleDriverPool> from)
+	{
+		for (Driver driver = pool.poll(); driver != null; driver = pool.poll()) {
+			drivers.add(driver);
+			from.add(pool);
+		}
+	}
+	
+	/**
+	 * @return A one line summary of the batches run so far: the bookings matched and how fast, 
+	 * their mean wait for a driver, and the pickup distance saved compared to matching each 
+	 * booking in arrival order
+	 */
+	public synchronized String getReport()
+	{
+		double saved = inOrderCost == 0 ? 0 : 100.0 * (inOrderCost - batchCost) / inOrderCost;
+		long span = lastMatchedAt - firstMatchedAt;
+		double perSecond = matched < 2 || span <= 0 ? 0 : matched * 1e9 / span;
+		double meanWaitMillis = dispatch.getLatencies().get(BookingLatencies.Phase.DRIVER_WAIT).getMean() / 1e6;
+		return String.format("Batched matching every %dms: %d batches, %d bookings matched (%.0f/s), mean driver wait %.1fms, "
+				+ "pickup distance %.1f vs %.1f in arrival order (%.1f%% less)",
+				tickMillis, batches, matched, perSecond, meanWaitMillis, batchCost, inOrderCost, saved);
+	}
+}
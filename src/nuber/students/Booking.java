@@ -1,6 +1,11 @@
 package nuber.students;
 
 import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * 
@@ -27,10 +32,34 @@ public class Booking implements Callable<BookingResult>{
 	protected Passenger passenger;
 	protected Driver availableDriver;
 	protected int jobID = 1;
+	protected RegionCounters counters;
+	//null for a booking made outside any region
+	protected NuberRegion region;
 	
-	//use static int since if this is not static, bookingID/jobID is initialized 
-	//every single time when the instance called.
-	private static int bookingId = 1;	
+	//System.nanoTime() at each phase, see BookingLatencies. 0 until the phase is reached.
+	protected long createdNanos;
+	protected long admittedNanos;
+	protected long driverAcquiredNanos;
+	protected long pickedUpNanos;
+	protected long arrivedNanos;
+	
+	//the booking's key in dispatch's journal, -1 if it isn't journaled
+	protected long journalKey = -1;
+	
+	//decide which waiting booking dispatch hands a driver to first, see BookingPriority.
+	//set by the region before the booking starts.
+	protected BookingPriority priority = BookingPriority.STANDARD;
+	//System.nanoTime() the passenger must be picked up by, 0 for none
+	protected long pickupDeadlineNanos;
+	protected long dueNanos;
+	
+	//what the booking is waiting on for its driver, so cancelWait() can stop the wait
+	private volatile CompletableFuture<?> waitingFor;
+	private volatile boolean cancelled;
+	
+	//use static since if this is not static, bookingID/jobID is initialized 
+	//every single time when the instance called. atomic so creating bookings never locks.
+	private static final AtomicInteger bookingId = new AtomicInteger(1);
 	/**
 	 * Creates a new booking for a given Nuber dispatch and passenger, noting that no
 	 * driver is provided as it will depend on whether one is available when the region 
@@ -49,13 +78,69 @@ public class Booking implements Callable<BookingResult>{
 	//Booking class: nuber.students.NuberDispatch@5fdef03a: nuber.students.Passenger@3b22cdd0
 	//Booking class: nuber.students.NuberDispatch@5fdef03a: nuber.students.Passenger@3b22cdd0
 	public Booking(NuberDispatch dispatch, Passenger passenger)
+	{
+		this(dispatch, passenger, null);
+	}
+	
+	/**
+	 * Creates a new booking in a region. It takes its driver from the region's idle drivers 
+	 * first, returns the driver there when done, and reports to the region's counters.
+	 * 
+	 * @param dispatch
+	 * @param passenger
+	 * @param region The region the booking belongs to, or null for none
+	 */
+	public Booking(NuberDispatch dispatch, Passenger passenger, NuberRegion region)
+	{
+		this(dispatch, passenger, region, System.nanoTime());
+	}
+	
+	/**
+	 * Creates a new booking in a region that accepted it earlier, and is admitting it now.
+	 * 
+	 * @param dispatch
+	 * @param passenger
+	 * @param region The region the booking belongs to, or null for none
+	 * @param createdNanos System.nanoTime() when the region accepted the booking
+	 */
+	public Booking(NuberDispatch dispatch, Passenger passenger, NuberRegion region, long createdNanos)
 	{
 		this.dispatch = dispatch;
+		reset(passenger, region, createdNanos);
+	}
+	
+	/**
+	 * Makes this a new booking, with a new ID, so a region can reuse the object for a 
+	 * BookingStore slot instead of allocating another.
+	 * 
+	 * @param passenger
+	 * @param region The region the booking belongs to, or null for none
+	 * @param createdNanos System.nanoTime() when the region accepted the booking
+	 */
+	final void reset(Passenger passenger, NuberRegion region, long createdNanos)
+	{
+		this.createdNanos = createdNanos;
+		this.admittedNanos = System.nanoTime();
+		this.driverAcquiredNanos = 0;
+		this.pickedUpNanos = 0;
+		this.arrivedNanos = 0;
 		this.passenger = passenger;	
+		this.availableDriver = null;
+		if (counters == null || this.region != region) {
+			this.counters = region == null ? new RegionCounters() : region.counters;
+		}
+		this.region = region;
+		this.journalKey = -1;
+		this.priority = BookingPriority.STANDARD;
+		this.pickupDeadlineNanos = 0;
+		this.dueNanos = priority.dueNanos(createdNanos, 0);
+		this.waitingFor = null;
+		this.cancelled = false;
 		this.jobID = incrementalID();
+		counters.issued();
 		
 		//System.out.println(this.toString() + ": Creating booking");
-		dispatch.logEvent(this, "Creating booking");
+		dispatch.logEvent(this, BookingEvent.CREATED);
 	}
 	/**
 	 * At some point, the Nuber Region responsible for the booking can start it (has free spot),
@@ -73,6 +158,9 @@ public class Booking implements Callable<BookingResult>{
 	 *
 	 * @return A BookingResult containing the final information about the booking 
 	 * @throws InterruptedException 
+	 * @throws CancellationException if the booking was cancelled before it got a driver
+	 * @throws CompletionException caused by a TimeoutException if it waited dispatch's 
+	 * maximum for a driver, see NuberDispatch.setMaxDriverWait()
 	 */
 	/**This is Japanese translation for understanding better.
 	* ある時点で、予約を担当するNuber Regionが予約を開始（空きがある）し、
@@ -93,16 +181,43 @@ public class Booking implements Callable<BookingResult>{
 	*/
 	public BookingResult call() throws InterruptedException {
 		
-		dispatch.logEvent(this, "Starting booking, getting driver");
+		long tripDuration = ride();
+		
+		//This is Japanese translation for understanding better.
+		//7. call() 関数は、BookingResult オブジェクトを返します。 BookingResult コンストラクタに必要な適切な情報を渡します。
+		//(int jobID, Passenger passenger, Driver driver, long tripDuration)
+		//System.out.println("Thread current name: "+ Thread.currentThread().getName());
+		//works fine.
+		BookingResult bookingResult = new BookingResult(jobID,passenger,availableDriver,tripDuration); 
+		
+		return bookingResult;
+	}
+	
+	/**
+	 * Runs steps 1 to 6 of call(), without making a BookingResult, for bookings whose 
+	 * result goes into a BookingStore.
+	 * 
+	 * @return The trip duration in milliseconds
+	 * @throws InterruptedException
+	 */
+	long ride() throws InterruptedException {
+		
+		dispatch.logEvent(this, BookingEvent.STARTED);
+		RidePooler pooler = dispatch.ridePooler;
+		RidePooler.Seat seat = pooler == null ? null : pooler.join(this);
+		if (seat != null) {
+			return rideShared(seat);
+		}
 		//This is Japanese translation for understanding better.
 		//1. Dispatchに利用可能なドライバーを問い合わせます
 		//2. 現在利用可能なドライバーがいない場合、予約は利用可能になるまで待機します。
 		//If no driver is currently available, the booking must wait
-		availableDriver = dispatch.getDriver(); //works fine.
-		
+		availableDriver = dispatch.awaitDriver(this); //works fine.
+		if (availableDriver == null) {
+			throw new CancellationException("Booking " + jobID + " was cancelled while waiting for a driver");
+		}
 		//works fine.
-		dispatch.decrementalBookingAwaitingDriver();
-		dispatch.logEvent(this, "Starting, on way to passenger");
+		driverAssigned();
 		
 		//This is Japanese translation for understanding better.
 //		3. ドライバーが確保できたら、Driver.pickUpPassenger() 関数を呼び出します。
@@ -111,7 +226,7 @@ public class Booking implements Callable<BookingResult>{
 		//thread pausing whilst as function is called.
 		//works fine.
 		availableDriver.pickUpPassenger(passenger);
-		dispatch.logEvent(this, "Collected passenger, on way to destination");
+		pickedUp();
 		
 		//This is Japanese translation for understanding better.
 //		4. 次に、Driver.driveToDestination() 関数を呼び出し、スレッドは
@@ -125,27 +240,170 @@ public class Booking implements Callable<BookingResult>{
 		//* 5. 目的地に到着すると、時間が記録され、合計の移動時間がわかります。
 		//works well.
 		long tripDuration;
-		tripDuration = passenger.getTravelTime();
+		tripDuration = arrived();
 		
 		//This is Japanese translation for understanding better.
 		//6. ドライバーは、これで解放されたので、Dispatch の利用可能なドライバーのリストに戻されます。
 		//works fine.
-		Boolean boolAddDriver = dispatch.addDriver(availableDriver);
-		dispatch.logEvent(this, "At destination, driver is now free");
+		Boolean boolAddDriver = dispatch.addDriver(availableDriver, region);
+		counters.completed();
+		journal(BookingJournal.Type.COMPLETED);
+		dispatch.logEvent(this, BookingEvent.ARRIVED);
 		
-		//This is Japanese translation for understanding better.
-		//7. call() 関数は、BookingResult オブジェクトを返します。 BookingResult コンストラクタに必要な適切な情報を渡します。
-		//(int jobID, Passenger passenger, Driver driver, long tripDuration)
-		//System.out.println("Thread current name: "+ Thread.currentThread().getName());
-		//works fine.
-		BookingResult bookingResult = new BookingResult(jobID,passenger,availableDriver,tripDuration); 
+		return tripDuration;
+	}
+	
+	//the same steps for a passenger on a shared ride, which brings the driver to each stop and
+	//takes it back to the region after the last one, see RidePooler
+	private long rideShared(RidePooler.Seat seat) throws InterruptedException {
+		waitFor(seat.driver);
+		availableDriver = seat.awaitDriver();
+		if (availableDriver == null) {
+			throw new CancellationException("Booking " + jobID + " was cancelled while waiting for a shared ride");
+		}
+		driverAssigned();
+		RidePooler.Seat.await(seat.pickedUp);
+		pickedUp();
+		RidePooler.Seat.await(seat.droppedOff);
+		long tripDuration = arrived();
+		counters.completed();
+		journal(BookingJournal.Type.COMPLETED);
+		dispatch.logEvent(this, BookingEvent.ARRIVED);
+		return tripDuration;
+	}
+	
+	/**
+	 * Runs the same steps as call(), but as CompletableFuture stages so no thread is held
+	 * while waiting for a driver or while the trip is underway.
+	 * 
+	 * The driver stage completes when dispatch hands this booking a driver, and the pickup
+	 * and drive stages are completed by the given scheduler rather than by a sleeping thread.
+	 * 
+	 * @param scheduler Scheduler used to time the pickup and the trip
+	 * @return A future that provides the BookingResult once the passenger has arrived
+	 */
+	public CompletableFuture<BookingResult> callAsync(ScheduledExecutorService scheduler) {
 		
-		incrementalID();
-		return bookingResult;
+		dispatch.logEvent(this, BookingEvent.STARTED);
+		
+		RidePooler pooler = dispatch.ridePooler;
+		RidePooler.Seat seat = pooler == null ? null : pooler.join(this);
+		if (seat != null) {
+			waitFor(seat.driver);
+			return seat.driver
+				.thenCompose(driver -> {
+					availableDriver = driver;
+					driverAssigned();
+					return seat.pickedUp;
+				})
+				.thenCompose(collected -> {
+					pickedUp();
+					return seat.droppedOff;
+				})
+				.thenApply(arrived -> {
+					long tripDuration = arrived();
+					counters.completed();
+					journal(BookingJournal.Type.COMPLETED);
+					dispatch.logEvent(this, BookingEvent.ARRIVED);
+					return new BookingResult(jobID, passenger, availableDriver, tripDuration);
+				});
+		}
+		
+		CompletableFuture<Driver> driverFuture = dispatch.getDriverAsync(passenger, region, priority, dueNanos);
+		waitFor(driverFuture);
+		return driverFuture
+			.thenCompose(driver -> {
+				availableDriver = driver;
+				driverAssigned();
+				return driver.pickUpPassengerAsync(passenger, scheduler);
+			})
+			.thenCompose(collected -> {
+				pickedUp();
+				return availableDriver.driveToDestinationAsync(scheduler);
+			})
+			.thenApply(arrived -> {
+				long tripDuration = arrived();
+				dispatch.addDriver(availableDriver, region);
+				counters.completed();
+				journal(BookingJournal.Type.COMPLETED);
+				dispatch.logEvent(this, BookingEvent.ARRIVED);
+				return new BookingResult(jobID, passenger, availableDriver, tripDuration);
+			});
+	}
+	
+	/**
+	 * Stops the booking waiting for a driver, if it hasn't been given one yet. It then fails
+	 * as cancelled and its driver wait is withdrawn from dispatch. A booking that already has
+	 * its driver carries on with the trip.
+	 */
+	void cancelWait() {
+		cancelled = true;
+		CompletableFuture<?> waiting = waitingFor;
+		if (waiting != null) {
+			waiting.cancel(false);
+		}
+	}
+	
+	/**
+	 * @return true once cancelWait() has been called
+	 */
+	boolean isCancelled() {
+		return cancelled;
+	}
+	
+	//notes what the booking waits on for its driver. cancelWait() may have run first.
+	void waitFor(CompletableFuture<?> driver) {
+		waitingFor = driver;
+		if (cancelled) {
+			driver.cancel(false);
+		}
+	}
+	
+	private void journal(BookingJournal.Type type) {
+		BookingJournal journal = dispatch.journal;
+		if (journal != null && journalKey >= 0) {
+			journal.booking(type, journalKey, availableDriver);
+		}
+	}
+	
+	//stamps, counts and logs the driver being handed to this booking
+	private void driverAssigned() {
+		driverAcquiredNanos = System.nanoTime();
+		dispatch.decrementalBookingAwaitingDriver();
+		counters.driverAssigned();
+		journal(BookingJournal.Type.ASSIGNED);
+		dispatch.logEvent(this, BookingEvent.DRIVER_ASSIGNED);
+	}
+	
+	//stamps the pickup, and counts it against the booking's deadline if it has one
+	private void pickedUp() {
+		pickedUpNanos = System.nanoTime();
+		if (pickupDeadlineNanos != 0 && pickedUpNanos - pickupDeadlineNanos > 0) {
+			counters.missedDeadline(priority);
+		}
+		journal(BookingJournal.Type.PICKED_UP);
+		dispatch.logEvent(this, BookingEvent.PICKED_UP);
+	}
+	
+	//stamps the arrival, records the booking's phases with its region, and returns the
+	//trip duration in milliseconds, from the region accepting the booking to arrival.
+	private long arrived() {
+		arrivedNanos = System.nanoTime();
+		if (region != null) {
+			region.latencies.record(this);
+		}
+		return (arrivedNanos - createdNanos) / 1_000_000;
+	}
+	
+	private static int incrementalID() {
+		return bookingId.getAndIncrement();
 	}
 	
-	private static synchronized int incrementalID() {
-		return bookingId++;
+	/**
+	 * @return How many booking IDs have been handed out so far
+	 */
+	public static int getBookingIdsIssued() {
+		return bookingId.get() - 1;
 	}
 	
 	/***
@@ -0,0 +1,51 @@
+package nuber.students;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The state changes a booking logs through NuberDispatch.logEvent().
+ * 
+ * Each event has a small code, which is what the async EventLog stores, and the message 
+ * that is printed for it.
+ * 
+ * @author james
+ *
+ */
+public enum BookingEvent {
+	CREATED("Creating booking"),
+	STARTED("Starting booking, getting driver"),
+	DRIVER_ASSIGNED("Starting, on way to passenger"),
+	PICKED_UP("Collected passenger, on way to destination"),
+	ARRIVED("At destination, driver is now free"),
+	REJECTED("Rejected booking");
+	
+	private static final BookingEvent[] BY_CODE = values();
+	
+	public final String message;
+	
+	//message pre-encoded once, so the event log can copy it without building a String
+	final byte[] messageBytes;
+	
+	BookingEvent(String message)
+	{
+		this.message = message;
+		this.messageBytes = message.getBytes(StandardCharsets.US_ASCII);
+	}
+	
+	/**
+	 * @return The code stored for this event
+	 */
+	public byte code()
+	{
+		return (byte) ordinal();
+	}
+	
+	/**
+	 * @param code A code returned by code()
+	 * @return The event with that code
+	 */
+	public static BookingEvent fromCode(byte code)
+	{
+		return BY_CODE[code];
+	}
+}
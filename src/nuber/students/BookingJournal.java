@@ -0,0 +1,572 @@
+package nuber.students;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Write-ahead journal of booking and driver state changes, so a restarted dispatch can pick up
+ * where a dead one left off.
+ *
+ * The journal is a directory of segment files, journal-NNNNNNNNNNNN.seg, each memory-mapped and
+ * split into fixed 64 byte records. Appending claims the next record number with one atomic
+ * increment and writes the record straight into the mapped segment, so booking threads never
+ * lock or make a system call. The record's checksum is written last, so recovery can tell a
+ * whole record from one the process died half way through.
+ *
+ * Because the segments are mapped, a record is safe from the JVM dying as soon as it is
+ * written. Surviving the machine dying needs the pages on disk, which a background thread
+ * does with one force() per segment every few milliseconds for all the records written since
+ * the last one: a group commit, so no booking waits for the disk.
+ *
+ * On startup, recover() reads the segments back. Every driver that was ever idle goes back in
+ * the idle pool, and every booking that was accepted but never completed is booked again in
+ * its class of service. A pickup deadline is not kept, it would have passed by then.
+ *
+ * The journal is turned on with -Dnuber.journal.dir, the directory to keep it in.
+ * -Dnuber.journal.segment.mb sets the segment size (default 64, rounded up to a power of two)
+ * and -Dnuber.journal.sync.millis the group commit interval (default 5).
+ *
+ * @author james
+ *
+ */
+public class BookingJournal implements AutoCloseable {
+
+	/**
+	 * System property naming the journal directory. The journal is off if it isn't set.
+	 */
+	public static final String PROPERTY = "nuber.journal.dir";
+
+	/**
+	 * The state changes that are journaled
+	 */
+	public enum Type {
+		//a driver joined the idle pool, added or back from a trip
+		DRIVER_IDLE,
+		//a region accepted a booking
+		BOOKED,
+		//a booking took a driver out of the idle pool
+		ASSIGNED,
+		PICKED_UP,
+		COMPLETED,
+		//a booking was shed or failed, so there is nothing to recover
+		CANCELLED,
+		//an idle driver was taken out of dispatch, to move to another partition
+		DRIVER_LEFT;
+
+		private static final Type[] TYPES = values();
+
+		byte code()
+		{
+			return (byte) (ordinal() + 1);
+		}
+
+		static Type fromCode(byte code)
+		{
+			return code >= 1 && code <= TYPES.length ? TYPES[code - 1] : null;
+		}
+	}
+
+	static final int RECORD_SIZE = 64;
+	private static final int NAME_BYTES = 16;
+
+	//record layout
+	private static final int KEY = 0;
+	private static final int TYPE = 8;
+	private static final int NAME_LENGTH = 9;
+	private static final int REGION_LENGTH = 10;
+	//BookingPriority ordinal + 1, 0 in records from before priorities reads as STANDARD
+	private static final int PRIORITY = 11;
+	private static final int PERSON_ID = 12;
+	private static final int MAX_SLEEP = 16;
+	private static final int X = 20;
+	private static final int Y = 24;
+	private static final int NAME = 28;
+	private static final int REGION = NAME + NAME_BYTES;
+	private static final int CHECKSUM = 60;
+
+	private static final String PREFIX = "journal-";
+	private static final String SUFFIX = ".seg";
+
+	/**
+	 * A mapped segment file
+	 */
+	private static class Segment {
+		final long index;
+		final MappedByteBuffer buffer;
+
+		Segment(long index, MappedByteBuffer buffer)
+		{
+			this.index = index;
+			this.buffer = buffer;
+		}
+	}
+
+	private final Path directory;
+	private final int segmentBytes;
+	private final int recordShift;
+	private final long syncMillis;
+
+	//record numbers run on from segment to segment, and a BOOKED record's number is the booking's key
+	private final long firstSegment;
+	private final long firstRecord;
+	private final AtomicLong claimed;
+	private volatile long durable;
+	private final ConcurrentHashMap<Long, Segment> segments = new ConcurrentHashMap<Long, Segment>();
+	private volatile Segment current;
+	private final Object syncLock = new Object();
+	private final Thread syncer;
+	private volatile boolean running = true;
+
+	/**
+	 * Opens a journal configured from the nuber.journal.* system properties, starting in the
+	 * segment after the ones a recovery has read
+	 *
+	 * @param recovery What was recovered from the journal directory
+	 * @return A new, running journal
+	 * @throws IOException if the first segment can't be created
+	 */
+	public static BookingJournal fromSystemProperties(Recovery recovery) throws IOException
+	{
+		int segmentMb = Integer.getInteger("nuber.journal.segment.mb", 64);
+		long syncMillis = Long.getLong("nuber.journal.sync.millis", 5);
+		return new BookingJournal(recovery.directory, recovery.nextSegment, segmentMb << 20, syncMillis);
+	}
+
+	/**
+	 * Creates a journal and starts its group commit thread
+	 *
+	 * @param directory Where the segments are kept
+	 * @param firstSegment Index of the first segment to write, past any that are being recovered
+	 * @param segmentBytes Segment size, rounded up to a power of two of at least 64KB
+	 * @param syncMillis Time between group commits in milliseconds
+	 * @throws IOException if the directory or first segment can't be created
+	 */
+	public BookingJournal(Path directory, long firstSegment, int segmentBytes, long syncMillis) throws IOException
+	{
+		this.directory = directory;
+		int size = Integer.highestOneBit(Math.max(1 << 16, Math.min(1 << 30, segmentBytes)));
+		this.segmentBytes = size < segmentBytes && size < (1 << 30) ? size << 1 : size;
+		this.recordShift = Integer.numberOfTrailingZeros(this.segmentBytes / RECORD_SIZE);
+		this.syncMillis = Math.max(1, syncMillis);
+		this.firstSegment = firstSegment;
+		this.firstRecord = firstSegment << recordShift;
+		this.claimed = new AtomicLong(firstRecord);
+		this.durable = firstRecord;
+
+		Files.createDirectories(directory);
+		segment(firstSegment);
+
+		this.syncer = new Thread(this::syncLoop, "nuber-journal-sync");
+		syncer.setDaemon(true);
+		syncer.start();
+	}
+
+	/**
+	 * Journals a driver joining the idle pool
+	 *
+	 * @param driver The driver
+	 */
+	public void driverIdle(Driver driver)
+	{
+		append(Type.DRIVER_IDLE, driver.id, driver, null, null);
+	}
+
+	/**
+	 * Journals an idle driver leaving dispatch, so recovery doesn't bring them back
+	 *
+	 * @param driver The driver
+	 */
+	public void driverLeft(Driver driver)
+	{
+		append(Type.DRIVER_LEFT, driver.id, driver, null, null);
+	}
+
+	/**
+	 * Journals a region accepting a booking
+	 *
+	 * @param passenger The booking's passenger
+	 * @param region The region's name
+	 * @param priority The booking's class of service
+	 * @return The booking's key, to journal the rest of its changes under
+	 */
+	public long booked(Passenger passenger, String region, BookingPriority priority)
+	{
+		return append(Type.BOOKED, -1, passenger, region, priority);
+	}
+
+	/**
+	 * Journals a change to a booking
+	 *
+	 * @param type ASSIGNED, PICKED_UP, COMPLETED or CANCELLED
+	 * @param bookingKey The key booked() returned
+	 * @param driver The booking's driver, or null if it has none
+	 */
+	public void booking(Type type, long bookingKey, Driver driver)
+	{
+		append(type, bookingKey, driver, null, null);
+	}
+
+	/**
+	 * @return How many records this journal has appended
+	 */
+	public long getAppended()
+	{
+		return claimed.get() - firstRecord;
+	}
+
+	//claims a record and writes it. a BOOKED record's key is its own record number.
+	private long append(Type type, long key, Person person, String region, BookingPriority priority)
+	{
+		long record = claimed.getAndIncrement();
+		Segment segment = segment(record >>> recordShift);
+		int at = (int) ((record * RECORD_SIZE) & (segmentBytes - 1));
+		MappedByteBuffer buffer = segment.buffer;
+
+		if (type == Type.BOOKED) {
+			key = record;
+		}
+		buffer.putLong(at + KEY, key);
+		buffer.put(at + TYPE, type.code());
+		if (person != null) {
+			buffer.put(at + NAME_LENGTH, putName(buffer, at + NAME, person.name));
+			buffer.putInt(at + PERSON_ID, person.id);
+			buffer.putInt(at + MAX_SLEEP, person.maxSleep);
+			buffer.putFloat(at + X, (float) person.getX());
+			buffer.putFloat(at + Y, (float) person.getY());
+		}
+		if (region != null) {
+			buffer.put(at + REGION_LENGTH, putName(buffer, at + REGION, region));
+		}
+		if (priority != null) {
+			buffer.put(at + PRIORITY, (byte) (priority.ordinal() + 1));
+		}
+		buffer.putInt(at + CHECKSUM, checksum(buffer, at));
+		return key;
+	}
+
+	//writes up to NAME_BYTES of a name, longer names are cut short
+	private static byte putName(MappedByteBuffer buffer, int at, String name)
+	{
+		byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+		int length = Math.min(NAME_BYTES, bytes.length);
+		for (int i = 0; i < length; i++) {
+			buffer.put(at + i, bytes[i]);
+		}
+		return (byte) length;
+	}
+
+	private static BookingPriority priorityOf(byte code)
+	{
+		BookingPriority[] priorities = BookingPriority.values();
+		return code >= 1 && code <= priorities.length ? priorities[code - 1] : BookingPriority.STANDARD;
+	}
+
+	//never 0, so a record that was claimed but never written can't pass
+	private static int checksum(ByteBuffer buffer, int at)
+	{
+		long hash = 0xcbf29ce484222325L;
+		for (int i = 0; i < CHECKSUM; i += 4) {
+			hash = (hash ^ buffer.getInt(at + i)) * 0x100000001b3L;
+		}
+		return (int) (hash ^ (hash >>> 32)) | 1;
+	}
+
+	private Segment segment(long index)
+	{
+		Segment segment = current;
+		if (segment != null && segment.index == index) {
+			return segment;
+		}
+		segment = segments.get(index);
+		return segment != null ? segment : openSegment(index);
+	}
+
+	//rolling over to a new segment is the one slow path, every 1M records with 64MB segments
+	private synchronized Segment openSegment(long index)
+	{
+		Segment segment = segments.get(index);
+		if (segment == null) {
+			Path path = directory.resolve(segmentName(index));
+			//the mapping stays valid once the file is closed
+			try (RandomAccessFile file = new RandomAccessFile(path.toFile(), "rw")) {
+				file.setLength(segmentBytes);
+				segment = new Segment(index, file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segmentBytes));
+			} catch (IOException e) {
+				throw new IllegalStateException("Couldn't create journal segment " + path, e);
+			}
+			segments.put(index, segment);
+		}
+		if (current == null || index > current.index) {
+			current = segment;
+		}
+		return segment;
+	}
+
+	private static String segmentName(long index)
+	{
+		return String.format("%s%012d%s", PREFIX, index, SUFFIX);
+	}
+
+	/**
+	 * Forces every record appended so far to disk. The group commit thread does this every
+	 * few milliseconds, call it directly to make sure of a record now.
+	 */
+	public void sync()
+	{
+		synchronized (syncLock) {
+			long upTo = claimed.get();
+			if (upTo == durable) {
+				return;
+			}
+			long first = durable >>> recordShift;
+			long last = (upTo - 1) >>> recordShift;
+			for (long index = first; index <= last; index++) {
+				Segment segment = segments.get(index);
+				if (segment != null) {
+					segment.buffer.force();
+				}
+			}
+			durable = upTo;
+
+			//full segments behind the current one are on disk now, stop tracking them.
+			//a booking thread still writing a claimed record keeps its own reference, the next
+			//force of a later segment doesn't cover it but the page cache still has it.
+			for (long index = first; index < last; index++) {
+				segments.remove(index);
+			}
+		}
+	}
+
+	/**
+	 * @return The number of the first record not yet known to be on disk
+	 */
+	public long getDurableRecord()
+	{
+		return durable;
+	}
+
+	private void syncLoop()
+	{
+		while (running) {
+			try {
+				Thread.sleep(syncMillis);
+				sync();
+			} catch (InterruptedException e) {
+				return;
+			} catch (RuntimeException e) {
+				System.out.println("Journal sync failed: " + e);
+			}
+		}
+	}
+
+	/**
+	 * Stops the group commit thread and forces everything to disk
+	 */
+	@Override
+	public void close()
+	{
+		close(false);
+	}
+
+	/**
+	 * Stops the group commit thread, and either forces everything to disk or, once every
+	 * booking has finished and there is nothing to recover, deletes the segments.
+	 *
+	 * @param delete Whether to delete the segments
+	 */
+	public void close(boolean delete)
+	{
+		running = false;
+		syncer.interrupt();
+		try {
+			syncer.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		if (!delete) {
+			sync();
+			return;
+		}
+		synchronized (this) {
+			for (long index = firstSegment; index <= current.index; index++) {
+				try {
+					Files.deleteIfExists(directory.resolve(segmentName(index)));
+				} catch (IOException e) {
+					System.out.println("Couldn't delete journal segment: " + e);
+				}
+			}
+		}
+	}
+
+	/**
+	 * A booking that was accepted but never completed
+	 */
+	public static class PendingBooking {
+		public final Passenger passenger;
+		public final String region;
+		public final BookingPriority priority;
+
+		PendingBooking(Passenger passenger, String region, BookingPriority priority)
+		{
+			this.passenger = passenger;
+			this.region = region;
+			this.priority = priority;
+		}
+	}
+
+	/**
+	 * What a journal directory held when it was read
+	 */
+	public static class Recovery {
+
+		/**
+		 * Every driver that was idle at some point, at the last place they were idle
+		 */
+		public final List<Driver> drivers;
+
+		/**
+		 * Bookings accepted but never completed, oldest first
+		 */
+		public final List<PendingBooking> bookings;
+
+		/**
+		 * Whole records read, and records skipped because they were never finished
+		 */
+		public final long records;
+		public final long torn;
+
+		final Path directory;
+		final long nextSegment;
+		final List<Path> segments;
+
+		Recovery(Path directory, List<Driver> drivers, List<PendingBooking> bookings, long records, long torn,
+				long nextSegment, List<Path> segments)
+		{
+			this.directory = directory;
+			this.drivers = Collections.unmodifiableList(drivers);
+			this.bookings = Collections.unmodifiableList(bookings);
+			this.records = records;
+			this.torn = torn;
+			this.nextSegment = nextSegment;
+			this.segments = segments;
+		}
+
+		/**
+		 * Deletes the segments that were read, once what they held has been journaled again
+		 */
+		public void deleteSegments()
+		{
+			for (Path segment : segments) {
+				try {
+					Files.deleteIfExists(segment);
+				} catch (IOException e) {
+					System.out.println("Couldn't delete journal segment: " + e);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Reads the journal directory named by the nuber.journal.dir system property
+	 *
+	 * @return What the journal held, or null if the property isn't set
+	 * @throws IOException if a segment can't be read
+	 */
+	public static Recovery recoverFromSystemProperties() throws IOException
+	{
+		String directory = System.getProperty(PROPERTY);
+		return directory == null ? null : recover(Paths.get(directory));
+	}
+
+	/**
+	 * Reads every segment in a journal directory, oldest first
+	 *
+	 * @param directory The journal directory, which doesn't have to exist
+	 * @return The drivers and unfinished bookings the journal held
+	 * @throws IOException if a segment can't be read
+	 */
+	public static Recovery recover(Path directory) throws IOException
+	{
+		List<Path> paths = new ArrayList<Path>();
+		if (Files.isDirectory(directory)) {
+			try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, PREFIX + "*" + SUFFIX)) {
+				for (Path path : stream) {
+					paths.add(path);
+				}
+			}
+		}
+		Collections.sort(paths);
+
+		Map<Integer, Driver> drivers = new LinkedHashMap<Integer, Driver>();
+		Map<Long, PendingBooking> bookings = new LinkedHashMap<Long, PendingBooking>();
+		long records = 0, torn = 0, nextSegment = 0;
+
+		for (Path path : paths) {
+			String name = path.getFileName().toString();
+			nextSegment = Math.max(nextSegment, 1 + Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length())));
+			try (FileChannel channel = FileChannel.open(path)) {
+				MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+				for (int at = 0; at + RECORD_SIZE <= buffer.capacity(); at += RECORD_SIZE) {
+					int checksum = buffer.getInt(at + CHECKSUM);
+					Type type = Type.fromCode(buffer.get(at + TYPE));
+					if (checksum == 0 && type == null) {
+						//never claimed, or claimed and never written
+						continue;
+					}
+					if (type == null || checksum != checksum(buffer, at)) {
+						torn++;
+						continue;
+					}
+					records++;
+					long key = buffer.getLong(at + KEY);
+					switch (type) {
+					case DRIVER_IDLE:
+						drivers.put(buffer.getInt(at + PERSON_ID), new Driver(readName(buffer, at + NAME, buffer.get(at + NAME_LENGTH)),
+								buffer.getInt(at + MAX_SLEEP), buffer.getFloat(at + X), buffer.getFloat(at + Y)));
+						break;
+					case BOOKED:
+						bookings.put(key, new PendingBooking(new Passenger(readName(buffer, at + NAME, buffer.get(at + NAME_LENGTH)),
+								buffer.getInt(at + MAX_SLEEP), buffer.getFloat(at + X), buffer.getFloat(at + Y)),
+								readName(buffer, at + REGION, buffer.get(at + REGION_LENGTH)), priorityOf(buffer.get(at + PRIORITY))));
+						break;
+					case DRIVER_LEFT:
+						drivers.remove(buffer.getInt(at + PERSON_ID));
+						break;
+					case COMPLETED:
+					case CANCELLED:
+						bookings.remove(key);
+						break;
+					default:
+						break;
+					}
+				}
+			}
+		}
+		return new Recovery(directory, new ArrayList<Driver>(drivers.values()), new ArrayList<PendingBooking>(bookings.values()),
+				records, torn, nextSegment, paths);
+	}
+
+	private static String readName(ByteBuffer buffer, int at, byte length)
+	{
+		byte[] bytes = new byte[Math.min(NAME_BYTES, Math.max(0, length))];
+		for (int i = 0; i < bytes.length; i++) {
+			bytes[i] = buffer.get(at + i);
+		}
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+}
@@ -0,0 +1,102 @@
+package nuber.students;
+
+/**
+ * Latency histograms for each phase of a booking, kept per region.
+ *
+ * A booking's life is split at the timestamps it records: created (accepted by the region),
+ * admitted (given a position), driver acquired, picked up and arrived. Time spent queued
+ * for a position points at region saturation, time waiting for a driver at driver starvation.
+ *
+ * @author james
+ *
+ */
+public class BookingLatencies {
+
+	/**
+	 * The phases of a booking, each the time between two of its timestamps
+	 */
+	public enum Phase {
+		QUEUED("created to admitted"),
+		DRIVER_WAIT("admitted to driver acquired"),
+		PICKUP("driver acquired to picked up"),
+		TRIP("picked up to arrived"),
+		TOTAL("created to arrived");
+
+		public final String description;
+
+		Phase(String description)
+		{
+			this.description = description;
+		}
+	}
+
+	private final LatencyHistogram[] phases = new LatencyHistogram[Phase.values().length];
+
+	public BookingLatencies()
+	{
+		for (int i = 0; i < phases.length; i++) {
+			phases[i] = new LatencyHistogram();
+		}
+	}
+
+	/**
+	 * Records every phase of a booking that has arrived
+	 *
+	 * @param booking The booking, with all its timestamps set
+	 */
+	public void record(Booking booking)
+	{
+		phases[Phase.QUEUED.ordinal()].record(booking.admittedNanos - booking.createdNanos);
+		phases[Phase.DRIVER_WAIT.ordinal()].record(booking.driverAcquiredNanos - booking.admittedNanos);
+		phases[Phase.PICKUP.ordinal()].record(booking.pickedUpNanos - booking.driverAcquiredNanos);
+		phases[Phase.TRIP.ordinal()].record(booking.arrivedNanos - booking.pickedUpNanos);
+		phases[Phase.TOTAL.ordinal()].record(booking.arrivedNanos - booking.createdNanos);
+	}
+
+	/**
+	 * @param phase The phase wanted
+	 * @return The live histogram for that phase
+	 */
+	public LatencyHistogram get(Phase phase)
+	{
+		return phases[phase.ordinal()];
+	}
+
+	/**
+	 * Adds every latency recorded in another set of histograms to this one
+	 *
+	 * @param other The latencies to add
+	 */
+	public void add(BookingLatencies other)
+	{
+		for (int i = 0; i < phases.length; i++) {
+			phases[i].add(other.phases[i]);
+		}
+	}
+
+	/**
+	 * @return A copy whose histograms no longer change
+	 */
+	public BookingLatencies copy()
+	{
+		BookingLatencies copy = new BookingLatencies();
+		copy.add(this);
+		return copy;
+	}
+
+	/**
+	 * @return One line per phase with its count and percentiles
+	 */
+	@Override
+	public String toString()
+	{
+		StringBuilder builder = new StringBuilder();
+		for (Phase phase : Phase.values()) {
+			if (builder.length() > 0) {
+				builder.append('\n');
+			}
+			builder.append(String.format("%-12s", phase)).append(phases[phase.ordinal()]);
+		}
+		return builder.toString();
+	}
+}
@@ -0,0 +1,72 @@
+package nuber.students;
+
+/**
+ * The class of service a booking is made with.
+ *
+ * Regions start waiting bookings, and dispatch hands drivers to waiting bookings, earliest
+ * deadline first. A booking's deadline is the pickup deadline it was made with, but never later
+ * than the time it was accepted plus its class's maximum wait. A booking without a deadline of
+ * its own is due once its class's maximum wait is up.
+ *
+ * That cap is what ages bookings: a STANDARD booking that has waited its two seconds is due
+ * before a PREMIUM booking made a moment ago, so no class can be starved by another, however
+ * busy the region is. Ties go to the higher class, then to the booking accepted first.
+ *
+ * The maximum waits default to 100ms for PREMIUM, 500ms for ACCESSIBLE and 2000ms for STANDARD,
+ * and can be set at startup with -Dnuber.priority.premium.millis and so on.
+ *
+ * @author james
+ *
+ */
+public enum BookingPriority {
+	PREMIUM(100),
+	ACCESSIBLE(500),
+	STANDARD(2000);
+
+	private final long maxWaitNanos;
+
+	private BookingPriority(long defaultMaxWaitMillis)
+	{
+		long millis = Long.getLong("nuber.priority." + name().toLowerCase() + ".millis", defaultMaxWaitMillis);
+		this.maxWaitNanos = Math.max(0, millis) * 1_000_000;
+	}
+
+	/**
+	 * @return How long a booking of this class can wait before it is due, in nanoseconds
+	 */
+	public long getMaxWaitNanos()
+	{
+		return maxWaitNanos;
+	}
+
+	/**
+	 * Works out when a booking is due
+	 *
+	 * @param acceptedNanos System.nanoTime() when the region accepted the booking
+	 * @param pickupDeadlineNanos System.nanoTime() the passenger must be picked up by, or 0 for none
+	 * @return System.nanoTime() the booking is due by
+	 */
+	public long dueNanos(long acceptedNanos, long pickupDeadlineNanos)
+	{
+		long aged = acceptedNanos + maxWaitNanos;
+		return pickupDeadlineNanos == 0 || pickupDeadlineNanos - aged > 0 ? aged : pickupDeadlineNanos;
+	}
+
+	/**
+	 * Orders two bookings, the one to serve first is less
+	 *
+	 * @return Negative if the first booking should be served first, positive if the second should
+	 */
+	static int compare(long dueNanos, BookingPriority priority, long sequence, long otherDueNanos, BookingPriority otherPriority,
+			long otherSequence)
+	{
+		if (dueNanos != otherDueNanos) {
+			//nanoTime can wrap, so compare the difference
+			return dueNanos - otherDueNanos < 0 ? -1 : 1;
+		}
+		if (priority != otherPriority) {
+			return priority.compareTo(otherPriority);
+		}
+		return Long.compare(sequence, otherSequence);
+	}
+}
@@ -0,0 +1,134 @@
+package nuber.students;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The binary protocol clients book through a BookingServer with.
+ *
+ * Frames are framed like PartitionProtocol's: a 4 byte length, a 1 byte type, then the type's
+ * fields, big-endian, with strings as a 2 byte length and UTF-8 bytes. A client can send as
+ * many BOOK frames as it likes without waiting, replies carry the request id they answer and
+ * come back in the order the bookings finish, not the order they were sent.
+ *
+ * Client to server:
+ * - BOOK: request id (long), priority ordinal (byte), pickup within ms (int, -1 for none), region, passenger name
+ *
+ * Server to client:
+ * - RESULT: request id (long), job id (int), driver id (int), trip duration ms (long)
+ * - REJECTED: request id (long), BookingRejectedException.Reason ordinal (byte)
+ * - FAILED: request id (long), message
+ *
+ * The helpers here let a client write requests into its own buffers and read replies out of
+ * them without allocating.
+ *
+ * @author james
+ *
+ */
+public final class BookingProtocol {
+
+	public static final byte BOOK = 1;
+	public static final byte RESULT = 2;
+	public static final byte REJECTED = 3;
+	public static final byte FAILED = 4;
+
+	private BookingProtocol()
+	{
+	}
+
+	/**
+	 * A reply read by readReply(), reused from one reply to the next
+	 */
+	public static class Reply {
+		public byte type;
+		public long requestId;
+		public int jobID;
+		public int driverId;
+		public long tripDuration;
+		//set for REJECTED
+		public BookingRejectedException.Reason reason;
+		//set for FAILED
+		public String message;
+	}
+
+	/**
+	 * Writes a BOOK frame
+	 *
+	 * @param buffer Where to write it, with room for the whole frame
+	 * @param requestId Echoed in the reply
+	 * @param region The region to book into
+	 * @param passenger The passenger's name
+	 * @param priority The booking's class of service
+	 * @param pickupWithinMillis How soon the passenger must be picked up, -1 for no deadline
+	 * @throws java.nio.BufferOverflowException if the frame doesn't fit
+	 */
+	public static void putBook(ByteBuffer buffer, long requestId, byte[] region, byte[] passenger, BookingPriority priority,
+			int pickupWithinMillis)
+	{
+		buffer.putInt(1 + 8 + 1 + 4 + 2 + region.length + 2 + passenger.length);
+		buffer.put(BOOK);
+		buffer.putLong(requestId);
+		buffer.put((byte) priority.ordinal());
+		buffer.putInt(pickupWithinMillis);
+		buffer.putShort((short) region.length);
+		buffer.put(region);
+		buffer.putShort((short) passenger.length);
+		buffer.put(passenger);
+	}
+
+	/**
+	 * @return A BOOK frame, ready to be written
+	 */
+	public static ByteBuffer book(long requestId, String region, String passenger, BookingPriority priority, int pickupWithinMillis)
+	{
+		byte[] regionBytes = region.getBytes(StandardCharsets.UTF_8);
+		byte[] passengerBytes = passenger.getBytes(StandardCharsets.UTF_8);
+		ByteBuffer buffer = ByteBuffer.allocate(PartitionProtocol.HEADER_BYTES + 18 + regionBytes.length + passengerBytes.length);
+		putBook(buffer, requestId, regionBytes, passengerBytes, priority, pickupWithinMillis);
+		return buffer.flip();
+	}
+
+	/**
+	 * Reads the next reply, if all of it has arrived
+	 *
+	 * @param buffer Bytes read from the server, ready to be read from. Its position moves past
+	 * the reply if there was one.
+	 * @param reply Filled in with the reply
+	 * @return False if the buffer doesn't hold a whole reply yet
+	 * @throws IllegalStateException if the buffer doesn't hold a reply
+	 */
+	public static boolean readReply(ByteBuffer buffer, Reply reply)
+	{
+		if (buffer.remaining() < PartitionProtocol.HEADER_BYTES) {
+			return false;
+		}
+		int at = buffer.position();
+		int length = buffer.getInt(at);
+		if (length < 1 || length > PartitionProtocol.MAX_FRAME_BYTES) {
+			throw new IllegalStateException("Bad reply length " + length);
+		}
+		if (buffer.remaining() < PartitionProtocol.HEADER_BYTES + length) {
+			return false;
+		}
+		buffer.getInt();
+		reply.type = buffer.get();
+		reply.requestId = buffer.getLong();
+		switch (reply.type) {
+		case RESULT:
+			reply.jobID = buffer.getInt();
+			reply.driverId = buffer.getInt();
+			reply.tripDuration = buffer.getLong();
+			break;
+		case REJECTED:
+			reply.reason = PartitionProtocol.reasonOf(buffer.get());
+			break;
+		case FAILED:
+			reply.message = PartitionProtocol.getString(buffer);
+			break;
+		default:
+			throw new IllegalStateException("Unknown reply type " + reply.type);
+		}
+		buffer.position(at + PartitionProtocol.HEADER_BYTES + length);
+		return true;
+	}
+}
@@ -0,0 +1,61 @@
+package nuber.students;
+
+/**
+ * Thrown when a region refuses a booking, or given as the cause of a booking's failed
+ * Future when the booking was shed from a full backlog.
+ * 
+ * @author james
+ *
+ */
+public class BookingRejectedException extends Exception {
+
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * Why a booking was refused
+	 */
+	public enum Reason {
+		/** The region has been told to shutdown */
+		SHUTDOWN,
+		/** The region's backlog was full and its policy is REJECT */
+		BACKLOG_FULL,
+		/** The booking was queued, then dropped to make room for a newer one */
+		SHED,
+		/** Dispatch has no region by that name or handle, or it has been removed */
+		NO_SUCH_REGION,
+		/** The booking was still queued, or waiting for a driver, when a deadline-bounded shutdown ran out of time */
+		CANCELLED,
+		/** Every slot in dispatch's BookingStore is in use by a booking in flight */
+		STORE_FULL,
+		/** The partition that owns the region couldn't be reached, or its connection was lost with the booking in flight */
+		PARTITION_UNAVAILABLE,
+		/** The booking waited dispatch's maximum for a driver without being given one */
+		DRIVER_TIMEOUT
+	}
+	
+	private final Reason reason;
+	private final String regionName;
+	
+	public BookingRejectedException(Reason reason, String regionName)
+	{
+		super("Booking rejected by " + regionName + ": " + reason);
+		this.reason = reason;
+		this.regionName = regionName;
+	}
+	
+	/**
+	 * @return Why the booking was refused
+	 */
+	public Reason getReason()
+	{
+		return reason;
+	}
+	
+	/**
+	 * @return The region that refused the booking
+	 */
+	public String getRegionName()
+	{
+		return regionName;
+	}
+}
@@ -0,0 +1,343 @@
+package nuber.students;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * An embedded network front-end for a dispatch: bookings come in over TCP, and each booking's
+ * result goes back on the connection it came in on as soon as the booking finishes.
+ *
+ * One selector thread serves every connection, so ten thousand idle or pipelining clients cost
+ * a few kilobytes each rather than a thread each. Bookings are made with NuberDispatch.offer(),
+ * so nothing waits on a Future or for room in a region, and results are sent from the booking's
+ * thread when the booking store reports them. A booking for a region whose backlog is full is
+ * refused with BACKLOG_FULL whatever the backlog policy, so one full region never stops the
+ * server reading the other clients. A connection speaks one of three protocols, picked from 
+ * its first bytes:
+ *
+ * - binary, see BookingProtocol. Requests are pipelined freely and replies come back as
+ *   bookings finish, matched by request id.
+ * - text lines, for telnet or scripts: "BOOK region passenger [priority [pickupWithinMillis]]",
+ *   answered "BOOKED jobID driverID tripMillis", "REJECTED reason" or "FAILED message".
+ *   "STATS" is answered with dispatch's stats on one line.
+ * - HTTP/1.1 GET, "/book?region=..&passenger=..[&priority=..][&pickupWithin=..]" or "/stats",
+ *   answered with the same text as the body, 200 when booked and 503 when rejected. Connections
+ *   are kept alive.
+ *
+ * Text and HTTP replies go back in request order, as HTTP pipelining needs, so a slow booking
+ * holds up the replies behind it on its connection. Binary clients don't wait on each other.
+ *
+ * A client that keeps sending without reading its replies stops being read once a megabyte of
+ * replies is waiting for it, and is read again when it has taken half of them.
+ *
+ * @author james
+ *
+ */
+public class BookingServer extends SelectorLoop {
+
+	/**
+	 * A text connection's requests and the replies waiting to go back in order
+	 */
+	private static class TextConnection {
+		final boolean http;
+		//the request line has been handled and its headers are being skipped
+		boolean inHeaders;
+		//selector thread only
+		long nextRequest;
+		//guarded by the TextConnection
+		long nextReply;
+		final Map<Long, String> ready = new HashMap<Long, String>();
+
+		TextConnection(boolean http)
+		{
+			this.http = http;
+		}
+	}
+
+	/**
+	 * A booking in flight, by its passenger's id
+	 */
+	private static class Pending {
+		final Connection connection;
+		//the binary request id, or the text request's place in line
+		final long requestId;
+		//null for a binary request
+		final TextConnection text;
+
+		Pending(Connection connection, long requestId, TextConnection text)
+		{
+			this.connection = connection;
+			this.requestId = requestId;
+			this.text = text;
+		}
+	}
+
+	//replies waiting to be written on a connection before it stops being read
+	private static final long MAX_QUEUED_BYTES = 1 << 20;
+
+	private final NuberDispatch dispatch;
+	private final int maxSleep;
+	private final InetSocketAddress address;
+	//passengers are made for each request, so their ids are unique in this process
+	private final ConcurrentHashMap<Integer, Pending> pending = new ConcurrentHashMap<Integer, Pending>();
+
+	/**
+	 * Starts serving bookings for a dispatch. The server opens the dispatch's booking store,
+	 * so the dispatch mustn't have one already.
+	 *
+	 * @param dispatch The dispatch to book into
+	 * @param port The loopback port to listen on, 0 for any
+	 * @param maxInFlight The most bookings in flight at once, more are rejected as STORE_FULL
+	 * @param maxSleep The maxSleep of the passengers made for requests, which bounds their trip time
+	 * @throws IOException if the port can't be listened on
+	 * @throws IllegalStateException if the dispatch already has a booking store
+	 */
+	public BookingServer(NuberDispatch dispatch, int port, int maxInFlight, int maxSleep) throws IOException
+	{
+		super("nuber-booking-server-" + port);
+		this.dispatch = dispatch;
+		this.maxSleep = maxSleep;
+		dispatch.openBookingStore(maxInFlight, this::bookingFinished);
+		this.address = listen(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+		start();
+	}
+
+	/**
+	 * @return The address the server is listening on
+	 */
+	public InetSocketAddress getAddress()
+	{
+		return address;
+	}
+
+	/**
+	 * @return How many bookings made through the server haven't finished
+	 */
+	public int getInFlight()
+	{
+		return pending.size();
+	}
+
+	@Override
+	protected boolean acceptsText()
+	{
+		return true;
+	}
+
+	//a client that sends bookings without reading the replies stops being read at 1MB behind
+	@Override
+	protected long maxQueuedBytes()
+	{
+		return MAX_QUEUED_BYTES;
+	}
+
+	@Override
+	protected void frame(Connection connection, byte type, ByteBuffer payload) throws IOException
+	{
+		if (type != BookingProtocol.BOOK) {
+			throw new IOException("Unknown request type " + type + " from " + connection.address);
+		}
+		long requestId = payload.getLong();
+		BookingPriority priority = PartitionProtocol.priorityOf(payload.get());
+		int pickupWithinMillis = payload.getInt();
+		String region = PartitionProtocol.getString(payload);
+		String passenger = PartitionProtocol.getString(payload);
+		book(connection, requestId, null, region, passenger, priority, pickupWithinMillis);
+	}
+
+	@Override
+	protected void line(Connection connection, String line) throws IOException
+	{
+		TextConnection text = (TextConnection) connection.context;
+		if (text == null) {
+			text = new TextConnection(line.endsWith(" HTTP/1.1") || line.endsWith(" HTTP/1.0"));
+			connection.context = text;
+		}
+		if (text.http) {
+			if (text.inHeaders) {
+				//a blank line ends the headers, the next line is the next request
+				text.inHeaders = !line.isEmpty();
+				return;
+			}
+			if (line.isEmpty()) {
+				return;
+			}
+			text.inHeaders = true;
+			http(connection, text, line);
+			return;
+		}
+
+		String[] words = line.trim().split("\\s+");
+		long request = text.nextRequest++;
+		if (words[0].equalsIgnoreCase("BOOK") && words.length >= 3) {
+			try {
+				BookingPriority priority = words.length > 3 ? BookingPriority.valueOf(words[3].toUpperCase()) : BookingPriority.STANDARD;
+				int pickupWithinMillis = words.length > 4 ? Integer.parseInt(words[4]) : -1;
+				book(connection, request, text, words[1], words[2], priority, pickupWithinMillis);
+			} catch (IllegalArgumentException e) {
+				reply(connection, text, request, "FAILED bad priority or pickup time");
+			}
+		} else if (words[0].equalsIgnoreCase("STATS")) {
+			reply(connection, text, request, dispatch.getStats().total.toString().replace('\n', ' '));
+		} else {
+			reply(connection, text, request, "FAILED expected BOOK region passenger [priority [pickupWithinMillis]] or STATS");
+		}
+	}
+
+	private void http(Connection connection, TextConnection text, String requestLine)
+	{
+		long request = text.nextRequest++;
+		String[] parts = requestLine.split(" ");
+		if (parts.length != 3 || !parts[0].equals("GET")) {
+			reply(connection, text, request, "405 Method Not Allowed", "FAILED only GET is served");
+			return;
+		}
+		int query = parts[1].indexOf('?');
+		String path = query < 0 ? parts[1] : parts[1].substring(0, query);
+		Map<String, String> params = new HashMap<String, String>();
+		if (query >= 0) {
+			for (String param : parts[1].substring(query + 1).split("&")) {
+				int equals = param.indexOf('=');
+				if (equals > 0) {
+					params.put(param.substring(0, equals), URLDecoder.decode(param.substring(equals + 1), StandardCharsets.UTF_8));
+				}
+			}
+		}
+		if (path.equals("/stats")) {
+			reply(connection, text, request, "200 OK", dispatch.getStats().total.toString().replace('\n', ' '));
+		} else if (!path.equals("/book")) {
+			reply(connection, text, request, "404 Not Found", "FAILED unknown path " + path);
+		} else if (params.get("region") == null || params.get("passenger") == null) {
+			reply(connection, text, request, "400 Bad Request", "FAILED region and passenger are needed");
+		} else {
+			try {
+				BookingPriority priority = BookingPriority.valueOf(params.getOrDefault("priority", "STANDARD").toUpperCase());
+				int pickupWithinMillis = Integer.parseInt(params.getOrDefault("pickupWithin", "-1"));
+				book(connection, request, text, params.get("region"), params.get("passenger"), priority, pickupWithinMillis);
+			} catch (IllegalArgumentException e) {
+				reply(connection, text, request, "400 Bad Request", "FAILED bad priority or pickupWithin");
+			}
+		}
+	}
+
+	private void book(Connection connection, long requestId, TextConnection text, String region, String name,
+			BookingPriority priority, int pickupWithinMillis)
+	{
+		Passenger passenger = new Passenger(name, maxSleep);
+		pending.put(passenger.id, new Pending(connection, requestId, text));
+		try {
+			dispatch.offer(passenger, dispatch.getRegionHandle(region), priority, pickupWithinMillis < 0 ? -1 : pickupWithinMillis * 1_000_000L);
+		} catch (BookingRejectedException e) {
+			respond(pending.remove(passenger.id), e.getReason(), null, 0, 0, 0);
+		}
+	}
+
+	//called on the booking's thread once its result is in the store
+	private void bookingFinished(BookingStore store, int slot)
+	{
+		Pending request = pending.remove(store.getPassengerId(slot));
+		if (request == null) {
+			return;
+		}
+		switch (store.getOutcome(slot)) {
+		case COMPLETED:
+			respond(request, null, null, store.getBookingId(slot), store.getDriverId(slot), store.getTripDuration(slot));
+			break;
+		case SHED:
+			respond(request, BookingRejectedException.Reason.SHED, null, 0, 0, 0);
+			break;
+		case CANCELLED:
+			respond(request, BookingRejectedException.Reason.CANCELLED, null, 0, 0, 0);
+			break;
+		case TIMED_OUT:
+			respond(request, BookingRejectedException.Reason.DRIVER_TIMEOUT, null, 0, 0, 0);
+			break;
+		default:
+			respond(request, null, "booking failed", 0, 0, 0);
+			break;
+		}
+	}
+
+	//sends a booking's reply in the connection's protocol. rejected if there's a reason, failed if there's a message.
+	private void respond(Pending request, BookingRejectedException.Reason reason, String failure, int jobID, int driverId, long tripDuration)
+	{
+		if (request.text == null) {
+			PartitionProtocol.FrameWriter frame;
+			if (reason != null) {
+				frame = new PartitionProtocol.FrameWriter(BookingProtocol.REJECTED).putLong(request.requestId).putByte(reason.ordinal());
+			} else if (failure != null) {
+				frame = new PartitionProtocol.FrameWriter(BookingProtocol.FAILED).putLong(request.requestId).putString(failure);
+			} else {
+				frame = new PartitionProtocol.FrameWriter(BookingProtocol.RESULT).putLong(request.requestId).putInt(jobID)
+						.putInt(driverId).putLong(tripDuration);
+			}
+			request.connection.send(frame.finish());
+		} else if (reason != null) {
+			reply(request.connection, request.text, request.requestId, "503 Service Unavailable", "REJECTED " + reason);
+		} else if (failure != null) {
+			reply(request.connection, request.text, request.requestId, "500 Internal Server Error", "FAILED " + failure);
+		} else {
+			reply(request.connection, request.text, request.requestId, "200 OK", "BOOKED " + jobID + " " + driverId + " " + tripDuration);
+		}
+	}
+
+	private void reply(Connection connection, TextConnection text, long request, String body)
+	{
+		reply(connection, text, request, "200 OK", body);
+	}
+
+	//queues a text reply and sends every reply that is now next in line
+	private void reply(Connection connection, TextConnection text, long request, String status, String body)
+	{
+		String reply;
+		if (text.http) {
+			int length = body.getBytes(StandardCharsets.UTF_8).length + 1;
+			reply = "HTTP/1.1 " + status + "\r\nContent-Type: text/plain\r\nContent-Length: " + length + "\r\n\r\n" + body + "\n";
+		} else {
+			reply = body + "\n";
+		}
+		synchronized (text) {
+			text.ready.put(request, reply);
+			String next;
+			while ((next = text.ready.remove(text.nextReply)) != null) {
+				connection.send(ByteBuffer.wrap(next.getBytes(StandardCharsets.UTF_8)));
+				text.nextReply++;
+			}
+		}
+	}
+
+	@Override
+	protected void closed(Connection connection)
+	{
+		//bookings from a client that has gone still run, their results have nowhere to go
+		pending.values().removeIf(request -> request.connection == connection);
+	}
+
+	/**
+	 * Runs a booking server until the process is stopped
+	 *
+	 * Arguments: port, regions as name:maxJobs pairs separated by commas, drivers, maxSleep
+	 */
+	public static void main(String[] args) throws Exception
+	{
+		int port = args.length > 0 ? Integer.parseInt(args[0]) : 7100;
+		HashMap<String, Integer> regions = PartitionServer.parseRegions(args.length > 1 ? args[1] : "North:1000,South:1000");
+		int drivers = args.length > 2 ? Integer.parseInt(args[2]) : 1000;
+		int maxSleep = args.length > 3 ? Integer.parseInt(args[3]) : 0;
+
+		NuberDispatch dispatch = new NuberDispatch(regions, false);
+		for (int i = 0; i < drivers; i++) {
+			dispatch.addDriver(new Driver("D-" + Person.getRandomName(), maxSleep));
+		}
+		BookingServer server = new BookingServer(dispatch, port, 1 << 16, maxSleep);
+		System.out.println("Booking server listening on " + server.getAddress() + " for " + regions.keySet() + " with " + drivers + " drivers");
+		Thread.currentThread().join();
+	}
+}
@@ -0,0 +1,319 @@
+package nuber.students;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Fixed-size storage for bookings made with NuberDispatch.submit(), which don't have a Future
+ * or a BookingResult.
+ *
+ * Each booking in flight holds a slot. A slot's state and result are kept in one primitive
+ * array per field rather than an object per booking, and the objects a region needs to run
+ * a booking are made the first time a slot is used and reused after that. Once every slot has
+ * been used once, making and finishing a booking allocates nothing here.
+ *
+ * When a booking finishes its result is written to its slot and the listener is called, on
+ * the booking's thread. The slot goes back to be reused as soon as the listener returns, so
+ * the listener must read what it needs from the slot before then, and should be quick.
+ *
+ * Free slots are kept in a lock-free stack, so taking and returning them never blocks.
+ * The capacity bounds how many submitted bookings can be in flight at once.
+ *
+ * @author james
+ *
+ */
+public class BookingStore {
+
+	private static final BookingPriority[] PRIORITIES = BookingPriority.values();
+	private static final Outcome[] OUTCOMES = Outcome.values();
+
+	/**
+	 * How a submitted booking finished
+	 */
+	public enum Outcome {
+		COMPLETED,
+		//dropped from a full backlog under SHED_OLDEST
+		SHED,
+		//cancelled by a deadline-bounded shutdown
+		CANCELLED,
+		FAILED,
+		//waited dispatch's maximum for a driver, see NuberDispatch.setMaxDriverWait()
+		TIMED_OUT
+	}
+
+	/**
+	 * Told about each submitted booking as it finishes
+	 */
+	public interface Listener {
+
+		/**
+		 * Called on the booking's thread once its result is in the store
+		 *
+		 * @param store The store, to read the result from
+		 * @param slot The booking's slot, only valid until this returns
+		 */
+		void bookingFinished(BookingStore store, int slot);
+	}
+
+	private final Listener listener;
+
+	//one entry per slot in each array
+	private final int[] bookingIds;
+	private final int[] regionHandles;
+	private final int[] passengerIds;
+	private final int[] driverIds;
+	private final byte[] priorities;
+	private final byte[] outcomes;
+	private final long[] requestedNanos;
+	private final long[] createdNanos;
+	private final long[] admittedNanos;
+	private final long[] driverAcquiredNanos;
+	private final long[] pickedUpNanos;
+	private final long[] arrivedNanos;
+
+	//the objects a region runs a slot's booking with, made on first use
+	private final NuberRegion.QueuedBooking[] entries;
+
+	//free slots as a stack linked through nextFree. the head is the top slot + 1, 0 when empty,
+	//in the low 32 bits and a count of changes in the high 32, so a slot taken and returned
+	//between another thread's read and its compareAndSet can't fool it.
+	private final int[] nextFree;
+	private final AtomicLong freeHead = new AtomicLong();
+
+	/**
+	 * Creates a store with every slot free
+	 *
+	 * @param capacity The most bookings that can be in flight at once
+	 * @param listener Told about each booking as it finishes
+	 */
+	public BookingStore(int capacity, Listener listener)
+	{
+		if (capacity < 1) {
+			throw new IllegalArgumentException("A booking store needs at least one slot, not " + capacity);
+		}
+		this.listener = listener;
+		this.bookingIds = new int[capacity];
+		this.regionHandles = new int[capacity];
+		this.passengerIds = new int[capacity];
+		this.driverIds = new int[capacity];
+		this.priorities = new byte[capacity];
+		this.outcomes = new byte[capacity];
+		this.requestedNanos = new long[capacity];
+		this.createdNanos = new long[capacity];
+		this.admittedNanos = new long[capacity];
+		this.driverAcquiredNanos = new long[capacity];
+		this.pickedUpNanos = new long[capacity];
+		this.arrivedNanos = new long[capacity];
+		this.entries = new NuberRegion.QueuedBooking[capacity];
+		this.nextFree = new int[capacity];
+		for (int slot = 0; slot < capacity; slot++) {
+			nextFree[slot] = slot - 1;
+		}
+		freeHead.set(capacity);
+	}
+
+	/**
+	 * @return The most bookings that can be in flight at once
+	 */
+	public int getCapacity()
+	{
+		return bookingIds.length;
+	}
+
+	/**
+	 * Takes a free slot
+	 *
+	 * @return The slot, or -1 if every slot is in use
+	 */
+	int acquire()
+	{
+		while (true) {
+			long head = freeHead.get();
+			int slot = (int) head - 1;
+			if (slot < 0) {
+				return -1;
+			}
+			long next = ((head >>> 32) + 1) << 32 | (nextFree[slot] + 1);
+			if (freeHead.compareAndSet(head, next)) {
+				return slot;
+			}
+		}
+	}
+
+	/**
+	 * Returns a slot to be reused
+	 */
+	void release(int slot)
+	{
+		while (true) {
+			long head = freeHead.get();
+			nextFree[slot] = (int) head - 1;
+			if (freeHead.compareAndSet(head, ((head >>> 32) + 1) << 32 | (slot + 1))) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * @return The region's reusable booking for a slot, made the first time the slot is used
+	 */
+	NuberRegion.QueuedBooking entry(int slot)
+	{
+		NuberRegion.QueuedBooking entry = entries[slot];
+		if (entry == null) {
+			entry = new NuberRegion.QueuedBooking(this, slot);
+			entries[slot] = entry;
+		}
+		return entry;
+	}
+
+	/**
+	 * Writes a finished booking's result to its slot and tells the listener. The caller 
+	 * frees the slot with release() once it is done with the slot's entry.
+	 *
+	 * @param slot The booking's slot
+	 * @param regionHandle The handle of the region that ran it
+	 * @param passenger The booking's passenger
+	 * @param priority The booking's class of service
+	 * @param requested System.nanoTime() the booking was asked for
+	 * @param booking The booking, or null if it never started
+	 * @param outcome How it finished
+	 */
+	void finish(int slot, int regionHandle, Passenger passenger, BookingPriority priority, long requested, Booking booking, 
+			Outcome outcome)
+	{
+		regionHandles[slot] = regionHandle;
+		passengerIds[slot] = passenger.id;
+		priorities[slot] = (byte) priority.ordinal();
+		outcomes[slot] = (byte) outcome.ordinal();
+		requestedNanos[slot] = requested;
+		if (booking != null) {
+			bookingIds[slot] = booking.jobID;
+			driverIds[slot] = booking.availableDriver == null ? -1 : booking.availableDriver.id;
+			createdNanos[slot] = booking.createdNanos;
+			admittedNanos[slot] = booking.admittedNanos;
+			driverAcquiredNanos[slot] = booking.driverAcquiredNanos;
+			pickedUpNanos[slot] = booking.pickedUpNanos;
+			arrivedNanos[slot] = booking.arrivedNanos;
+		} else {
+			bookingIds[slot] = -1;
+			driverIds[slot] = -1;
+			createdNanos[slot] = 0;
+			admittedNanos[slot] = 0;
+			driverAcquiredNanos[slot] = 0;
+			pickedUpNanos[slot] = 0;
+			arrivedNanos[slot] = 0;
+		}
+		try {
+			listener.bookingFinished(this, slot);
+		} catch (RuntimeException e) {
+			System.out.println("Booking store listener failed: " + e);
+		}
+	}
+
+	/**
+	 * @return The booking's ID, -1 if it finished before it started
+	 */
+	public int getBookingId(int slot)
+	{
+		return bookingIds[slot];
+	}
+
+	/**
+	 * @return The handle of the booking's region, see NuberDispatch.getRegionHandle()
+	 */
+	public int getRegionHandle(int slot)
+	{
+		return regionHandles[slot];
+	}
+
+	/**
+	 * @return The id of the booking's passenger
+	 */
+	public int getPassengerId(int slot)
+	{
+		return passengerIds[slot];
+	}
+
+	/**
+	 * @return The id of the booking's driver, -1 if it never got one
+	 */
+	public int getDriverId(int slot)
+	{
+		return driverIds[slot];
+	}
+
+	/**
+	 * @return The booking's class of service
+	 */
+	public BookingPriority getPriority(int slot)
+	{
+		return PRIORITIES[priorities[slot]];
+	}
+
+	/**
+	 * @return How the booking finished
+	 */
+	public Outcome getOutcome(int slot)
+	{
+		return OUTCOMES[outcomes[slot]];
+	}
+
+	/**
+	 * @return System.nanoTime() the booking was asked for, as given to NuberDispatch.submit(),
+	 * or when it was submitted if none was given. Latency measured from here includes any time
+	 * the caller spent behind schedule before it could submit.
+	 */
+	public long getRequestedNanos(int slot)
+	{
+		return requestedNanos[slot];
+	}
+	
+	/**
+	 * @return System.nanoTime() when the region accepted the booking, 0 if it never started
+	 */
+	public long getCreatedNanos(int slot)
+	{
+		return createdNanos[slot];
+	}
+
+	/**
+	 * @return System.nanoTime() when the booking got a position, 0 if it never started
+	 */
+	public long getAdmittedNanos(int slot)
+	{
+		return admittedNanos[slot];
+	}
+
+	/**
+	 * @return System.nanoTime() when the booking got its driver, 0 if it never did
+	 */
+	public long getDriverAcquiredNanos(int slot)
+	{
+		return driverAcquiredNanos[slot];
+	}
+
+	/**
+	 * @return System.nanoTime() when the passenger was picked up, 0 if they never were
+	 */
+	public long getPickedUpNanos(int slot)
+	{
+		return pickedUpNanos[slot];
+	}
+
+	/**
+	 * @return System.nanoTime() when the passenger arrived, 0 if they never did
+	 */
+	public long getArrivedNanos(int slot)
+	{
+		return arrivedNanos[slot];
+	}
+
+	/**
+	 * @return The trip duration in milliseconds, from the region accepting the booking to
+	 * arrival, as BookingResult.tripDuration has it. -1 if the booking didn't complete.
+	 */
+	public long getTripDuration(int slot)
+	{
+		return arrivedNanos[slot] == 0 ? -1 : (arrivedNanos[slot] - createdNanos[slot]) / 1_000_000;
+	}
+}
@@ -0,0 +1,260 @@
+package nuber.students;
+
+import java.util.Objects;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Publishes each BookingResult the moment its booking completes.
+ *
+ * Instead of holding a Future per booking and polling them, a monitor subscribes once and is
+ * handed results as they happen. Nothing is done per outstanding booking, so a million of them
+ * cost no more to watch than one.
+ *
+ * Each subscriber gets results only as fast as it request()s them. Results it hasn't asked for
+ * yet wait in its own buffer, so a slow subscriber never holds up a booking thread. A finished
+ * booking no longer counts against its region's backlog, so nothing else limits how many
+ * results can pile up for a subscriber that stops requesting. The buffer is bounded instead,
+ * by -Dnuber.completions.buffer (default 65536). A subscriber whose buffer overflows is 
+ * cancelled and gets onError(), rather than results being dropped without it knowing. Results
+ * are delivered on the common ForkJoinPool, one at a time per subscriber. Bookings that fail 
+ * or are shed have no result and aren't published.
+ *
+ * Once dispatch has been shut down and every region has finished its bookings, subscribers
+ * get onComplete() after their last result.
+ *
+ * @author james
+ *
+ */
+public class CompletionStream implements Flow.Publisher<BookingResult> {
+
+	/**
+	 * System property used to set how many undelivered results each subscriber can have
+	 */
+	public static final String BUFFER_PROPERTY = "nuber.completions.buffer";
+
+	private final Executor executor;
+	private final int bufferSize;
+
+	//copy on write, publishing only reads the array
+	private volatile Subscription[] subscriptions = new Subscription[0];
+	private boolean closed = false;
+
+	public CompletionStream()
+	{
+		this(ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * @param executor Runs the deliveries to subscribers
+	 */
+	public CompletionStream(Executor executor)
+	{
+		this(executor, Integer.getInteger(BUFFER_PROPERTY, 1 << 16));
+	}
+
+	/**
+	 * @param executor Runs the deliveries to subscribers
+	 * @param bufferSize How many undelivered results a subscriber can have before it is failed
+	 */
+	public CompletionStream(Executor executor, int bufferSize)
+	{
+		this.executor = executor;
+		this.bufferSize = Math.max(1, bufferSize);
+	}
+
+	/**
+	 * Subscribes to results of bookings that complete from now on
+	 */
+	@Override
+	public void subscribe(Flow.Subscriber<? super BookingResult> subscriber)
+	{
+		Objects.requireNonNull(subscriber);
+		Subscription subscription = new Subscription(subscriber);
+		subscriber.onSubscribe(subscription);
+		synchronized (this) {
+			if (!closed) {
+				Subscription[] current = subscriptions;
+				Subscription[] added = new Subscription[current.length + 1];
+				System.arraycopy(current, 0, added, 0, current.length);
+				added[current.length] = subscription;
+				subscriptions = added;
+				return;
+			}
+		}
+		subscription.complete();
+	}
+
+	/**
+	 * Hands a completed booking's result to every subscriber
+	 *
+	 * @param result The result
+	 */
+	public void publish(BookingResult result)
+	{
+		for (Subscription subscription : subscriptions) {
+			subscription.offer(result);
+		}
+	}
+
+	/**
+	 * Completes every subscriber once it has had its outstanding results. Later subscribers
+	 * are completed straight away.
+	 */
+	public void close()
+	{
+		Subscription[] current;
+		synchronized (this) {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			current = subscriptions;
+			subscriptions = new Subscription[0];
+		}
+		for (Subscription subscription : current) {
+			subscription.complete();
+		}
+	}
+
+	/**
+	 * @return The number of current subscribers
+	 */
+	public int getSubscriberCount()
+	{
+		return subscriptions.length;
+	}
+
+	private synchronized void remove(Subscription subscription)
+	{
+		Subscription[] current = subscriptions;
+		for (int i = 0; i < current.length; i++) {
+			if (current[i] == subscription) {
+				Subscription[] removed = new Subscription[current.length - 1];
+				System.arraycopy(current, 0, removed, 0, i);
+				System.arraycopy(current, i + 1, removed, i, current.length - i - 1);
+				subscriptions = removed;
+				return;
+			}
+		}
+	}
+
+	/**
+	 * One subscriber's buffer of results, delivered as it requests them
+	 */
+	private class Subscription implements Flow.Subscription, Runnable {
+
+		private final Flow.Subscriber<? super BookingResult> subscriber;
+		private final Queue<BookingResult> results = new ConcurrentLinkedQueue<BookingResult>();
+		private final AtomicLong requested = new AtomicLong();
+		//results in the queue, kept to bufferSize
+		private final AtomicInteger buffered = new AtomicInteger();
+
+		//non-zero while a delivery is scheduled or running, so only one runs at a time
+		private final AtomicInteger work = new AtomicInteger();
+		private volatile boolean completing = false;
+		private volatile boolean cancelled = false;
+		private volatile Throwable badRequest;
+		private volatile Throwable overflow;
+
+		Subscription(Flow.Subscriber<? super BookingResult> subscriber)
+		{
+			this.subscriber = subscriber;
+		}
+
+		@Override
+		public void request(long n)
+		{
+			if (n <= 0) {
+				badRequest = new IllegalArgumentException("request() must ask for at least one result, not " + n);
+			} else {
+				requested.getAndUpdate(current -> current + n < 0 ? Long.MAX_VALUE : current + n);
+			}
+			deliver();
+		}
+
+		@Override
+		public void cancel()
+		{
+			cancelled = true;
+			remove(this);
+			results.clear();
+		}
+
+		void offer(BookingResult result)
+		{
+			if (cancelled || overflow != null) {
+				return;
+			}
+			if (buffered.incrementAndGet() > bufferSize) {
+				buffered.decrementAndGet();
+				overflow = new IllegalStateException("Subscriber fell behind by more than " + bufferSize + " booking results");
+			} else {
+				results.add(result);
+			}
+			deliver();
+		}
+
+		void complete()
+		{
+			completing = true;
+			deliver();
+		}
+
+		private void deliver()
+		{
+			if (work.getAndIncrement() == 0) {
+				executor.execute(this);
+			}
+		}
+
+		//hands over as many results as have been requested, and completes the subscriber
+		//once it has them all. loops while more work came in during the delivery.
+		@Override
+		public void run()
+		{
+			int missed = 1;
+			do {
+				if (cancelled) {
+					return;
+				}
+				if (badRequest != null || overflow != null) {
+					cancel();
+					subscriber.onError(badRequest != null ? badRequest : overflow);
+					return;
+				}
+				long wanted = requested.get();
+				long sent = 0;
+				while (sent < wanted && !cancelled) {
+					BookingResult result = results.poll();
+					if (result == null) {
+						break;
+					}
+					buffered.decrementAndGet();
+					try {
+						subscriber.onNext(result);
+					} catch (Throwable t) {
+						cancel();
+						subscriber.onError(t);
+						return;
+					}
+					sent++;
+				}
+				if (sent > 0 && wanted != Long.MAX_VALUE) {
+					requested.addAndGet(-sent);
+				}
+				if (completing && results.isEmpty() && !cancelled) {
+					cancelled = true;
+					subscriber.onComplete();
+					return;
+				}
+				missed = work.addAndGet(-missed);
+			} while (missed != 0);
+		}
+	}
+}
@@ -0,0 +1,276 @@
+package nuber.students;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Forecasts each region's demand from its booking arrivals, so drivers can be sent to a region
+ * before a surge there instead of after it has started.
+ *
+ * Every tick the forecast counts the bookings each region accepted since the last tick, and
+ * folds that rate into two estimates. The recent rate decays exponentially, an arrival half a
+ * half-life ago counting half as much as one now. The time-of-day profile keeps a smoothed
+ * rate for each bucket of the day, so a surge that comes at the same time every day is known
+ * before it starts. A region's forecast is the larger of its recent rate and its profile for
+ * the bucket a lead time ahead.
+ *
+ * Forecast rate times the time a booking keeps its driver, pickup plus trip, is how many
+ * drivers the region will have busy. A region is short by that, plus its bookings already
+ * waiting for a driver, less its idle drivers. Dispatch then steers drivers towards the
+ * regions short the most: a booking's freed driver goes to the neediest region rather than
+ * back to its own, unless its own is short too, and the rebalancer keeps that many idle
+ * drivers in each region before moving any out.
+ *
+ * The forecast keeps running after dispatch is shutdown, while the regions work through the
+ * bookings they have, and stops once they have drained.
+ *
+ * Turned on with -Dnuber.forecast.millis, the tick. -Dnuber.forecast.halflife.millis sets the
+ * recent rate's half-life (default 5000), -Dnuber.forecast.bucket.millis and
+ * -Dnuber.forecast.buckets the profile's buckets (default 24 of an hour, local time), and
+ * -Dnuber.forecast.lead.millis how far ahead the profile is read (default a quarter bucket).
+ *
+ * @author james
+ *
+ */
+public class DemandForecast {
+
+	/**
+	 * System property used to set the tick in milliseconds, forecasting is off if it isn't set
+	 */
+	public static final String PROPERTY = "nuber.forecast.millis";
+
+	//weight of the latest tick in a profile bucket, and in the time a driver is kept
+	private static final double SMOOTHING = 0.3;
+
+	/**
+	 * What the forecast knows about a region
+	 */
+	private static class Estimate {
+		long at;
+		long accepted;
+		long finished;
+		long busyNanos;
+		double ratePerSecond = -1;
+		double meanBusyNanos = -1;
+		//bookings per second in each bucket of the day, -1 until the bucket has been seen
+		final double[] profile;
+		//read by the rebalancer and getReport(), written by the ticker
+		volatile double forecastPerSecond;
+		volatile int driversNeeded;
+		//drivers the region is short, each freed driver steered there takes one off
+		final AtomicInteger shortBy = new AtomicInteger();
+		final AtomicLong steeredIn = new AtomicLong();
+
+		Estimate(int buckets)
+		{
+			profile = new double[buckets];
+			Arrays.fill(profile, -1);
+		}
+	}
+
+	private final NuberDispatch dispatch;
+	private final long tickMillis;
+	private final double halfLifeNanos;
+	private final long bucketMillis;
+	private final int buckets;
+	private final long leadMillis;
+	private final ScheduledExecutorService ticker;
+
+	private final ConcurrentHashMap<NuberRegion, Estimate> estimates = new ConcurrentHashMap<NuberRegion, Estimate>();
+	//the regions short of drivers at the last tick, the shortest by most first
+	private volatile NuberRegion[] shortRegions = new NuberRegion[0];
+
+	/**
+	 * Creates a forecast configured from the nuber.forecast.* system properties
+	 *
+	 * @param dispatch The dispatch whose regions are forecast
+	 */
+	public DemandForecast(NuberDispatch dispatch)
+	{
+		this(dispatch, Long.getLong(PROPERTY, 500), Long.getLong("nuber.forecast.halflife.millis", 5000),
+				Long.getLong("nuber.forecast.bucket.millis", TimeUnit.HOURS.toMillis(1)), Integer.getInteger("nuber.forecast.buckets", 24),
+				Long.getLong("nuber.forecast.lead.millis", -1));
+	}
+
+	/**
+	 * Creates a forecast and starts its ticks
+	 *
+	 * @param dispatch The dispatch whose regions are forecast
+	 * @param tickMillis Time between forecasts in milliseconds
+	 * @param halfLifeMillis How long it takes an arrival to count half as much in the recent rate
+	 * @param bucketMillis How much of the day each profile bucket covers
+	 * @param buckets How many buckets make a day
+	 * @param leadMillis How far ahead to read the profile, negative for a quarter bucket
+	 */
+	public DemandForecast(NuberDispatch dispatch, long tickMillis, long halfLifeMillis, long bucketMillis, int buckets, long leadMillis)
+	{
+		this.dispatch = dispatch;
+		this.tickMillis = Math.max(1, tickMillis);
+		this.halfLifeNanos = Math.max(1, halfLifeMillis) * 1e6;
+		this.bucketMillis = Math.max(1, bucketMillis);
+		this.leadMillis = leadMillis < 0 ? this.bucketMillis / 4 : leadMillis;
+		this.buckets = Math.max(1, buckets);
+		this.ticker = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "nuber-demand-forecast");
+			thread.setDaemon(true);
+			return thread;
+		});
+		ticker.scheduleWithFixedDelay(this::tick, this.tickMillis, this.tickMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Stops forecasting. Drivers go back to their own regions again.
+	 */
+	public void shutdown()
+	{
+		ticker.shutdown();
+		shortRegions = new NuberRegion[0];
+	}
+
+	//an exception would cancel the scheduled ticks, so log it and carry on next tick.
+	private void tick()
+	{
+		try {
+			forecast(System.currentTimeMillis());
+		} catch (RuntimeException e) {
+			System.out.println("Demand forecast failed: " + e);
+		}
+	}
+
+	//the bucket of the local day a wall clock time falls in
+	private int bucketAt(long wallMillis)
+	{
+		long local = wallMillis + TimeZone.getDefault().getOffset(wallMillis);
+		return (int) (Math.floorMod(local, bucketMillis * buckets) / bucketMillis);
+	}
+
+	/**
+	 * Updates every region's estimates and works out which regions are short of drivers
+	 *
+	 * @param wallMillis The time of day to file this tick's arrivals under
+	 */
+	protected void forecast(long wallMillis)
+	{
+		NuberRegion[] regions = dispatch.regionRing;
+		estimates.keySet().retainAll(Arrays.asList(regions));
+		int bucket = bucketAt(wallMillis);
+		int ahead = bucketAt(wallMillis + leadMillis);
+
+		List<NuberRegion> needy = new ArrayList<NuberRegion>();
+		for (NuberRegion region : regions) {
+			long now = System.nanoTime();
+			long accepted = region.counters.getAccepted();
+			BookingLatencies latencies = region.latencies;
+			long finished = latencies.get(BookingLatencies.Phase.TOTAL).getCount();
+			long busyNanos = latencies.get(BookingLatencies.Phase.PICKUP).getTotal()
+					+ latencies.get(BookingLatencies.Phase.TRIP).getTotal();
+
+			Estimate estimate = estimates.computeIfAbsent(region, key -> new Estimate(buckets));
+			if (estimate.at != 0 && now > estimate.at) {
+				double arrivals = (accepted - estimate.accepted) * 1e9 / (now - estimate.at);
+				//decay by the time since the last tick, so a late tick isn't over-weighted
+				double kept = Math.pow(0.5, (now - estimate.at) / halfLifeNanos);
+				estimate.ratePerSecond = estimate.ratePerSecond < 0 ? arrivals : kept * estimate.ratePerSecond + (1 - kept) * arrivals;
+				estimate.profile[bucket] = smooth(estimate.profile[bucket], arrivals);
+				if (finished > estimate.finished) {
+					double busy = (double) (busyNanos - estimate.busyNanos) / (finished - estimate.finished);
+					estimate.meanBusyNanos = smooth(estimate.meanBusyNanos, busy);
+				}
+			}
+			estimate.at = now;
+			estimate.accepted = accepted;
+			estimate.finished = finished;
+			estimate.busyNanos = busyNanos;
+
+			//a shut down region still has bookings to find drivers for, its rate falls away by itself
+			if (estimate.ratePerSecond < 0 || estimate.meanBusyNanos < 0) {
+				estimate.shortBy.set(0);
+				continue;
+			}
+			estimate.forecastPerSecond = Math.max(estimate.ratePerSecond, estimate.profile[ahead]);
+			estimate.driversNeeded = (int) Math.ceil(estimate.forecastPerSecond * estimate.meanBusyNanos / 1e9);
+			long shortBy = estimate.driversNeeded + region.counters.getAwaitingDriver() - region.idleDrivers.size();
+			estimate.shortBy.set((int) Math.max(0, shortBy));
+			if (shortBy > 0) {
+				needy.add(region);
+			}
+		}
+		needy.sort((a, b) -> Integer.compare(estimates.get(b).shortBy.get(), estimates.get(a).shortBy.get()));
+		shortRegions = needy.toArray(new NuberRegion[0]);
+	}
+
+	private static double smooth(double smoothed, double latest)
+	{
+		return smoothed < 0 ? latest : SMOOTHING * latest + (1 - SMOOTHING) * smoothed;
+	}
+
+	/**
+	 * Picks the region a freed driver should wait in
+	 *
+	 * @param home The region the driver was freed in, or null for none
+	 * @return The region short of drivers the most, or home if home is short too or no region is
+	 */
+	NuberRegion steer(NuberRegion home)
+	{
+		NuberRegion[] candidates = shortRegions;
+		if (candidates.length == 0) {
+			return home;
+		}
+		if (home != null) {
+			Estimate own = estimates.get(home);
+			if (own != null && takeOne(own)) {
+				return home;
+			}
+		}
+		for (NuberRegion region : candidates) {
+			Estimate estimate = estimates.get(region);
+			if (region != home && !region.isRetired && estimate != null && takeOne(estimate)) {
+				estimate.steeredIn.incrementAndGet();
+				return region;
+			}
+		}
+		return home;
+	}
+
+	//counts a driver towards a region's shortfall, if it has one left
+	private static boolean takeOne(Estimate estimate)
+	{
+		return estimate.shortBy.getAndUpdate(shortBy -> shortBy > 0 ? shortBy - 1 : 0) > 0;
+	}
+
+	/**
+	 * @return How many idle drivers the region should keep for its forecast demand, 0 if it
+	 * hasn't been forecast yet
+	 */
+	int getDriversNeeded(NuberRegion region)
+	{
+		Estimate estimate = estimates.get(region);
+		return estimate == null ? 0 : estimate.driversNeeded;
+	}
+
+	/**
+	 * @return A one line summary of each region's forecast and the drivers steered to it
+	 */
+	public String getReport()
+	{
+		StringBuilder report = new StringBuilder("Demand forecast every " + tickMillis + "ms:");
+		for (NuberRegion region : dispatch.regionRing) {
+			Estimate estimate = estimates.get(region);
+			if (estimate == null) {
+				continue;
+			}
+			report.append(String.format(" %s %.1f/s recent, %.1f/s forecast, %d drivers needed, %d steered in;",
+					region.regionName, Math.max(0, estimate.ratePerSecond), estimate.forecastPerSecond, estimate.driversNeeded,
+					estimate.steeredIn.get()));
+		}
+		return report.toString();
+	}
+}
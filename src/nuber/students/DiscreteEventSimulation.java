@@ -0,0 +1,334 @@
+package nuber.students;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.PriorityQueue;
+import java.util.SplittableRandom;
+import java.util.function.Consumer;
+
+/**
+ * Runs the same booking flow as Simulation, but on a virtual clock instead of real threads.
+ * 
+ * Nothing sleeps. Every step of a booking (arrival, driver assigned, pickup complete, dropoff)
+ * is an event in a priority queue ordered by virtual time, and the clock jumps straight to the 
+ * next event. A day of bookings runs in seconds on one thread, which makes it usable for 
+ * capacity planning.
+ * 
+ * It is a FIFO model of dispatch, simpler than the threaded code:
+ * - each region runs at most its maxSimultaneousJobs bookings at once and queues the rest, 
+ *   without limit and first come first served
+ * - drivers come from one shared IdleDriverPool of the same kind as dispatch uses, so ANY and 
+ *   NEAREST matching behave the same (BATCHED falls back to NEAREST, there are no ticks in 
+ *   virtual time)
+ * - bookings waiting for a driver are served oldest first when a driver frees up
+ * - pickup time is Driver.pickUpTime() and travel time Passenger.getTravelTime()
+ * 
+ * Region backlog limits and policies, per-region driver pools with stealing and rebalancing, 
+ * and booking priorities served earliest due first are not modelled. Its numbers are for a 
+ * dispatch running with none of those, use Simulation to see their effect.
+ * 
+ * Every booking produces a BookingResult, whose tripDuration is the virtual time from the 
+ * booking arriving to the passenger being dropped off.
+ * 
+ * @author james
+ *
+ */
+public class DiscreteEventSimulation {
+
+	//event types, in the order they happen to a booking
+	private static final int ARRIVAL = 0;
+	private static final int DRIVER_ASSIGNED = 1;
+	private static final int PICKUP_COMPLETE = 2;
+	private static final int DROPOFF = 3;
+	
+	private static class SimRegion {
+		final String name;
+		final int maxSimultaneousJobs;
+		final ArrayDeque<SimBooking> queued = new ArrayDeque<SimBooking>();
+		int active = 0;
+		long completed = 0;
+		
+		SimRegion(String name, int maxSimultaneousJobs)
+		{
+			this.name = name;
+			this.maxSimultaneousJobs = maxSimultaneousJobs;
+		}
+	}
+	
+	private static class SimBooking {
+		final int jobID;
+		final SimRegion region;
+		final Passenger passenger;
+		final double createdAt;
+		Driver driver;
+		double driverAt;
+		
+		SimBooking(int jobID, SimRegion region, Passenger passenger, double createdAt)
+		{
+			this.jobID = jobID;
+			this.region = region;
+			this.passenger = passenger;
+			this.createdAt = createdAt;
+		}
+	}
+	
+	private static class Event implements Comparable<Event> {
+		final double time;
+		final long sequence;
+		final int type;
+		final SimBooking booking;
+		
+		Event(double time, long sequence, int type, SimBooking booking)
+		{
+			this.time = time;
+			this.sequence = sequence;
+			this.type = type;
+			this.booking = booking;
+		}
+		
+		//same time events run in the order they were scheduled
+		@Override
+		public int compareTo(Event other)
+		{
+			int byTime = Double.compare(time, other.time);
+			return byTime != 0 ? byTime : Long.compare(sequence, other.sequence);
+		}
+	}
+	
+	private final SimRegion[] regions;
+	private final int maxDrivers;
+	private final int maxPassengers;
+	private final int maxSleep;
+	private final double meanMillisBetweenArrivals;
+	private final DriverMatching matching;
+	private final SplittableRandom random;
+	private final Consumer<BookingResult> resultConsumer;
+	
+	private final PriorityQueue<Event> events = new PriorityQueue<Event>();
+	private final ArrayDeque<SimBooking> awaitingDriver = new ArrayDeque<SimBooking>();
+	private IdleDriverPool idleDrivers;
+	private long nextSequence = 0;
+	private double now = 0;
+	
+	//what the report is built from
+	private double[] waitForDriver;
+	private double[] totalDuration;
+	private int completed = 0;
+	private double driverBusyTime = 0;
+	
+	/**
+	 * Sets up a simulation. Nothing runs until run() is called.
+	 * 
+	 * @param regions The region names and maximum simultaneous active bookings allowed in that region
+	 * @param maxDrivers The number of drivers to create
+	 * @param maxPassengers The number of bookings to simulate
+	 * @param maxSleep The longest pickup (corner to corner) and the longest trip, in virtual milliseconds
+	 * @param arrivalsPerSecond Average booking arrivals per virtual second, spread over all regions
+	 * @param matching How idle drivers are chosen for bookings
+	 * @param seed Seed for arrival times, locations, trip times and region choices
+	 * @param resultConsumer Given every BookingResult as the booking completes, or null
+	 */
+	public DiscreteEventSimulation(HashMap<String, Integer> regions, int maxDrivers, int maxPassengers, int maxSleep, 
+			double arrivalsPerSecond, DriverMatching matching, long seed, Consumer<BookingResult> resultConsumer)
+	{
+		this.regions = new SimRegion[regions.size()];
+		int i = 0;
+		for (String name : regions.keySet().stream().sorted().toArray(String[]::new)) {
+			this.regions[i++] = new SimRegion(name, regions.get(name));
+		}
+		this.maxDrivers = maxDrivers;
+		this.maxPassengers = maxPassengers;
+		this.maxSleep = maxSleep;
+		this.meanMillisBetweenArrivals = 1000.0 / arrivalsPerSecond;
+		this.matching = matching == DriverMatching.BATCHED ? DriverMatching.NEAREST : matching;
+		this.random = new SplittableRandom(seed);
+		this.resultConsumer = resultConsumer;
+	}
+	
+	/**
+	 * Runs every booking to completion and prints a capacity report
+	 * 
+	 * @return The virtual time in milliseconds at which the last passenger was dropped off
+	 */
+	public double run()
+	{
+		long start = System.nanoTime();
+		
+		idleDrivers = matching.newPool();
+		for (int i = 0; i < maxDrivers; i++) {
+			idleDrivers.offer(new Driver("D-" + Person.getRandomName(), maxSleep, 
+					random.nextDouble(Person.CITY_SIZE), random.nextDouble(Person.CITY_SIZE)));
+		}
+		waitForDriver = new double[maxPassengers];
+		totalDuration = new double[maxPassengers];
+		
+		if (maxPassengers > 0) {
+			scheduleArrival(0, 1);
+		}
+		
+		while (!events.isEmpty()) {
+			Event event = events.poll();
+			now = event.time;
+			switch (event.type) {
+			case ARRIVAL:
+				arrive(event.booking);
+				break;
+			case DRIVER_ASSIGNED:
+				driverAssigned(event.booking);
+				break;
+			case PICKUP_COMPLETE:
+				schedule(event.booking.passenger.getTravelTime(), DROPOFF, event.booking);
+				break;
+			case DROPOFF:
+				dropOff(event.booking);
+				break;
+			default:
+				throw new IllegalStateException("Unknown event type " + event.type);
+			}
+		}
+		
+		printReport(System.nanoTime() - start);
+		return now;
+	}
+	
+	//the next booking arrives after an exponentially distributed gap, so arrivals are Poisson
+	private void scheduleArrival(double at, int jobID)
+	{
+		SimRegion region = regions[random.nextInt(regions.length)];
+		Passenger passenger = new Passenger("P-" + Person.getRandomName(), maxSleep, random);
+		events.add(new Event(at, nextSequence++, ARRIVAL, new SimBooking(jobID, region, passenger, at)));
+	}
+	
+	private void schedule(double delay, int type, SimBooking booking)
+	{
+		events.add(new Event(now + delay, nextSequence++, type, booking));
+	}
+	
+	private void arrive(SimBooking booking)
+	{
+		if (booking.jobID < maxPassengers) {
+			double gap = -Math.log(1 - random.nextDouble()) * meanMillisBetweenArrivals;
+			scheduleArrival(now + gap, booking.jobID + 1);
+		}
+		
+		SimRegion region = booking.region;
+		if (region.active < region.maxSimultaneousJobs) {
+			start(booking);
+		} else {
+			region.queued.add(booking);
+		}
+	}
+	
+	//the region has a free spot, so the booking asks for a driver
+	private void start(SimBooking booking)
+	{
+		booking.region.active++;
+		Driver driver = idleDrivers.poll(booking.passenger);
+		if (driver == null) {
+			awaitingDriver.add(booking);
+		} else {
+			booking.driver = driver;
+			schedule(0, DRIVER_ASSIGNED, booking);
+		}
+	}
+	
+	private void driverAssigned(SimBooking booking)
+	{
+		booking.driverAt = now;
+		int pickUpTime = booking.driver.pickUpTime(booking.passenger);
+		booking.driver.moveTo(booking.passenger.getX(), booking.passenger.getY());
+		schedule(pickUpTime, PICKUP_COMPLETE, booking);
+	}
+	
+	private void dropOff(SimBooking booking)
+	{
+		int index = completed++;
+		waitForDriver[index] = booking.driverAt - booking.createdAt;
+		totalDuration[index] = now - booking.createdAt;
+		driverBusyTime += now - booking.driverAt;
+		
+		SimRegion region = booking.region;
+		region.active--;
+		region.completed++;
+		
+		if (resultConsumer != null) {
+			resultConsumer.accept(new BookingResult(booking.jobID, booking.passenger, booking.driver, Math.round(now - booking.createdAt)));
+		}
+		
+		//the freed driver goes to the longest waiting booking, or back to the pool
+		SimBooking waiting = awaitingDriver.poll();
+		if (waiting != null) {
+			waiting.driver = booking.driver;
+			schedule(0, DRIVER_ASSIGNED, waiting);
+		} else {
+			idleDrivers.offer(booking.driver);
+		}
+		
+		SimBooking next = region.queued.poll();
+		if (next != null) {
+			start(next);
+		}
+	}
+	
+	private void printReport(long wallNanos)
+	{
+		Arrays.sort(waitForDriver, 0, completed);
+		Arrays.sort(totalDuration, 0, completed);
+		double hours = now / 3_600_000.0;
+		
+		System.out.println("Discrete event simulation: " + completed + " bookings, " + maxDrivers + " drivers, " 
+				+ regions.length + " regions, " + matching + " matching");
+		System.out.println(String.format("Virtual time %.1fs, simulated in %dms (%.0f bookings/s of wall time)", 
+				now / 1000, wallNanos / 1_000_000, completed / (wallNanos / 1e9)));
+		System.out.println(String.format("Throughput %.0f bookings/virtual hour, driver utilisation %.1f%%", 
+				hours == 0 ? 0 : completed / hours, now == 0 ? 0 : 100 * driverBusyTime / (now * maxDrivers)));
+		System.out.println(String.format("Wait for driver (ms): mean %.1f, p50 %.1f, p99 %.1f, max %.1f", 
+				mean(waitForDriver), percentile(waitForDriver, 0.5), percentile(waitForDriver, 0.99), percentile(waitForDriver, 1)));
+		System.out.println(String.format("Booking duration (ms): mean %.1f, p50 %.1f, p99 %.1f, max %.1f", 
+				mean(totalDuration), percentile(totalDuration, 0.5), percentile(totalDuration, 0.99), percentile(totalDuration, 1)));
+		for (SimRegion region : regions) {
+			System.out.println("  " + region.name + ": " + region.completed + " completed");
+		}
+	}
+	
+	private double mean(double[] sorted)
+	{
+		double sum = 0;
+		for (int i = 0; i < completed; i++) {
+			sum += sorted[i];
+		}
+		return completed == 0 ? 0 : sum / completed;
+	}
+	
+	private double percentile(double[] sorted, double fraction)
+	{
+		if (completed == 0) {
+			return 0;
+		}
+		int rank = (int) Math.ceil(fraction * completed) - 1;
+		return sorted[Math.max(0, Math.min(completed - 1, rank))];
+	}
+	
+	/**
+	 * Runs a discrete event simulation from the command line.
+	 * 
+	 * Arguments: drivers passengers maxSleep arrivalsPerSecond [matching] [seed]
+	 * with two regions, North and South, of 500 simultaneous bookings each.
+	 */
+	public static void main(String[] args)
+	{
+		int drivers = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+		int passengers = args.length > 1 ? Integer.parseInt(args[1]) : 1_000_000;
+		int maxSleep = args.length > 2 ? Integer.parseInt(args[2]) : 1000;
+		double arrivalsPerSecond = args.length > 3 ? Double.parseDouble(args[3]) : 1000;
+		DriverMatching matching = args.length > 4 ? DriverMatching.valueOf(args[4].toUpperCase()) : DriverMatching.ANY;
+		long seed = args.length > 5 ? Long.parseLong(args[5]) : 42;
+		
+		HashMap<String, Integer> regions = new HashMap<String, Integer>();
+		regions.put("North", 500);
+		regions.put("South", 500);
+		
+		new DiscreteEventSimulation(regions, drivers, passengers, maxSleep, arrivalsPerSecond, matching, seed, null).run();
+	}
+}
@@ -0,0 +1,159 @@
+package nuber.students;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * A point in time snapshot of dispatch's booking counts, per region and across all regions.
+ * 
+ * Returned by NuberDispatch.getStats(). Taking a snapshot only reads LongAdder counters, so
+ * a monitor can poll it every few milliseconds without slowing bookings down.
+ * 
+ * @author james
+ *
+ */
+public class DispatchStats {
+
+	/**
+	 * Counts for a single region, or the totals across all regions
+	 */
+	public static class RegionStats {
+		
+		public final String region;
+		public final long awaitingDriver;
+		public final long active;
+		public final long completed;
+		public final long rejected;
+		public final long bookingsIssued;
+		
+		/**
+		 * Bookings in the backlog waiting for a position, included in awaitingDriver
+		 */
+		public final long queued;
+		
+		/**
+		 * Bookings that have left the backlog and started
+		 */
+		public final long started;
+		
+		/**
+		 * Total time started bookings spent in the backlog
+		 */
+		public final long totalQueuedNanos;
+		
+		/**
+		 * Drivers idle in the region when the snapshot was taken
+		 */
+		public final long idleDrivers;
+		
+		/**
+		 * Bookings that took a driver from another region's idle drivers
+		 */
+		public final long stolen;
+		
+		/**
+		 * Idle drivers the rebalancer moved into the region
+		 */
+		public final long rebalancedIn;
+		
+		/**
+		 * Bookings cancelled before they got a driver
+		 */
+		public final long cancelled;
+		
+		/**
+		 * Bookings that waited the maximum for a driver without getting one
+		 */
+		public final long timedOut;
+		
+		/**
+		 * Bookings whose passenger was picked up after the booking's pickup deadline
+		 */
+		public final long missedDeadlines;
+		
+		/**
+		 * PREMIUM bookings picked up after their deadline, included in missedDeadlines
+		 */
+		public final long missedPremiumDeadlines;
+		
+		public RegionStats(String region, long awaitingDriver, long active, long completed, long rejected, long bookingsIssued,
+				long queued, long started, long totalQueuedNanos, long idleDrivers, long stolen, long rebalancedIn,
+				long cancelled, long timedOut, long missedDeadlines, long missedPremiumDeadlines)
+		{
+			this.region = region;
+			this.awaitingDriver = awaitingDriver;
+			this.active = active;
+			this.completed = completed;
+			this.rejected = rejected;
+			this.bookingsIssued = bookingsIssued;
+			this.queued = queued;
+			this.started = started;
+			this.totalQueuedNanos = totalQueuedNanos;
+			this.idleDrivers = idleDrivers;
+			this.stolen = stolen;
+			this.rebalancedIn = rebalancedIn;
+			this.cancelled = cancelled;
+			this.timedOut = timedOut;
+			this.missedDeadlines = missedDeadlines;
+			this.missedPremiumDeadlines = missedPremiumDeadlines;
+		}
+		
+		/**
+		 * @return Average time a started booking spent in the backlog, in milliseconds
+		 */
+		public double getMeanQueuedMillis()
+		{
+			return started == 0 ? 0 : totalQueuedNanos / 1e6 / started;
+		}
+		
+		@Override
+		public String toString()
+		{
+			return region + ": awaiting=" + awaitingDriver + ", active=" + active + ", completed=" + completed 
+					+ ", rejected=" + rejected + ", cancelled=" + cancelled + ", timed out=" + timedOut + ", issued=" + bookingsIssued + ", queued=" + queued 
+					+ ", idle drivers=" + idleDrivers + ", stolen=" + stolen + ", rebalanced in=" + rebalancedIn
+					+ ", missed deadlines=" + missedDeadlines + " (premium " + missedPremiumDeadlines + ")"
+					+ String.format(", mean queued %.1fms", getMeanQueuedMillis());
+		}
+	}
+	
+	/**
+	 * System.nanoTime() when the snapshot was taken
+	 */
+	public final long timestamp;
+	
+	/**
+	 * Booking IDs handed out so far, by every dispatch in this JVM
+	 */
+	public final long bookingIdsIssued;
+	
+	/**
+	 * Sum of all the regions' counts
+	 */
+	public final RegionStats total;
+	
+	/**
+	 * Counts for each region, by region name
+	 */
+	public final Map<String, RegionStats> regions;
+	
+	public DispatchStats(long timestamp, long bookingIdsIssued, RegionStats total, Map<String, RegionStats> regions)
+	{
+		this.timestamp = timestamp;
+		this.bookingIdsIssued = bookingIdsIssued;
+		this.total = total;
+		this.regions = Collections.unmodifiableMap(regions);
+	}
+	
+	@Override
+	public String toString()
+	{
+		StringBuilder builder = new StringBuilder();
+		builder.append("Booking IDs issued: ").append(bookingIdsIssued).append('\n');
+		builder.append(total);
+		for (RegionStats region : regions.values()) {
+			builder.append('\n').append("  ").append(region);
+		}
+		return builder.toString();
+	}
+}
@@ -0,0 +1,67 @@
+package nuber.students;
+
+/**
+ * What happened during NuberDispatch.shutdown(Duration): how the drain went, and what had to
+ * be cancelled when the deadline came first.
+ *
+ * @author james
+ *
+ */
+public class DrainReport {
+
+	/**
+	 * Whether every region finished its bookings before the deadline
+	 */
+	public final boolean drained;
+
+	/**
+	 * How long the shutdown took, in nanoseconds
+	 */
+	public final long elapsedNanos;
+
+	/**
+	 * Bookings that completed between the shutdown starting and it returning
+	 */
+	public final long completed;
+
+	/**
+	 * Bookings still waiting on a driver at the deadline, which were cancelled
+	 */
+	public final long waitingForDriver;
+
+	/**
+	 * Bookings still queued for a position at the deadline, which were cancelled
+	 */
+	public final long queued;
+
+	/**
+	 * Bookings with a driver still on their trip at the deadline, left to finish
+	 */
+	public final long inProgress;
+
+	public DrainReport(boolean drained, long elapsedNanos, long completed, long waitingForDriver, long queued, long inProgress)
+	{
+		this.drained = drained;
+		this.elapsedNanos = elapsedNanos;
+		this.completed = completed;
+		this.waitingForDriver = waitingForDriver;
+		this.queued = queued;
+		this.inProgress = inProgress;
+	}
+
+	/**
+	 * @return Every booking that was force-cancelled, queued or waiting for a driver
+	 */
+	public long getCancelled()
+	{
+		return waitingForDriver + queued;
+	}
+
+	@Override
+	public String toString()
+	{
+		return String.format("%s in %.1fms: completed=%d, cancelled=%d (waiting for a driver=%d, queued=%d), still on a trip=%d",
+				drained ? "Drained" : "Deadline reached", elapsedNanos / 1e6, completed, getCancelled(), waitingForDriver,
+				queued, inProgress);
+	}
+}
@@ -1,5 +1,10 @@
 package nuber.students;
 
+import java.util.SplittableRandom;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
 public class Driver extends Person {
 	
 	//Added by Aoto
@@ -11,9 +16,26 @@ public class Driver extends Person {
 		super(driverName, maxSleep);
 	}
 	
+	/**
+	 * Creates a driver starting at a location drawn from the given stream
+	 */
+	public Driver(String driverName, int maxSleep, SplittableRandom random)
+	{
+		super(driverName, maxSleep, random);
+	}
+	
+	/**
+	 * Creates a driver starting at the given location
+	 */
+	public Driver(String driverName, int maxSleep, double x, double y)
+	{
+		super(driverName, maxSleep, x, y);
+	}
+	
 	/**
 	 * Stores the provided passenger as the driver's current passenger and then
-	 * sleeps the thread for between 0-maxDelay milliseconds.
+	 * sleeps the thread for between 0-maxDelay milliseconds, depending on how far
+	 * away the passenger is. The driver ends up at the passenger's location.
 	 * 
 	 * @param newPassenger Passenger to collect
 	 * @throws InterruptedException
@@ -23,7 +45,7 @@ public class Driver extends Person {
 	{
 		passenger = newPassenger;
 		int actualDelay;
-		actualDelay = randomWithRange(0, maxSleep); 
+		actualDelay = collect(newPassenger); 
 		Thread.sleep(actualDelay);
 	}
 
@@ -42,9 +64,57 @@ public class Driver extends Person {
 		Thread.sleep(travelTime);
 	}
 	
-	//add this since enable sleep.
-	private static int randomWithRange(int min, int max) {
-		int range = (max - min) + 1;
-		return (int) (Math.random() * range) + min;}
+	/**
+	 * Non-blocking version of pickUpPassenger(). Stores the passenger straight away and 
+	 * returns a future that the scheduler completes after the same 0-maxDelay milliseconds.
+	 * 
+	 * @param newPassenger Passenger to collect
+	 * @param scheduler Scheduler used to time the pickup
+	 * @return A future completed once the passenger has been collected
+	 */
+	public CompletableFuture<Void> pickUpPassengerAsync(Passenger newPassenger, ScheduledExecutorService scheduler)
+	{
+		passenger = newPassenger;
+		return completeAfter(collect(newPassenger), scheduler);
+	}
+	
+	/**
+	 * Non-blocking version of driveToDestination(), completed by the scheduler after the 
+	 * current passenger's getTravelTime()
+	 * 
+	 * @param scheduler Scheduler used to time the trip
+	 * @return A future completed once the passenger is at their destination
+	 */
+	public CompletableFuture<Void> driveToDestinationAsync(ScheduledExecutorService scheduler)
+	{
+		return completeAfter(passenger.getTravelTime(), scheduler);
+	}
+	
+	private static CompletableFuture<Void> completeAfter(long delay, ScheduledExecutorService scheduler)
+	{
+		CompletableFuture<Void> done = new CompletableFuture<Void>();
+		scheduler.schedule(() -> done.complete(null), delay, TimeUnit.MILLISECONDS);
+		return done;
+	}
+	
+	/**
+	 * How long it takes this driver to reach a passenger. Crossing the whole city 
+	 * corner to corner takes maxSleep milliseconds.
+	 * 
+	 * @param waitingPassenger The passenger to drive to
+	 * @return The pickup time in milliseconds
+	 */
+	public int pickUpTime(Passenger waitingPassenger)
+	{
+		return (int) Math.round(maxSleep * distanceTo(waitingPassenger) / MAX_DISTANCE);
+	}
+	
+	//works out the pickup time, then moves the driver to the passenger.
+	private int collect(Passenger newPassenger)
+	{
+		int delay = pickUpTime(newPassenger);
+		moveTo(newPassenger.getX(), newPassenger.getY());
+		return delay;
+	}
 	
 }
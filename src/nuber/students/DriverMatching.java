@@ -0,0 +1,57 @@
+package nuber.students;
+
+/**
+ * How dispatch picks which idle driver a booking gets.
+ * 
+ * ANY hands out whichever idle driver is quickest to get at, from the striped DriverPool.
+ * 
+ * NEAREST hands each booking the idle driver closest to its passenger, from a GridDriverPool,
+ * which keeps pickup times (and so the passenger's wait) as short as the fleet allows.
+ * 
+ * BATCHED holds bookings for a short tick and then assigns drivers to the whole batch at once
+ * with the least total pickup distance, see BatchMatcher.
+ * 
+ * The policy is picked at startup with -Dnuber.matching=any|nearest|batched (default is any).
+ * 
+ * @author james
+ *
+ */
+public enum DriverMatching {
+	ANY,
+	NEAREST,
+	BATCHED;
+
+	/**
+	 * System property used to choose the policy at startup
+	 */
+	public static final String PROPERTY = "nuber.matching";
+
+	/**
+	 * Reads the policy from the nuber.matching system property, falling back to ANY
+	 * 
+	 * @return The matching policy to use
+	 */
+	public static DriverMatching fromSystemProperty()
+	{
+		String value = System.getProperty(PROPERTY, "any");
+		try {
+			return DriverMatching.valueOf(value.trim().toUpperCase());
+		} catch (IllegalArgumentException e) {
+			System.out.println("Unknown " + PROPERTY + " value '" + value + "', using ANY");
+			return ANY;
+		}
+	}
+
+	/**
+	 * Creates the idle driver pool for this policy
+	 * 
+	 * @return A new, empty pool
+	 */
+	public IdleDriverPool newPool()
+	{
+		if (this == NEAREST) {
+			return new GridDriverPool();
+		}
+		return new DriverPool();
+	}
+}
@@ -0,0 +1,188 @@
+package nuber.students;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The pool of idle drivers held by dispatch.
+ * 
+ * Drivers are spread over a number of stripes (one per CPU by default) so threads adding and 
+ * taking drivers mostly touch different queues. A thread always starts at its own stripe, and 
+ * steals from the other stripes only when its own is empty. The pool is unbounded, so adding a
+ * driver never blocks.
+ * 
+ * Each stripe is an ArrayDeque guarded by its own monitor. With threads spread over the stripes 
+ * the monitor is almost never contended, and unlike a linked queue, adding a driver doesn't 
+ * allocate a node, so drivers coming and going make no garbage.
+ * 
+ * Each stripe keeps its own count, so poll() skips empty stripes without locking them and 
+ * nothing is shared by every offer and poll. Only take() parks, on a lock that offer() touches
+ * only while a taker is waiting.
+ * 
+ * Drivers are handed out in no particular order, the passenger is ignored when choosing one.
+ * 
+ * @author james
+ *
+ */
+public class DriverPool implements IdleDriverPool {
+
+	/**
+	 * One queue of drivers and its count, the count is only written under the stripe's monitor
+	 */
+	private static final class Stripe {
+		final ArrayDeque<Driver> drivers = new ArrayDeque<Driver>();
+		volatile int size = 0;
+	}
+	
+	private final Stripe[] stripes;
+	private final int stripeMask;
+	
+	//take() waits here for a driver. takersWaiting is raised before a taker's last look at the
+	//stripes, and offer() checks it after adding, so a taker about to park is always signalled.
+	private final ReentrantLock takeLock = new ReentrantLock();
+	private final Condition driverAdded = takeLock.newCondition();
+	private volatile int takersWaiting = 0;
+	
+	/**
+	 * Creates a pool with one stripe per available processor
+	 */
+	public DriverPool()
+	{
+		this(Runtime.getRuntime().availableProcessors());
+	}
+	
+	/**
+	 * Creates a pool with at least the given number of stripes, rounded up to a power of two
+	 * 
+	 * @param minStripes The minimum number of stripes to use
+	 */
+	public DriverPool(int minStripes)
+	{
+		int count = 1;
+		while (count < minStripes) {
+			count <<= 1;
+		}
+		stripes = new Stripe[count];
+		for (int i = 0; i < count; i++) {
+			stripes[i] = new Stripe();
+		}
+		stripeMask = count - 1;
+	}
+	
+	/**
+	 * Adds a driver to the calling thread's stripe. Never blocks.
+	 * 
+	 * @param driver The idle driver
+	 */
+	@Override
+	public void offer(Driver driver)
+	{
+		Stripe stripe = stripes[homeStripe()];
+		synchronized (stripe) {
+			stripe.drivers.addLast(driver);
+			stripe.size++;
+		}
+		if (takersWaiting > 0) {
+			takeLock.lock();
+			try {
+				driverAdded.signal();
+			} finally {
+				takeLock.unlock();
+			}
+		}
+	}
+	
+	/**
+	 * Removes an idle driver if one is available, without blocking
+	 * 
+	 * @return A driver, or null if the pool is empty
+	 */
+	@Override
+	public Driver poll()
+	{
+		int home = homeStripe();
+		for (int i = 0; i < stripes.length; i++) {
+			Stripe stripe = stripes[(home + i) & stripeMask];
+			if (stripe.size == 0) {
+				continue;
+			}
+			synchronized (stripe) {
+				Driver driver = stripe.drivers.pollFirst();
+				if (driver != null) {
+					stripe.size--;
+					return driver;
+				}
+			}
+		}
+		return null;
+	}
+	
+	/**
+	 * Removes an idle driver, waiting until one is added if the pool is empty
+	 * 
+	 * @return A driver
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	@Override
+	public Driver take() throws InterruptedException
+	{
+		Driver driver = poll();
+		if (driver != null) {
+			return driver;
+		}
+		takeLock.lockInterruptibly();
+		try {
+			takersWaiting++;
+			try {
+				while ((driver = poll()) == null) {
+					driverAdded.await();
+				}
+			} finally {
+				takersWaiting--;
+			}
+		} finally {
+			takeLock.unlock();
+		}
+		return driver;
+	}
+	
+	@Override
+	public Driver poll(Passenger passenger)
+	{
+		return poll();
+	}
+	
+	@Override
+	public Driver take(Passenger passenger) throws InterruptedException
+	{
+		return take();
+	}
+	
+	/**
+	 * @return The number of idle drivers in the pool, exact only while nothing is being added or taken
+	 */
+	@Override
+	public int size()
+	{
+		int size = 0;
+		for (Stripe stripe : stripes) {
+			size += stripe.size;
+		}
+		return size;
+	}
+	
+	/**
+	 * @return The number of stripes the pool is split into
+	 */
+	public int stripeCount()
+	{
+		return stripes.length;
+	}
+	
+	private int homeStripe()
+	{
+		long id = Thread.currentThread().getId();
+		return Long.hashCode(id * 0x9E3779B97F4A7C15L) & stripeMask;
+	}
+}
@@ -0,0 +1,151 @@
+package nuber.students;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Moves idle drivers between regions, towards the regions with bookings waiting.
+ *
+ * Each region keeps its own idle drivers, and a booking only steals from another region once
+ * its own region has none. Stealing is done one booking at a time, so a region with a backlog
+ * keeps reaching into its neighbours while drivers sit idle in quiet regions. Every tick the
+ * rebalancer works out each region's surplus, idle drivers less bookings waiting for a driver,
+ * and moves drivers from the regions with the biggest surplus to the regions short of drivers.
+ * With a DemandForecast, each region also keeps the drivers its forecast demand needs, so idle
+ * drivers move to a region before its bookings start waiting.
+ *
+ * The tick is set with -Dnuber.rebalance.millis (default 200), 0 turns rebalancing off.
+ *
+ * @author james
+ *
+ */
+public class DriverRebalancer {
+
+	/**
+	 * System property used to set the tick in milliseconds
+	 */
+	public static final String PROPERTY = "nuber.rebalance.millis";
+
+	private final NuberDispatch dispatch;
+	private final long tickMillis;
+	private final ScheduledExecutorService ticker;
+
+	/**
+	 * Creates a rebalancer ticking at the interval given by the nuber.rebalance.millis system property
+	 *
+	 * @param dispatch The dispatch whose regions' idle drivers are moved
+	 */
+	public DriverRebalancer(NuberDispatch dispatch)
+	{
+		this(dispatch, Long.getLong(PROPERTY, 200));
+	}
+
+	/**
+	 * Creates a rebalancer and starts its ticks, unless tickMillis is 0 or less
+	 *
+	 * @param dispatch The dispatch whose regions' idle drivers are moved
+	 * @param tickMillis Time between rebalances in milliseconds, 0 for none
+	 */
+	public DriverRebalancer(NuberDispatch dispatch, long tickMillis)
+	{
+		this.dispatch = dispatch;
+		this.tickMillis = tickMillis;
+		if (tickMillis <= 0) {
+			this.ticker = null;
+			return;
+		}
+		this.ticker = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "nuber-driver-rebalancer");
+			thread.setDaemon(true);
+			return thread;
+		});
+		ticker.scheduleWithFixedDelay(this::tick, tickMillis, tickMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * @return The time between rebalances in milliseconds, 0 or less if rebalancing is off
+	 */
+	public long getTickMillis()
+	{
+		return tickMillis;
+	}
+
+	/**
+	 * Stops rebalancing. Bookings can still steal drivers from other regions.
+	 */
+	public void shutdown()
+	{
+		if (ticker != null) {
+			ticker.shutdown();
+		}
+	}
+
+	//an exception would cancel the scheduled ticks, so log it and carry on next tick.
+	private void tick()
+	{
+		try {
+			rebalance();
+		} catch (RuntimeException e) {
+			System.out.println("Driver rebalancing failed: " + e);
+		}
+	}
+
+	/**
+	 * Runs one rebalance
+	 *
+	 * @return How many drivers were moved
+	 */
+	protected int rebalance()
+	{
+		NuberRegion[] regions = dispatch.regionRing;
+		DemandForecast forecast = dispatch.forecast;
+		long[] surplus = new long[regions.length];
+		for (int i = 0; i < regions.length; i++) {
+			surplus[i] = regions[i].idleDrivers.size() - regions[i].counters.getAwaitingDriver();
+			if (forecast != null) {
+				surplus[i] -= forecast.getDriversNeeded(regions[i]);
+			}
+		}
+
+		int moved = 0;
+		while (true) {
+			int shortest = -1;
+			int longest = -1;
+			for (int i = 0; i < regions.length; i++) {
+				if (surplus[i] < 0 && (shortest < 0 || surplus[i] < surplus[shortest])) {
+					shortest = i;
+				}
+				if (surplus[i] > 0 && (longest < 0 || surplus[i] > surplus[longest])) {
+					longest = i;
+				}
+			}
+			if (shortest < 0 || longest < 0) {
+				break;
+			}
+
+			int wanted = (int) Math.min(-surplus[shortest], surplus[longest]);
+			int given = 0;
+			for (; given < wanted; given++) {
+				Driver driver = regions[longest].idleDrivers.poll();
+				if (driver == null) {
+					break;
+				}
+				regions[shortest].idleDrivers.offer(driver);
+			}
+			if (given > 0) {
+				regions[shortest].counters.rebalancedIn(given);
+				moved += given;
+			}
+			surplus[shortest] += given;
+			//drivers taken since the sizes were read leave the donor with nothing more to give
+			surplus[longest] = given < wanted ? 0 : surplus[longest] - given;
+		}
+
+		//bookings already waiting for a driver can use the moved drivers straight away
+		if (moved > 0 && dispatch.driverWaiterCount > 0) {
+			dispatch.handOffIdleDrivers();
+		}
+		return moved;
+	}
+}
@@ -0,0 +1,282 @@
+package nuber.students;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Asynchronous booking event log.
+ * 
+ * Booking threads don't format or print anything. Each event is written into a preallocated
+ * ring buffer as a handful of primitives (booking ID, driver and passenger IDs, event code and
+ * System.nanoTime()), and a single background thread formats them and writes them out in batches.
+ * 
+ * Each line written looks like
+ *     nanoTime bookingID:D driverID:P passengerID: message
+ * with "null" in place of a driver or passenger the booking doesn't have yet.
+ * 
+ * When the ring is full the FullPolicy decides what happens: DROP discards the event and counts
+ * it, BLOCK makes the booking thread wait for the writer to free a slot.
+ * 
+ * The async log is chosen with -Dnuber.log=async. -Dnuber.log.file sets where events go 
+ * (default nuber-events.log, "-" for standard output), -Dnuber.log.policy=drop|block (default drop)
+ * and -Dnuber.log.capacity the ring size (default 65536).
+ * 
+ * @author james
+ *
+ */
+public class EventLog implements AutoCloseable {
+
+	/**
+	 * What record() does when the ring is full
+	 */
+	public enum FullPolicy {
+		DROP,
+		BLOCK
+	}
+	
+	private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+	
+	//longest line: 20 digit time, 3 x 11 digit ids, the separators and the longest message
+	private static final int MAX_LINE = 128;
+	
+	private final int mask;
+	private final FullPolicy policy;
+	
+	private final long[] times;
+	private final int[] bookingIds;
+	private final int[] driverIds;
+	private final int[] passengerIds;
+	private final byte[] codes;
+	
+	//slot i holds sequence s once published[i] == s + 1. written with release semantics after
+	//the slot's fields, so the writer thread sees the fields once it sees the sequence.
+	private final AtomicLongArray published;
+	private final AtomicLong claimed = new AtomicLong(0);
+	private volatile long consumed = 0;
+	private final LongAdder dropped = new LongAdder();
+	
+	private final WritableByteChannel out;
+	private final boolean closeOut;
+	private final ByteBuffer buffer = ByteBuffer.allocate(WRITE_BUFFER_SIZE);
+	private final Thread writer;
+	private volatile boolean running = true;
+	
+	/**
+	 * Creates a log configured from the nuber.log.* system properties
+	 * 
+	 * @return A new, running event log
+	 * @throws IOException if the log file can't be opened
+	 */
+	public static EventLog fromSystemProperties() throws IOException
+	{
+		String file = System.getProperty("nuber.log.file", "nuber-events.log");
+		int capacity = Integer.getInteger("nuber.log.capacity", 1 << 16);
+		String value = System.getProperty("nuber.log.policy", "drop");
+		FullPolicy policy;
+		try {
+			policy = FullPolicy.valueOf(value.trim().toUpperCase());
+		} catch (IllegalArgumentException e) {
+			System.out.println("Unknown nuber.log.policy value '" + value + "', using DROP");
+			policy = FullPolicy.DROP;
+		}
+		
+		if (file.equals("-")) {
+			return new EventLog(Channels.newChannel(System.out), false, capacity, policy);
+		}
+		return new EventLog(new FileOutputStream(file, true).getChannel(), true, capacity, policy);
+	}
+	
+	/**
+	 * Creates a log and starts its writer thread
+	 * 
+	 * @param out Where formatted events are written
+	 * @param closeOut Whether close() should also close out
+	 * @param capacity Ring size, rounded up to a power of two
+	 * @param policy What to do when the ring is full
+	 */
+	public EventLog(WritableByteChannel out, boolean closeOut, int capacity, FullPolicy policy)
+	{
+		int size = 1;
+		while (size < capacity) {
+			size <<= 1;
+		}
+		this.mask = size - 1;
+		this.policy = policy;
+		this.times = new long[size];
+		this.bookingIds = new int[size];
+		this.driverIds = new int[size];
+		this.passengerIds = new int[size];
+		this.codes = new byte[size];
+		this.published = new AtomicLongArray(size);
+		this.out = out;
+		this.closeOut = closeOut;
+		
+		this.writer = new Thread(this::writeEvents, "nuber-event-log");
+		writer.setDaemon(true);
+		writer.start();
+	}
+	
+	/**
+	 * Records an event. Never allocates, and only waits if the ring is full under BLOCK.
+	 * 
+	 * @param bookingId The booking's ID
+	 * @param driverId The driver's id, or -1 for none
+	 * @param passengerId The passenger's id, or -1 for none
+	 * @param event What happened
+	 */
+	public void record(int bookingId, int driverId, int passengerId, BookingEvent event)
+	{
+		long sequence;
+		if (policy == FullPolicy.DROP) {
+			do {
+				sequence = claimed.get();
+				if (sequence - consumed > mask || !running) {
+					dropped.increment();
+					return;
+				}
+			} while (!claimed.compareAndSet(sequence, sequence + 1));
+		} else {
+			sequence = claimed.getAndIncrement();
+			while (sequence - consumed > mask) {
+				LockSupport.parkNanos(1000);
+			}
+		}
+		
+		int slot = (int) sequence & mask;
+		times[slot] = System.nanoTime();
+		bookingIds[slot] = bookingId;
+		driverIds[slot] = driverId;
+		passengerIds[slot] = passengerId;
+		codes[slot] = event.code();
+		published.lazySet(slot, sequence + 1);
+	}
+	
+	/**
+	 * @return The number of events discarded because the ring was full
+	 */
+	public long getDropped()
+	{
+		return dropped.sum();
+	}
+	
+	/**
+	 * Waits until every event recorded so far has been written out
+	 */
+	public void flush()
+	{
+		long target = claimed.get();
+		while (consumed < target && writer.isAlive()) {
+			LockSupport.parkNanos(100_000);
+		}
+	}
+	
+	/**
+	 * Writes out everything recorded so far and stops the writer thread
+	 */
+	@Override
+	public void close()
+	{
+		running = false;
+		try {
+			writer.join();
+			if (closeOut) {
+				out.close();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (IOException e) {
+			System.out.println("Failed to close event log: " + e);
+		}
+	}
+	
+	//the writer thread. copies published events into the buffer and writes it out when it
+	//fills up, or as soon as there is nothing more to read.
+	private void writeEvents()
+	{
+		while (true) {
+			long sequence = consumed;
+			int slot = (int) sequence & mask;
+			
+			if (published.get(slot) == sequence + 1) {
+				if (buffer.remaining() < MAX_LINE) {
+					writeBuffer();
+				}
+				formatEvent(slot);
+				consumed = sequence + 1;
+			} else {
+				writeBuffer();
+				if (!running && sequence == claimed.get()) {
+					return;
+				}
+				LockSupport.parkNanos(100_000);
+			}
+		}
+	}
+	
+	private void formatEvent(int slot)
+	{
+		putNumber(times[slot]);
+		buffer.put((byte) ' ');
+		putNumber(bookingIds[slot]);
+		buffer.put((byte) ':');
+		putId('D', driverIds[slot]);
+		buffer.put((byte) ':');
+		putId('P', passengerIds[slot]);
+		buffer.put((byte) ':').put((byte) ' ');
+		buffer.put(BookingEvent.fromCode(codes[slot]).messageBytes);
+		buffer.put((byte) '\n');
+	}
+	
+	private void putId(char prefix, int id)
+	{
+		if (id < 0) {
+			buffer.put((byte) 'n').put((byte) 'u').put((byte) 'l').put((byte) 'l');
+		} else {
+			buffer.put((byte) prefix);
+			putNumber(id);
+		}
+	}
+	
+	//writes the decimal digits of a non-negative number without making a String
+	private void putNumber(long value)
+	{
+		if (value < 0) {
+			buffer.put((byte) '-');
+			value = -value;
+		}
+		int start = buffer.position();
+		do {
+			buffer.put((byte) ('0' + value % 10));
+			value /= 10;
+		} while (value > 0);
+		//digits went in backwards, swap them round
+		for (int i = start, j = buffer.position() - 1; i < j; i++, j--) {
+			byte digit = buffer.get(i);
+			buffer.put(i, buffer.get(j));
+			buffer.put(j, digit);
+		}
+	}
+	
+	private void writeBuffer()
+	{
+		if (buffer.position() == 0) {
+			return;
+		}
+		buffer.flip();
+		try {
+			while (buffer.hasRemaining()) {
+				out.write(buffer);
+			}
+		} catch (IOException e) {
+			System.out.println("Failed to write event log: " + e);
+		}
+		buffer.clear();
+	}
+}
@@ -0,0 +1,97 @@
+package nuber.students;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * How a NuberRegion runs its bookings.
+ * 
+ * FIXED uses a fixed thread pool sized to the region's maxSimultaneousJobs, so a booking
+ * that is waiting for a driver or sleeping through a trip holds one platform thread.
+ * 
+ * VIRTUAL starts one virtual thread per booking, and the region's count of active jobs is 
+ * what caps how many bookings can be active at once. Parked bookings then cost almost nothing.
+ * 
+ * ASYNC holds no thread at all. Each booking is a chain of CompletableFuture stages, driver
+ * acquisition completes when addDriver frees someone, and trips are timed by dispatch's scheduler.
+ * 
+ * The mode is picked at startup with -Dnuber.executor=fixed|virtual|async (default is fixed).
+ * Virtual threads are only in the JDK from 21, on older JDKs VIRTUAL runs as FIXED instead.
+ * 
+ * @author james
+ *
+ */
+public enum ExecutionMode {
+	FIXED,
+	VIRTUAL,
+	ASYNC;
+
+	/**
+	 * System property used to choose the mode at startup
+	 */
+	public static final String PROPERTY = "nuber.executor";
+
+	//looked up at runtime to keep the project building on older JDKs, null before 21
+	private static final Method VIRTUAL_THREAD_PER_TASK = virtualThreadPerTask();
+
+	private static Method virtualThreadPerTask()
+	{
+		try {
+			return Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+		} catch (NoSuchMethodException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Reads the mode from the nuber.executor system property, falling back to FIXED
+	 * 
+	 * @return The mode to run regions in
+	 */
+	public static ExecutionMode fromSystemProperty()
+	{
+		String value = System.getProperty(PROPERTY, "fixed");
+		try {
+			return ExecutionMode.valueOf(value.trim().toUpperCase()).supported();
+		} catch (IllegalArgumentException e) {
+			System.out.println("Unknown " + PROPERTY + " value '" + value + "', using FIXED");
+			return FIXED;
+		}
+	}
+
+	/**
+	 * Checks this mode can run on this JVM
+	 * 
+	 * @return This mode, or FIXED for VIRTUAL on a JDK without virtual threads
+	 */
+	public ExecutionMode supported()
+	{
+		if (this == VIRTUAL && VIRTUAL_THREAD_PER_TASK == null) {
+			System.out.println("Virtual threads are not available on this JVM, using FIXED instead of VIRTUAL");
+			return FIXED;
+		}
+		return this;
+	}
+
+	/**
+	 * Creates the executor a region uses to run its bookings
+	 * 
+	 * @param maxSimultaneousJobs The region's concurrency limit
+	 * @return A new executor for this mode, or null for ASYNC which runs without one
+	 */
+	public ExecutorService newExecutor(int maxSimultaneousJobs)
+	{
+		if (this == ASYNC) {
+			return null;
+		}
+		if (supported() == FIXED) {
+			return Executors.newFixedThreadPool(maxSimultaneousJobs);
+		}
+		try {
+			return (ExecutorService) VIRTUAL_THREAD_PER_TASK.invoke(null);
+		} catch (ReflectiveOperationException e) {
+			throw new IllegalStateException("Couldn't create a virtual thread per task executor", e);
+		}
+	}
+}
@@ -0,0 +1,202 @@
+package nuber.students;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * An idle driver pool that hands each passenger the nearest idle driver.
+ * 
+ * The city is split into a uniform grid of square cells, and each idle driver is kept in the 
+ * cell they are in. A search starts at the passenger's cell and works outwards one ring of cells 
+ * at a time, stopping as soon as no unvisited ring could hold a closer driver. With drivers spread
+ * over the city that visits a handful of cells, so the cost doesn't grow with the number of idle drivers.
+ * 
+ * A single lock guards the grid, and take() waits on it until a driver is added.
+ * 
+ * @author james
+ *
+ */
+public class GridDriverPool implements IdleDriverPool {
+
+	private final int cellsPerSide;
+	private final double cellSize;
+	private final ArrayDeque<Driver>[] cells;
+	
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition driverAdded = lock.newCondition();
+	private int size = 0;
+	
+	//where poll() without a passenger starts looking, moved on each time so drivers get turns.
+	private int anyCursor = 0;
+	
+	/**
+	 * Creates a pool over a 32 x 32 grid
+	 */
+	public GridDriverPool()
+	{
+		this(32);
+	}
+	
+	/**
+	 * Creates a pool over a grid with the given number of cells along each side of the city
+	 * 
+	 * @param cellsPerSide Number of cells along each side, at least 1
+	 */
+	public GridDriverPool(int cellsPerSide)
+	{
+		this.cellsPerSide = Math.max(1, cellsPerSide);
+		this.cellSize = Person.CITY_SIZE / this.cellsPerSide;
+		//there's no creating a generic array, only ArrayDeque<Driver>s are ever put in this one
+		@SuppressWarnings({"unchecked", "rawtypes"})
+		ArrayDeque<Driver>[] grid = new ArrayDeque[this.cellsPerSide * this.cellsPerSide];
+		this.cells = grid;
+		for (int i = 0; i < cells.length; i++) {
+			cells[i] = new ArrayDeque<Driver>();
+		}
+	}
+	
+	@Override
+	public void offer(Driver driver)
+	{
+		lock.lock();
+		try {
+			cells[cellIndex(column(driver.getX()), column(driver.getY()))].addLast(driver);
+			size++;
+			driverAdded.signal();
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	@Override
+	public Driver poll()
+	{
+		lock.lock();
+		try {
+			return size == 0 ? null : removeAny();
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	@Override
+	public Driver poll(Passenger passenger)
+	{
+		lock.lock();
+		try {
+			return size == 0 ? null : removeNearest(passenger.getX(), passenger.getY());
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	@Override
+	public Driver take() throws InterruptedException
+	{
+		lock.lockInterruptibly();
+		try {
+			while (size == 0) {
+				driverAdded.await();
+			}
+			return removeAny();
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	@Override
+	public Driver take(Passenger passenger) throws InterruptedException
+	{
+		lock.lockInterruptibly();
+		try {
+			while (size == 0) {
+				driverAdded.await();
+			}
+			return removeNearest(passenger.getX(), passenger.getY());
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	@Override
+	public int size()
+	{
+		lock.lock();
+		try {
+			return size;
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	//removes the driver closest to (x, y). caller holds the lock and size > 0.
+	private Driver removeNearest(double x, double y)
+	{
+		int column = column(x);
+		int row = column(y);
+		
+		ArrayDeque<Driver> bestCell = null;
+		Driver best = null;
+		double bestDistance = Double.MAX_VALUE;
+		
+		for (int ring = 0; ring < cellsPerSide; ring++) {
+			//everything in this ring and beyond is at least (ring - 1) cells away
+			if (best != null && bestDistance <= (ring - 1) * cellSize) {
+				break;
+			}
+			for (int dy = -ring; dy <= ring; dy++) {
+				int cellRow = row + dy;
+				if (cellRow < 0 || cellRow >= cellsPerSide) {
+					continue;
+				}
+				//inner rows only have the two cells on the ring's edge
+				int step = (dy == -ring || dy == ring) ? 1 : Math.max(1, 2 * ring);
+				for (int dx = -ring; dx <= ring; dx += step) {
+					int cellColumn = column + dx;
+					if (cellColumn < 0 || cellColumn >= cellsPerSide) {
+						continue;
+					}
+					ArrayDeque<Driver> cell = cells[cellIndex(cellColumn, cellRow)];
+					for (Driver driver : cell) {
+						double distance = Math.hypot(driver.getX() - x, driver.getY() - y);
+						if (distance < bestDistance) {
+							bestDistance = distance;
+							best = driver;
+							bestCell = cell;
+						}
+					}
+				}
+			}
+		}
+		
+		bestCell.remove(best);
+		size--;
+		return best;
+	}
+	
+	//removes the first driver found from the cursor onwards. caller holds the lock and size > 0.
+	private Driver removeAny()
+	{
+		for (int i = 0; i < cells.length; i++) {
+			int index = (anyCursor + i) % cells.length;
+			Driver driver = cells[index].pollFirst();
+			if (driver != null) {
+				anyCursor = (index + 1) % cells.length;
+				size--;
+				return driver;
+			}
+		}
+		throw new IllegalStateException("Driver count says " + size + " but the grid is empty");
+	}
+	
+	private int column(double coordinate)
+	{
+		return Math.min(cellsPerSide - 1, Math.max(0, (int) (coordinate / cellSize)));
+	}
+	
+	private int cellIndex(int column, int row)
+	{
+		return row * cellsPerSide + column;
+	}
+}
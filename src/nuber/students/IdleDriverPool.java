@@ -0,0 +1,56 @@
+package nuber.students;
+
+/**
+ * Where dispatch keeps its idle drivers.
+ * 
+ * Every method must be safe to call from multiple threads. Adding a driver never blocks.
+ * 
+ * @author james
+ *
+ */
+public interface IdleDriverPool {
+
+	/**
+	 * Adds an idle driver to the pool
+	 * 
+	 * @param driver The idle driver
+	 */
+	void offer(Driver driver);
+	
+	/**
+	 * Removes any idle driver, without blocking
+	 * 
+	 * @return A driver, or null if the pool is empty
+	 */
+	Driver poll();
+	
+	/**
+	 * Removes the best idle driver for a passenger, without blocking
+	 * 
+	 * @param passenger The passenger the driver is for
+	 * @return A driver, or null if the pool is empty
+	 */
+	Driver poll(Passenger passenger);
+	
+	/**
+	 * Removes any idle driver, waiting until one is added if the pool is empty
+	 * 
+	 * @return A driver
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	Driver take() throws InterruptedException;
+	
+	/**
+	 * Removes the best idle driver for a passenger, waiting until one is added if the pool is empty
+	 * 
+	 * @param passenger The passenger the driver is for
+	 * @return A driver
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	Driver take(Passenger passenger) throws InterruptedException;
+	
+	/**
+	 * @return The number of idle drivers in the pool
+	 */
+	int size();
+}
@@ -0,0 +1,173 @@
+package nuber.students;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A lock-free histogram of latencies in nanoseconds, with log-linear buckets like an HDR histogram.
+ *
+ * Values below 64ns get a bucket each. Above that every power of two is split into 32 equal
+ * buckets, so a value is never reported more than about 3% away from what was recorded,
+ * whether it is a microsecond or an hour. That is a fixed 1888 buckets for any long.
+ *
+ * Recording is one atomic increment on the value's bucket, so booking threads never block
+ * each other. Histograms can be added together, which is how the per-region histograms
+ * are combined into totals.
+ *
+ * @author james
+ *
+ */
+public class LatencyHistogram {
+
+	private static final int SUB_BUCKET_BITS = 5;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	private static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final LongAdder count = new LongAdder();
+	private final LongAdder total = new LongAdder();
+	private final AtomicLong max = new AtomicLong();
+
+	/**
+	 * Records one latency
+	 *
+	 * @param nanos The latency in nanoseconds, negative values are recorded as 0
+	 */
+	public void record(long nanos)
+	{
+		long value = Math.max(0, nanos);
+		counts.incrementAndGet(bucketOf(value));
+		count.increment();
+		total.add(value);
+		long seen;
+		while (value > (seen = max.get()) && !max.compareAndSet(seen, value)) {
+			//lost to another thread, check against its max
+		}
+	}
+
+	/**
+	 * Adds every latency recorded in another histogram to this one
+	 *
+	 * @param other The histogram to add
+	 */
+	public void add(LatencyHistogram other)
+	{
+		for (int i = 0; i < BUCKETS; i++) {
+			long n = other.counts.get(i);
+			if (n != 0) {
+				counts.addAndGet(i, n);
+			}
+		}
+		count.add(other.count.sum());
+		total.add(other.total.sum());
+		long otherMax = other.max.get();
+		long seen;
+		while (otherMax > (seen = max.get()) && !max.compareAndSet(seen, otherMax)) {
+			//lost to another thread, check against its max
+		}
+	}
+
+	/**
+	 * @return A copy of this histogram. Reading percentiles from a copy keeps them consistent
+	 * with each other while bookings keep recording into the original.
+	 */
+	public LatencyHistogram copy()
+	{
+		LatencyHistogram copy = new LatencyHistogram();
+		copy.add(this);
+		return copy;
+	}
+
+	/**
+	 * @return How many latencies have been recorded
+	 */
+	public long getCount()
+	{
+		return count.sum();
+	}
+
+	/**
+	 * @return The sum of every latency recorded, in nanoseconds
+	 */
+	public long getTotal()
+	{
+		return total.sum();
+	}
+
+	/**
+	 * @return The largest latency recorded, in nanoseconds
+	 */
+	public long getMax()
+	{
+		return max.get();
+	}
+
+	/**
+	 * @return The mean latency in nanoseconds, 0 if nothing has been recorded
+	 */
+	public double getMean()
+	{
+		long n = count.sum();
+		return n == 0 ? 0 : (double) total.sum() / n;
+	}
+
+	/**
+	 * Finds the latency that the given percentage of recorded latencies are at or below
+	 *
+	 * @param percentile The percentile, 0 to 100
+	 * @return The top of the bucket holding that latency in nanoseconds, never more than getMax()
+	 */
+	public long getValueAtPercentile(double percentile)
+	{
+		long n = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			n += counts.get(i);
+		}
+		if (n == 0) {
+			return 0;
+		}
+		long rank = Math.max(1, (long) Math.ceil(Math.min(100, percentile) / 100 * n));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += counts.get(i);
+			if (seen >= rank) {
+				return Math.min(highestValueIn(i), getMax());
+			}
+		}
+		return getMax();
+	}
+
+	/**
+	 * @return count, p50, p99, p99.9 and max, in milliseconds
+	 */
+	@Override
+	public String toString()
+	{
+		LatencyHistogram copy = copy();
+		return String.format("n=%d p50=%.2fms p99=%.2fms p999=%.2fms max=%.2fms", copy.getCount(),
+				copy.getValueAtPercentile(50) / 1e6, copy.getValueAtPercentile(99) / 1e6,
+				copy.getValueAtPercentile(99.9) / 1e6, copy.getMax() / 1e6);
+	}
+
+	//values under 2 * SUB_BUCKETS are their own bucket. above that, shift each value down until
+	//it has SUB_BUCKET_BITS + 1 bits, so the bucket is the shift and the bits below the top one.
+	static int bucketOf(long value)
+	{
+		if (value < 2 * SUB_BUCKETS) {
+			return (int) value;
+		}
+		int shift = (63 - Long.numberOfLeadingZeros(value)) - SUB_BUCKET_BITS;
+		return (shift + 1) * SUB_BUCKETS + (int) ((value >>> shift) - SUB_BUCKETS);
+	}
+
+	static long highestValueIn(int bucket)
+	{
+		if (bucket < 2 * SUB_BUCKETS) {
+			return bucket;
+		}
+		int shift = bucket / SUB_BUCKETS - 1;
+		long subBucket = bucket % SUB_BUCKETS + SUB_BUCKETS;
+		return ((subBucket + 1) << shift) - 1;
+	}
+}
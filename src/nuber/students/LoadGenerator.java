@@ -0,0 +1,441 @@
+package nuber.students;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Drives a real dispatch with an open-loop load: bookings are sent on a schedule fixed before
+ * the run starts, at a target rate, whether or not earlier bookings have finished.
+ *
+ * Simulation books everyone as fast as it can and waits. That is a closed loop, the next booking
+ * is only sent once the last one has been accepted, so when dispatch stalls the load stalls with
+ * it and the bookings that would have waited are never sent. Their latency goes unmeasured, and
+ * the percentiles look far better than what passengers would see, which is coordinated omission.
+ *
+ * Here every booking has an intended send time, and its latency is measured from that time to
+ * the passenger's arrival. If the generator falls behind, because submit() blocked under the
+ * BLOCK backlog policy or the thread wasn't scheduled, the booking is sent late but still timed
+ * from when it should have gone, so the delay it spent waiting to be sent is counted. The
+ * latency from the region accepting the booking is reported next to it, which is what a closed
+ * loop would have measured.
+ *
+ * The schedule is either Poisson arrivals at a given rate, spread evenly over the regions, or
+ * a trace file of send times. sweep() runs a list of rates on a fresh dispatch each and finds
+ * the saturation knee: the first rate the drivers and regions can't keep up with.
+ *
+ * @author james
+ *
+ */
+public class LoadGenerator {
+
+	//a rate is past the knee once its p99 is this many times the lowest rate's
+	private static final double KNEE_LATENCY_FACTOR = 2;
+	//or it completes less than this share of what was offered
+	private static final double KNEE_THROUGHPUT_SHARE = 0.95;
+	//or rejects more than this share of what was offered
+	private static final double KNEE_REJECTED_SHARE = 0.01;
+
+	/**
+	 * When each booking should be sent, and to which region
+	 */
+	public static class Schedule {
+		//nanoseconds from the start of the run, in order
+		final long[] offsetsNanos;
+		//the region for each booking, null entries go to a random region
+		final String[] regions;
+
+		Schedule(long[] offsetsNanos, String[] regions)
+		{
+			this.offsetsNanos = offsetsNanos;
+			this.regions = regions;
+		}
+
+		/**
+		 * Makes a schedule of Poisson arrivals, with exponential gaps between bookings
+		 *
+		 * @param arrivalsPerSecond The mean rate
+		 * @param seconds How long the bookings are sent for
+		 * @param seed Seed for the gaps, the same seed gives the same schedule
+		 */
+		public static Schedule poisson(double arrivalsPerSecond, double seconds, long seed)
+		{
+			SplittableRandom random = new SplittableRandom(seed);
+			double meanGapNanos = 1e9 / arrivalsPerSecond;
+			long endNanos = (long) (seconds * 1e9);
+			long[] offsets = new long[(int) Math.min(Integer.MAX_VALUE - 8, Math.ceil(arrivalsPerSecond * seconds * 1.5) + 16)];
+			int count = 0;
+			double at = 0;
+			while (true) {
+				at += -Math.log(1 - random.nextDouble()) * meanGapNanos;
+				if (at >= endNanos || count == offsets.length) {
+					break;
+				}
+				offsets[count++] = (long) at;
+			}
+			long[] trimmed = new long[count];
+			System.arraycopy(offsets, 0, trimmed, 0, count);
+			return new Schedule(trimmed, new String[count]);
+		}
+
+		/**
+		 * Reads a schedule from a trace file. Each line is a send time in milliseconds from
+		 * the start, optionally followed by whitespace and a region name. Blank lines and
+		 * lines starting with # are skipped. Lines must be in time order.
+		 *
+		 * @param trace The trace file
+		 * @throws IOException if the file can't be read
+		 * @throws IllegalArgumentException if a line can't be parsed or is out of order
+		 */
+		public static Schedule fromTrace(Path trace) throws IOException
+		{
+			List<String> lines = Files.readAllLines(trace, StandardCharsets.UTF_8);
+			long[] offsets = new long[lines.size()];
+			String[] regions = new String[lines.size()];
+			int count = 0;
+			long last = 0;
+			for (int i = 0; i < lines.size(); i++) {
+				String line = lines.get(i).trim();
+				if (line.isEmpty() || line.startsWith("#")) {
+					continue;
+				}
+				String[] fields = line.split("\\s+");
+				long offset;
+				try {
+					offset = (long) (Double.parseDouble(fields[0]) * 1_000_000);
+				} catch (NumberFormatException e) {
+					throw new IllegalArgumentException("Bad send time on line " + (i + 1) + " of " + trace + ": " + fields[0]);
+				}
+				if (offset < last) {
+					throw new IllegalArgumentException("Send time on line " + (i + 1) + " of " + trace + " is before the one above it");
+				}
+				offsets[count] = offset;
+				regions[count] = fields.length > 1 ? fields[1] : null;
+				last = offset;
+				count++;
+			}
+			long[] trimmedOffsets = new long[count];
+			String[] trimmedRegions = new String[count];
+			System.arraycopy(offsets, 0, trimmedOffsets, 0, count);
+			System.arraycopy(regions, 0, trimmedRegions, 0, count);
+			return new Schedule(trimmedOffsets, trimmedRegions);
+		}
+
+		/**
+		 * @return How many bookings are scheduled
+		 */
+		public int size()
+		{
+			return offsetsNanos.length;
+		}
+
+		/**
+		 * @return The mean rate the schedule sends at, per second
+		 */
+		public double getArrivalsPerSecond()
+		{
+			int n = offsetsNanos.length;
+			long span = n < 2 ? 0 : offsetsNanos[n - 1] - offsetsNanos[0];
+			return span == 0 ? n : (n - 1) * 1e9 / span;
+		}
+	}
+
+	/**
+	 * What one run measured
+	 */
+	public static class Result {
+		public final double offeredPerSecond;
+		public final long scheduled;
+		public final long completed;
+		//refused when sent, see BookingRejectedException.Reason
+		public final long rejected;
+		//shed from a backlog, cancelled by the drain at the end, or failed
+		public final long unfinished;
+		//completed bookings per second, between the first arrival and the last
+		public final double achievedPerSecond;
+		//how far behind schedule the worst booking was sent, in nanoseconds
+		public final long maxSendLagNanos;
+		//intended send to arrival, the latency passengers see
+		public final LatencyHistogram fromIntended;
+		//region accepting the booking to arrival, what a closed loop would measure
+		public final LatencyHistogram fromAccepted;
+
+		Result(double offeredPerSecond, long scheduled, long completed, long rejected, long unfinished,
+				double achievedPerSecond, long maxSendLagNanos, LatencyHistogram fromIntended, LatencyHistogram fromAccepted)
+		{
+			this.offeredPerSecond = offeredPerSecond;
+			this.scheduled = scheduled;
+			this.completed = completed;
+			this.rejected = rejected;
+			this.unfinished = unfinished;
+			this.achievedPerSecond = achievedPerSecond;
+			this.maxSendLagNanos = maxSendLagNanos;
+			this.fromIntended = fromIntended;
+			this.fromAccepted = fromAccepted;
+		}
+
+		/**
+		 * @return Whether the run kept up with its offered rate
+		 */
+		boolean keptUp(Result baseline)
+		{
+			if (achievedPerSecond < offeredPerSecond * KNEE_THROUGHPUT_SHARE || rejected > scheduled * KNEE_REJECTED_SHARE) {
+				return false;
+			}
+			long p99 = fromIntended.getValueAtPercentile(99);
+			return baseline == null || p99 <= baseline.fromIntended.getValueAtPercentile(99) * KNEE_LATENCY_FACTOR;
+		}
+
+		@Override
+		public String toString()
+		{
+			return String.format("%8.1f/s offered, %8.1f/s achieved: completed=%d rejected=%d unfinished=%d, worst send lag=%.1fms%n"
+					+ "    from intended send: %s%n    from accepted:       %s", offeredPerSecond, achievedPerSecond, completed, rejected,
+					unfinished, maxSendLagNanos / 1e6, fromIntended, fromAccepted);
+		}
+	}
+
+	/**
+	 * Records each booking as it finishes, called on the booking's thread
+	 */
+	private static class Recorder implements BookingStore.Listener {
+		final LatencyHistogram fromIntended = new LatencyHistogram();
+		final LatencyHistogram fromAccepted = new LatencyHistogram();
+		final LongAdder completed = new LongAdder();
+		final LongAdder unfinished = new LongAdder();
+		//0 until the first booking arrives
+		final AtomicLong firstArrived = new AtomicLong();
+		final AtomicLong lastArrived = new AtomicLong();
+
+		@Override
+		public void bookingFinished(BookingStore store, int slot)
+		{
+			if (store.getOutcome(slot) != BookingStore.Outcome.COMPLETED) {
+				unfinished.increment();
+				return;
+			}
+			long arrived = store.getArrivedNanos(slot);
+			fromIntended.record(arrived - store.getRequestedNanos(slot));
+			fromAccepted.record(arrived - store.getCreatedNanos(slot));
+			long seen;
+			while (((seen = firstArrived.get()) == 0 || arrived - seen < 0) && !firstArrived.compareAndSet(seen, arrived)) {
+				//lost to another booking, check against its arrival
+			}
+			while (arrived - (seen = lastArrived.get()) > 0 && !lastArrived.compareAndSet(seen, arrived)) {
+				//lost to another booking, check against its arrival
+			}
+			completed.increment();
+		}
+
+		long finished()
+		{
+			return completed.sum() + unfinished.sum();
+		}
+	}
+
+	private final HashMap<String, Integer> regions;
+	private final int drivers;
+	private final int maxSleep;
+	private final int storeCapacity;
+
+	/**
+	 * Creates a load generator. Each run gets its own dispatch with these regions and drivers.
+	 *
+	 * @param regions The region names and maximum simultaneous active bookings allowed in that region
+	 * @param drivers The number of drivers to create
+	 * @param maxSleep The maximum amount a thread will sleep (in milliseconds) to simulate driving to, or dropping off a passenger
+	 * @param storeCapacity The most bookings that can be in flight at once, more are rejected as STORE_FULL
+	 */
+	public LoadGenerator(HashMap<String, Integer> regions, int drivers, int maxSleep, int storeCapacity)
+	{
+		this.regions = regions;
+		this.drivers = drivers;
+		this.maxSleep = maxSleep;
+		this.storeCapacity = storeCapacity;
+	}
+
+	/**
+	 * Sends a schedule of bookings to a new dispatch, then drains it
+	 *
+	 * Bookings still unfinished once the drain deadline passes are cancelled, and counted as
+	 * unfinished rather than timed.
+	 *
+	 * @param schedule When to send each booking
+	 * @param seed Seed for the drivers, the passengers and their trips, and the regions of 
+	 * bookings the schedule doesn't give one
+	 * @param drainDeadline How long to wait after the last send for bookings to finish
+	 * @return What the run measured
+	 * @throws InterruptedException if interrupted, the dispatch is shut down first
+	 */
+	public Result run(Schedule schedule, long seed, Duration drainDeadline) throws InterruptedException
+	{
+		NuberDispatch dispatch = new NuberDispatch(regions, false);
+		Recorder recorder = new Recorder();
+		SplittableRandom random = new SplittableRandom(seed);
+		try {
+			dispatch.openBookingStore(storeCapacity, recorder);
+			for (int i = 0; i < drivers; i++) {
+				dispatch.addDriver(new Driver("D-" + Person.getRandomName(), maxSleep, random));
+			}
+
+			//region handles for the schedule, -1 for a random region
+			String[] regionNames = regions.keySet().toArray(new String[0]);
+			Arrays.sort(regionNames);
+			int[] regionHandles = new int[regionNames.length];
+			for (int i = 0; i < regionNames.length; i++) {
+				regionHandles[i] = dispatch.getRegionHandle(regionNames[i]);
+			}
+			HashMap<String, Integer> traceHandles = new HashMap<String, Integer>();
+
+			long rejected = 0;
+			long maxSendLag = 0;
+			long start = System.nanoTime();
+			for (int i = 0; i < schedule.size(); i++) {
+				long intended = start + schedule.offsetsNanos[i];
+				long wait;
+				while ((wait = intended - System.nanoTime()) > 0) {
+					LockSupport.parkNanos(wait);
+				}
+				maxSendLag = Math.max(maxSendLag, -wait);
+
+				String region = schedule.regions[i];
+				int handle;
+				if (region == null) {
+					handle = regionHandles[random.nextInt(regionHandles.length)];
+				} else {
+					Integer known = traceHandles.get(region);
+					if (known == null) {
+						known = dispatch.getRegionHandle(region);
+						traceHandles.put(region, known);
+					}
+					handle = known;
+				}
+
+				Passenger passenger = new Passenger("P-" + Person.getRandomName(), maxSleep, random);
+				try {
+					dispatch.submit(passenger, handle, BookingPriority.STANDARD, -1, intended);
+				} catch (BookingRejectedException e) {
+					rejected++;
+				}
+			}
+
+			long sent = schedule.size() - rejected;
+			DrainReport drain = dispatch.shutdown(drainDeadline);
+			//bookings left on a trip by the drain still finish, give them their longest trip
+			long tripsEnd = System.nanoTime() + 3L * maxSleep * 1_000_000 + 1_000_000_000L;
+			while (recorder.finished() < sent && tripsEnd - System.nanoTime() > 0) {
+				Thread.sleep(10);
+			}
+			if (!drain.drained) {
+				System.out.println("Load generator: " + drain);
+			}
+
+			//arrivals trail sends by a trip, so time them against each other rather than the start
+			long completed = recorder.completed.sum();
+			long elapsed = recorder.lastArrived.get() - recorder.firstArrived.get();
+			double achieved = completed < 2 || elapsed <= 0 ? completed : (completed - 1) * 1e9 / elapsed;
+			return new Result(schedule.getArrivalsPerSecond(), schedule.size(), completed, rejected,
+					sent - completed, achieved, maxSendLag, recorder.fromIntended.copy(), recorder.fromAccepted.copy());
+		} finally {
+			dispatch.shutdown();
+		}
+	}
+
+	/**
+	 * Runs Poisson arrivals at each rate in turn, each on a fresh dispatch
+	 *
+	 * @param arrivalsPerSecond The rates to run, lowest first
+	 * @param seconds How long to send bookings at each rate
+	 * @param seed Seed for the arrivals and regions, each rate gets its own stream from it
+	 * @return One result per rate, in the same order
+	 * @throws InterruptedException if interrupted between or during runs
+	 */
+	public List<Result> sweep(double[] arrivalsPerSecond, double seconds, long seed) throws InterruptedException
+	{
+		List<Result> results = new ArrayList<Result>();
+		SplittableRandom seeds = new SplittableRandom(seed);
+		//long enough to drain a few seconds of backlog past the knee, short enough not to stall the sweep
+		Duration drain = Duration.ofMillis((long) (seconds * 1000) + 20L * maxSleep);
+		for (double rate : arrivalsPerSecond) {
+			Result result = run(Schedule.poisson(rate, seconds, seeds.nextLong()), seeds.nextLong(), drain);
+			System.out.println(result);
+			results.add(result);
+		}
+		return results;
+	}
+
+	/**
+	 * Finds the saturation knee of a sweep: the first rate that didn't keep up, because it
+	 * completed less than 95% of what was offered, rejected more than 1%, or its p99 latency
+	 * from the intended send was more than twice the lowest rate's.
+	 *
+	 * @param results A sweep's results, lowest rate first
+	 * @return The index of the knee, or -1 if every rate kept up
+	 */
+	public static int findKnee(List<Result> results)
+	{
+		Result baseline = null;
+		for (int i = 0; i < results.size(); i++) {
+			Result result = results.get(i);
+			if (!result.keptUp(baseline)) {
+				return i;
+			}
+			if (baseline == null) {
+				baseline = result;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Runs a rate sweep, or a trace, and prints the results
+	 *
+	 * Arguments: drivers, maxSleep, seconds per rate, rates (comma separated), [seed], [trace file].
+	 * With a trace file the trace is run once at its own pace instead of the sweep.
+	 */
+	public static void main(String[] args) throws Exception
+	{
+		int drivers = args.length > 0 ? Integer.parseInt(args[0]) : 100;
+		int maxSleep = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+		double seconds = args.length > 2 ? Double.parseDouble(args[2]) : 5;
+		String[] rateArgs = (args.length > 3 ? args[3] : "50,100,200,400,800,1600").split(",");
+		long seed = args.length > 4 ? Long.parseLong(args[4]) : 42;
+
+		HashMap<String, Integer> regions = new HashMap<String, Integer>();
+		regions.put("North", 50);
+		regions.put("South", 50);
+		LoadGenerator generator = new LoadGenerator(regions, drivers, maxSleep, 1 << 16);
+
+		if (args.length > 5) {
+			Schedule trace = Schedule.fromTrace(Paths.get(args[5]));
+			System.out.println(generator.run(trace, seed, Duration.ofMillis(20L * maxSleep)));
+			return;
+		}
+
+		double[] rates = new double[rateArgs.length];
+		for (int i = 0; i < rates.length; i++) {
+			rates[i] = Double.parseDouble(rateArgs[i].trim());
+		}
+		List<Result> results = generator.sweep(rates, seconds, seed);
+		int knee = findKnee(results);
+		if (knee < 0) {
+			System.out.println("No saturation knee: every rate up to " + rates[rates.length - 1] + "/s kept up");
+		} else if (knee == 0) {
+			System.out.println("Saturated at the lowest rate, " + rates[0] + "/s");
+		} else {
+			System.out.println(String.format("Saturation knee between %.1f/s and %.1f/s (%.1f/s achieved at the knee)",
+					rates[knee - 1], rates[knee], results.get(knee).achievedPerSecond));
+		}
+	}
+}
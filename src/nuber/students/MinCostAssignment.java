@@ -0,0 +1,501 @@
+package nuber.students;
+
+import java.util.Arrays;
+
+/**
+ * Solvers for assigning passengers (rows) to drivers (columns) so the total pickup 
+ * distance is as small as possible. Every row gets a column, so there must be at least 
+ * as many columns as rows.
+ * 
+ * hungarian() finds the optimal assignment in O(rows^2 * columns) and is used for small batches.
+ * greedy() takes each row in order and gives it its nearest free column, then improves on that
+ * with pairwise swaps, which is close to optimal at a fraction of the cost for large batches.
+ * 
+ * Both return, for each row, the index of the column it was given.
+ * 
+ * With thousands of columns most of them are far from every row, so each solver also has a
+ * version that only considers each row's few nearest columns, from nearestColumns(). Their
+ * cost then grows with the number of rows rather than rows times columns.
+ * 
+ * @author james
+ *
+ */
+public class MinCostAssignment {
+
+	private static final int MAX_IMPROVEMENT_PASSES = 5;
+	
+	private MinCostAssignment()
+	{
+	}
+	
+	/**
+	 * Finds the optimal assignment with the Hungarian algorithm (shortest augmenting paths with potentials)
+	 * 
+	 * @param rowX Row x coordinates
+	 * @param rowY Row y coordinates
+	 * @param columnX Column x coordinates
+	 * @param columnY Column y coordinates
+	 * @return The column given to each row
+	 */
+	public static int[] hungarian(double[] rowX, double[] rowY, double[] columnX, double[] columnY)
+	{
+		int rows = rowX.length;
+		int columns = columnX.length;
+		checkSizes(rows, columns);
+		
+		double[][] cost = new double[rows][columns];
+		for (int r = 0; r < rows; r++) {
+			for (int c = 0; c < columns; c++) {
+				cost[r][c] = cost(rowX, rowY, columnX, columnY, r, c);
+			}
+		}
+		
+		//1-based arrays, column 0 is the virtual start of each augmenting path
+		double[] rowPotential = new double[rows + 1];
+		double[] columnPotential = new double[columns + 1];
+		int[] columnRow = new int[columns + 1];
+		int[] previousColumn = new int[columns + 1];
+		double[] minSlack = new double[columns + 1];
+		boolean[] used = new boolean[columns + 1];
+		
+		for (int r = 1; r <= rows; r++) {
+			columnRow[0] = r;
+			int column = 0;
+			Arrays.fill(minSlack, Double.MAX_VALUE);
+			Arrays.fill(used, false);
+			
+			do {
+				used[column] = true;
+				int row = columnRow[column];
+				double delta = Double.MAX_VALUE;
+				int nextColumn = 0;
+				for (int c = 1; c <= columns; c++) {
+					if (used[c]) {
+						continue;
+					}
+					double slack = cost[row - 1][c - 1] - rowPotential[row] - columnPotential[c];
+					if (slack < minSlack[c]) {
+						minSlack[c] = slack;
+						previousColumn[c] = column;
+					}
+					if (minSlack[c] < delta) {
+						delta = minSlack[c];
+						nextColumn = c;
+					}
+				}
+				for (int c = 0; c <= columns; c++) {
+					if (used[c]) {
+						rowPotential[columnRow[c]] += delta;
+						columnPotential[c] -= delta;
+					} else {
+						minSlack[c] -= delta;
+					}
+				}
+				column = nextColumn;
+			} while (columnRow[column] != 0);
+			
+			//flip the augmenting path
+			do {
+				int previous = previousColumn[column];
+				columnRow[column] = columnRow[previous];
+				column = previous;
+			} while (column != 0);
+		}
+		
+		int[] assignment = new int[rows];
+		for (int c = 1; c <= columns; c++) {
+			if (columnRow[c] != 0) {
+				assignment[columnRow[c] - 1] = c - 1;
+			}
+		}
+		return assignment;
+	}
+	
+	/**
+	 * Gives each row, in order, its nearest free column. This is what matching each booking
+	 * as it arrives would do, and is the baseline the batch solvers are compared against.
+	 * 
+	 * @return The column given to each row
+	 */
+	public static int[] inOrder(double[] rowX, double[] rowY, double[] columnX, double[] columnY)
+	{
+		int rows = rowX.length;
+		int columns = columnX.length;
+		checkSizes(rows, columns);
+		
+		int[] assignment = new int[rows];
+		boolean[] taken = new boolean[columns];
+		for (int r = 0; r < rows; r++) {
+			int best = -1;
+			double bestCost = Double.MAX_VALUE;
+			for (int c = 0; c < columns; c++) {
+				if (!taken[c]) {
+					double cost = cost(rowX, rowY, columnX, columnY, r, c);
+					if (cost < bestCost) {
+						bestCost = cost;
+						best = c;
+					}
+				}
+			}
+			taken[best] = true;
+			assignment[r] = best;
+		}
+		return assignment;
+	}
+	
+	/**
+	 * Starts from the in order assignment, then repeatedly swaps the columns of two rows, or moves
+	 * a row to a free column, whenever that lowers the total. Stops when a pass finds nothing to 
+	 * improve, or after a few passes.
+	 * 
+	 * @return The column given to each row
+	 */
+	public static int[] greedy(double[] rowX, double[] rowY, double[] columnX, double[] columnY)
+	{
+		int rows = rowX.length;
+		int columns = columnX.length;
+		int[] assignment = inOrder(rowX, rowY, columnX, columnY);
+		
+		boolean[] taken = new boolean[columns];
+		for (int column : assignment) {
+			taken[column] = true;
+		}
+		
+		for (int pass = 0; pass < MAX_IMPROVEMENT_PASSES; pass++) {
+			boolean improved = false;
+			for (int i = 0; i < rows; i++) {
+				double costI = cost(rowX, rowY, columnX, columnY, i, assignment[i]);
+				
+				for (int j = i + 1; j < rows; j++) {
+					double current = costI + cost(rowX, rowY, columnX, columnY, j, assignment[j]);
+					double swapped = cost(rowX, rowY, columnX, columnY, i, assignment[j]) 
+							+ cost(rowX, rowY, columnX, columnY, j, assignment[i]);
+					if (swapped < current - 1e-9) {
+						int column = assignment[i];
+						assignment[i] = assignment[j];
+						assignment[j] = column;
+						costI = cost(rowX, rowY, columnX, columnY, i, assignment[i]);
+						improved = true;
+					}
+				}
+				
+				for (int c = 0; c < columns; c++) {
+					if (!taken[c] && cost(rowX, rowY, columnX, columnY, i, c) < costI - 1e-9) {
+						taken[assignment[i]] = false;
+						taken[c] = true;
+						assignment[i] = c;
+						costI = cost(rowX, rowY, columnX, columnY, i, c);
+						improved = true;
+					}
+				}
+			}
+			if (!improved) {
+				break;
+			}
+		}
+		return assignment;
+	}
+	
+	/**
+	 * Finds each row's k nearest columns
+	 * 
+	 * @param k How many columns to keep for each row
+	 * @return For each row, the indexes of its nearest columns, nearest first
+	 */
+	public static int[][] nearestColumns(double[] rowX, double[] rowY, double[] columnX, double[] columnY, int k)
+	{
+		int rows = rowX.length;
+		int columns = columnX.length;
+		int keep = Math.max(1, Math.min(k, columns));
+		int[][] nearest = new int[rows][keep];
+		double[] distance = new double[keep];
+		for (int r = 0; r < rows; r++) {
+			int[] row = nearest[r];
+			int found = 0;
+			for (int c = 0; c < columns; c++) {
+				//squared, only the order matters here
+				double dx = rowX[r] - columnX[c];
+				double dy = rowY[r] - columnY[c];
+				double cost = dx * dx + dy * dy;
+				if (found == keep && cost >= distance[keep - 1]) {
+					continue;
+				}
+				int at = found < keep ? found++ : keep - 1;
+				while (at > 0 && distance[at - 1] > cost) {
+					distance[at] = distance[at - 1];
+					row[at] = row[at - 1];
+					at--;
+				}
+				distance[at] = cost;
+				row[at] = c;
+			}
+		}
+		return nearest;
+	}
+	
+	/**
+	 * Finds the optimal assignment using only each row's candidate columns, with shortest
+	 * augmenting paths found by Dijkstra over the candidate edges
+	 * 
+	 * @param candidates Each row's candidate columns, from nearestColumns()
+	 * @return The column given to each row, or null if the candidates can't give every row its own column
+	 */
+	public static int[] hungarian(double[] rowX, double[] rowY, double[] columnX, double[] columnY, int[][] candidates)
+	{
+		int rows = rowX.length;
+		int columns = columnX.length;
+		checkSizes(rows, columns);
+		
+		double[] rowPotential = new double[rows];
+		double[] columnPotential = new double[columns];
+		int[] rowColumn = new int[rows];
+		int[] columnRow = new int[columns];
+		Arrays.fill(columnRow, -1);
+		
+		//per search, only the columns a search touched are reset for the next
+		double[] distance = new double[columns];
+		Arrays.fill(distance, Double.MAX_VALUE);
+		int[] previousRow = new int[columns];
+		boolean[] settled = new boolean[columns];
+		double[] rowDistance = new double[rows];
+		int[] touched = new int[columns];
+		int[] treeRows = new int[rows];
+		Heap heap = new Heap();
+		
+		for (int start = 0; start < rows; start++) {
+			int touchedCount = 0;
+			int treeCount = 0;
+			heap.clear();
+			rowColumn[start] = -1;
+			
+			int row = start;
+			rowDistance[row] = 0;
+			treeRows[treeCount++] = row;
+			int free = -1;
+			while (true) {
+				for (int column : candidates[row]) {
+					if (settled[column]) {
+						continue;
+					}
+					double reached = rowDistance[row] + cost(rowX, rowY, columnX, columnY, row, column)
+							- rowPotential[row] - columnPotential[column];
+					if (reached < distance[column]) {
+						if (distance[column] == Double.MAX_VALUE) {
+							touched[touchedCount++] = column;
+						}
+						distance[column] = reached;
+						previousRow[column] = row;
+						heap.push(reached, column);
+					}
+				}
+				int column = -1;
+				while (!heap.isEmpty()) {
+					int next = heap.pop();
+					if (!settled[next]) {
+						column = next;
+						break;
+					}
+				}
+				if (column < 0) {
+					//no path from this row to a free column through the candidates
+					return null;
+				}
+				settled[column] = true;
+				if (columnRow[column] < 0) {
+					free = column;
+					break;
+				}
+				row = columnRow[column];
+				rowDistance[row] = distance[column];
+				treeRows[treeCount++] = row;
+			}
+			
+			//keeps every reduced cost non-negative, and the path found tight
+			double shortest = distance[free];
+			for (int i = 0; i < treeCount; i++) {
+				rowPotential[treeRows[i]] += shortest - rowDistance[treeRows[i]];
+			}
+			for (int i = 0; i < touchedCount; i++) {
+				int column = touched[i];
+				if (settled[column]) {
+					columnPotential[column] -= shortest - distance[column];
+				}
+			}
+			
+			//flip the augmenting path
+			for (int column = free; ; ) {
+				int from = previousRow[column];
+				int next = rowColumn[from];
+				columnRow[column] = from;
+				rowColumn[from] = column;
+				if (from == start) {
+					break;
+				}
+				column = next;
+			}
+			
+			for (int i = 0; i < touchedCount; i++) {
+				distance[touched[i]] = Double.MAX_VALUE;
+				settled[touched[i]] = false;
+			}
+		}
+		return rowColumn;
+	}
+	
+	/**
+	 * Like greedy(), but each row starts with its nearest free candidate and only moves to its
+	 * other candidates. A row whose candidates are all taken gets its nearest free column.
+	 * 
+	 * @param candidates Each row's candidate columns, from nearestColumns()
+	 * @return The column given to each row
+	 */
+	public static int[] greedy(double[] rowX, double[] rowY, double[] columnX, double[] columnY, int[][] candidates)
+	{
+		int rows = rowX.length;
+		int columns = columnX.length;
+		checkSizes(rows, columns);
+		
+		int[] assignment = new int[rows];
+		boolean[] taken = new boolean[columns];
+		for (int r = 0; r < rows; r++) {
+			int best = -1;
+			for (int column : candidates[r]) {
+				if (!taken[column]) {
+					best = column;
+					break;
+				}
+			}
+			if (best < 0) {
+				double bestCost = Double.MAX_VALUE;
+				for (int c = 0; c < columns; c++) {
+					if (!taken[c] && cost(rowX, rowY, columnX, columnY, r, c) < bestCost) {
+						bestCost = cost(rowX, rowY, columnX, columnY, r, c);
+						best = c;
+					}
+				}
+			}
+			taken[best] = true;
+			assignment[r] = best;
+		}
+		
+		for (int pass = 0; pass < MAX_IMPROVEMENT_PASSES; pass++) {
+			boolean improved = false;
+			for (int i = 0; i < rows; i++) {
+				double costI = cost(rowX, rowY, columnX, columnY, i, assignment[i]);
+				
+				for (int j = i + 1; j < rows; j++) {
+					double current = costI + cost(rowX, rowY, columnX, columnY, j, assignment[j]);
+					double swapped = cost(rowX, rowY, columnX, columnY, i, assignment[j]) 
+							+ cost(rowX, rowY, columnX, columnY, j, assignment[i]);
+					if (swapped < current - 1e-9) {
+						int column = assignment[i];
+						assignment[i] = assignment[j];
+						assignment[j] = column;
+						costI = cost(rowX, rowY, columnX, columnY, i, assignment[i]);
+						improved = true;
+					}
+				}
+				
+				for (int c : candidates[i]) {
+					if (!taken[c] && cost(rowX, rowY, columnX, columnY, i, c) < costI - 1e-9) {
+						taken[assignment[i]] = false;
+						taken[c] = true;
+						assignment[i] = c;
+						costI = cost(rowX, rowY, columnX, columnY, i, c);
+						improved = true;
+					}
+				}
+			}
+			if (!improved) {
+				break;
+			}
+		}
+		return assignment;
+	}
+	
+	/**
+	 * A binary min heap of columns by distance. A column can be in it more than once, the
+	 * caller skips the stale entries.
+	 */
+	private static class Heap {
+		private double[] keys = new double[64];
+		private int[] columns = new int[64];
+		private int size = 0;
+		
+		void clear()
+		{
+			size = 0;
+		}
+		
+		boolean isEmpty()
+		{
+			return size == 0;
+		}
+		
+		void push(double key, int column)
+		{
+			if (size == keys.length) {
+				keys = Arrays.copyOf(keys, size * 2);
+				columns = Arrays.copyOf(columns, size * 2);
+			}
+			int at = size++;
+			while (at > 0 && keys[(at - 1) / 2] > key) {
+				keys[at] = keys[(at - 1) / 2];
+				columns[at] = columns[(at - 1) / 2];
+				at = (at - 1) / 2;
+			}
+			keys[at] = key;
+			columns[at] = column;
+		}
+		
+		int pop()
+		{
+			int top = columns[0];
+			double key = keys[--size];
+			int column = columns[size];
+			int at = 0;
+			while (2 * at + 1 < size) {
+				int child = 2 * at + 1;
+				if (child + 1 < size && keys[child + 1] < keys[child]) {
+					child++;
+				}
+				if (keys[child] >= key) {
+					break;
+				}
+				keys[at] = keys[child];
+				columns[at] = columns[child];
+				at = child;
+			}
+			keys[at] = key;
+			columns[at] = column;
+			return top;
+		}
+	}
+	
+	/**
+	 * @return The total distance of an assignment
+	 */
+	public static double totalCost(double[] rowX, double[] rowY, double[] columnX, double[] columnY, int[] assignment)
+	{
+		double total = 0;
+		for (int r = 0; r < assignment.length; r++) {
+			total += cost(rowX, rowY, columnX, columnY, r, assignment[r]);
+		}
+		return total;
+	}
+	
+	static double cost(double[] rowX, double[] rowY, double[] columnX, double[] columnY, int row, int column)
+	{
+		//no need for hypot()'s overflow care at city distances, and sqrt is several times faster
+		double dx = rowX[row] - columnX[column];
+		double dy = rowY[row] - columnY[column];
+		return Math.sqrt(dx * dx + dy * dy);
+	}
+	
+	private static void checkSizes(int rows, int columns)
+	{
+		if (rows > columns) {
+			throw new IllegalArgumentException("Can't assign " + rows + " rows to only " + columns + " columns");
+		}
+	}
+}
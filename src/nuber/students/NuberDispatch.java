@@ -1,14 +1,32 @@
 package nuber.students;
 
 import java.awt.desktop.AboutHandler;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.BlockingQueue;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
 import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.LongAdder;
 
 
 /**
@@ -19,21 +37,117 @@ import java.util.concurrent.Semaphore;
  */
 public class NuberDispatch{
 
-	/**
-	 * The maximum number of idle drivers that can be awaiting a booking 
-	 */
-	private final int MAX_DRIVERS = 999;
 	private boolean logEvents = false;
+	
+	//set when logging with -Dnuber.log=async, booking events then go through the ring buffer.
+	protected volatile EventLog eventLog;
 	private HashMap<String, Integer> regionInfo;
 	
 	// added by Aoto.
-	//this is for driver. 
-	protected BlockingQueue<Driver> idleDriver = new ArrayBlockingQueue<Driver>(MAX_DRIVERS);
+	//this is for driver. unbounded so addDriver never blocks, see DriverMatching for the kinds.
+	//each region keeps its own idle drivers, this shared pool only holds drivers added while
+	//dispatch has no regions.
+	protected IdleDriverPool idleDriver;
+	protected DriverMatching driverMatching;
+	
+	//the regions sorted by name. a region steals drivers from its neighbours in this order.
+	protected volatile NuberRegion[] regionRing = new NuberRegion[0];
+	
+	//every booking result, pushed to subscribers as the booking completes
+	protected final CompletionStream completions = new CompletionStream();
+	
+	//write-ahead journal of booking and driver changes, null unless -Dnuber.journal.dir is set
+	protected volatile BookingJournal journal;
+	
+	//moves idle drivers towards regions with waiting bookings. null if there's only one region,
+	//or with batched matching, where every batch spans all the regions anyway.
+	protected volatile DriverRebalancer rebalancer;
+	
+	//sizes regions from their load, null unless -Dnuber.autoscale.millis is set
+	protected RegionAutoscaler autoscaler;
+	
+	//regions added at runtime use the same execution mode as the first ones
+	protected ExecutionMode executionMode;
+	protected volatile boolean isShutdown = false;
+	
+	//notified once dispatch is shutdown and every region has finished its bookings
+	private final Object drainLock = new Object();
+	private boolean isDrained = false;
 	
 	//this is for enable to set the semaphore for one or more regions.
 	//protected HashMap<String, Semaphore> semaphoreForEachRegions;
-	private int bookingAwaitingDriver = 0;
-	protected HashMap<String, NuberRegion> nuberRegionHashMap;
+	//LongAdder so bookings in every region can count without contending on one lock.
+	private final LongAdder bookingAwaitingDriver = new LongAdder();
+	//concurrent, regions can be added and removed while bookings are being made
+	protected ConcurrentHashMap<String, NuberRegion> nuberRegionHashMap;
+	//removed regions still finishing the bookings they accepted
+	protected final Set<NuberRegion> retiringRegions = ConcurrentHashMap.newKeySet();
+	//regions by handle, so bookings can find theirs without hashing its name. a removed
+	//region's entry is cleared, and handles are never reused.
+	private volatile NuberRegion[] regionsByHandle = new NuberRegion[0];
+	
+	//results of bookings made with submit(), null until openBookingStore()
+	protected volatile BookingStore bookingStore;
+	
+	//bookings waiting for a driver, earliest due first, see BookingPriority. only touched under
+	//driverHandOffLock, driverWaiterCount lets addDriver skip the lock when nobody is waiting.
+	protected final Queue<DriverWaiter> driverWaiters = new PriorityQueue<DriverWaiter>();
+	protected final Object driverHandOffLock = new Object();
+	protected volatile int driverWaiterCount = 0;
+	//breaks ties between waiters due at the same time, guarded by driverHandOffLock
+	private long nextWaiterSequence = 0;
+	
+	/**
+	 * System property used to set the longest a booking waits for a driver in milliseconds, 
+	 * bookings wait as long as it takes if it isn't set
+	 */
+	public static final String MAX_DRIVER_WAIT_PROPERTY = "nuber.driver.wait.millis";
+	
+	//0 for no limit, see setMaxDriverWait()
+	private volatile long maxDriverWaitNanos = Math.max(0, Long.getLong(MAX_DRIVER_WAIT_PROPERTY, 0)) * 1_000_000;
+	
+	//only set for BATCHED matching, which then does all handing out of drivers to bookings.
+	protected BatchMatcher batchMatcher;
+	
+	//set when -Dnuber.pool.millis turns on shared rides
+	protected RidePooler ridePooler;
+	
+	//set when -Dnuber.forecast.millis turns on steering drivers towards forecast demand
+	protected DemandForecast forecast;
+	
+	//times pickups and trips for ASYNC bookings, so no thread sleeps through a trip. shut down
+	//once dispatch is shutdown and drained.
+	protected final ScheduledExecutorService tripScheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+		Thread thread = new Thread(runnable, "nuber-trip-scheduler");
+		thread.setDaemon(true);
+		return thread;
+	});
+	
+	/**
+	 * An async booking's request for a driver
+	 */
+	protected static class DriverWaiter implements Comparable<DriverWaiter> {
+		final Passenger passenger;
+		final NuberRegion region;
+		final BookingPriority priority;
+		final long due;
+		long sequence;
+		final CompletableFuture<Driver> driver = new CompletableFuture<Driver>();
+		
+		DriverWaiter(Passenger passenger, NuberRegion region, BookingPriority priority, long due)
+		{
+			this.passenger = passenger;
+			this.region = region;
+			this.priority = priority;
+			this.due = due;
+		}
+		
+		@Override
+		public int compareTo(DriverWaiter other)
+		{
+			return BookingPriority.compare(due, priority, sequence, other.due, other.priority, other.sequence);
+		}
+	}
 	
 	/**
 	 * Creates a new dispatch objects and instantiates the required regions and any other objects required.
@@ -44,21 +158,255 @@ public class NuberDispatch{
 	 */
 	public NuberDispatch(HashMap<String, Integer> regionInfo, boolean logEvents)
 	{
-		System.out.println("Creating Nuber Dispatch");
+		this(regionInfo, logEvents, ExecutionMode.fromSystemProperty());
+	}
+	
+	/**
+	 * Creates a new dispatch object whose regions all run bookings in the given execution mode.
+	 * 
+	 * @param regionInfo Map of region names and the max simultaneous bookings they can handle
+	 * @param logEvents Whether logEvent should print out events passed to it
+	 * @param executionMode Fixed thread pool or virtual thread per booking for every region
+	 */
+	public NuberDispatch(HashMap<String, Integer> regionInfo, boolean logEvents, ExecutionMode executionMode)
+	{
+		this(regionInfo, logEvents, executionMode, DriverMatching.fromSystemProperty());
+	}
+	
+	/**
+	 * Creates a new dispatch object with the given execution mode and driver matching policy.
+	 * 
+	 * @param regionInfo Map of region names and the max simultaneous bookings they can handle
+	 * @param logEvents Whether logEvent should print out events passed to it
+	 * @param executionMode Fixed thread pool or virtual thread per booking for every region
+	 * @param matching Whether bookings get any idle driver or the nearest one
+	 */
+	public NuberDispatch(HashMap<String, Integer> regionInfo, boolean logEvents, ExecutionMode executionMode, DriverMatching matching)
+	{
+		System.out.println("Creating Nuber Dispatch (" + matching + " driver matching)");
 		this.regionInfo = regionInfo;
 		this.logEvents = logEvents;
+		if (logEvents && "async".equalsIgnoreCase(System.getProperty("nuber.log", "print"))) {
+			try {
+				this.eventLog = EventLog.fromSystemProperties();
+			} catch (IOException e) {
+				System.out.println("Couldn't open the event log, printing events instead: " + e);
+			}
+		}
+		BookingJournal.Recovery recovery = null;
+		try {
+			recovery = BookingJournal.recoverFromSystemProperties();
+			if (recovery != null) {
+				this.journal = BookingJournal.fromSystemProperties(recovery);
+			}
+		} catch (IOException e) {
+			System.out.println("Couldn't open the booking journal, running without it: " + e);
+			recovery = null;
+		}
+		this.driverMatching = matching;
+		this.idleDriver = matching.newPool();
+		if (matching == DriverMatching.BATCHED) {
+			this.batchMatcher = new BatchMatcher(this);
+		}
 		
-		this.nuberRegionHashMap = new HashMap<>();
+		this.executionMode = executionMode.supported();
+		this.nuberRegionHashMap = new ConcurrentHashMap<>();
 		
 		//EntrySetでMapの全てのStringとIntの組み合わせを返して、一つずつ取り出すためにEntryとしてる。
-		System.out.println("Creating " + regionInfo.size() + " regions");
+		System.out.println("Creating " + regionInfo.size() + " regions (" + this.executionMode + " execution)");
 		for (Map.Entry<String, Integer> entry : regionInfo.entrySet()) {
 			//this.semaphoreForEachRegions.put(entry.getKey(), new Semaphore(entry.getValue()));
 			// for each region, create a new NuberRegion. 
 			System.out.println("Creating Nuber region for " + entry.getKey());
-			this.nuberRegionHashMap.put(entry.getKey(), new NuberRegion(this, entry.getKey(), entry.getValue()));
+			this.nuberRegionHashMap.put(entry.getKey(), new NuberRegion(this, entry.getKey(), entry.getValue(), this.executionMode));
 		}
 		System.out.println("Done creating " + regionInfo.size() +" regions");
+		
+		regionsChanged();
+		if (Long.getLong(RegionAutoscaler.PROPERTY, 0) > 0) {
+			this.autoscaler = new RegionAutoscaler(this);
+		}
+		if (Long.getLong(RidePooler.PROPERTY, 0) > 0) {
+			this.ridePooler = new RidePooler(this);
+		}
+		if (Long.getLong(DemandForecast.PROPERTY, 0) > 0) {
+			this.forecast = new DemandForecast(this);
+		}
+		
+		if (recovery != null) {
+			recover(recovery);
+		}
+	}
+	
+	//rebuilds the region ring and handle table after regions are added or removed, and starts 
+	//rebalancing once there is more than one region
+	private synchronized void regionsChanged()
+	{
+		this.regionRing = nuberRegionHashMap.values().stream()
+				.sorted((a, b) -> a.regionName.compareTo(b.regionName)).toArray(NuberRegion[]::new);
+		
+		List<NuberRegion> added = new ArrayList<NuberRegion>();
+		for (NuberRegion nuberRegion : regionRing) {
+			if (nuberRegion.handle < 0) {
+				added.add(nuberRegion);
+			}
+		}
+		NuberRegion[] handles = Arrays.copyOf(regionsByHandle, regionsByHandle.length + added.size());
+		for (int i = 0; i < regionsByHandle.length; i++) {
+			if (handles[i] != null && nuberRegionHashMap.get(handles[i].regionName) != handles[i]) {
+				handles[i] = null;
+			}
+		}
+		for (int i = 0; i < added.size(); i++) {
+			handles[regionsByHandle.length + i] = added.get(i);
+			added.get(i).handle = regionsByHandle.length + i;
+		}
+		this.regionsByHandle = handles;
+		
+		if (regionRing.length > 1 && batchMatcher == null && rebalancer == null) {
+			this.rebalancer = new DriverRebalancer(this);
+		}
+	}
+	
+	/**
+	 * Adds a region while dispatch is running. It takes bookings straight away, and its
+	 * bookings can steal drivers from the other regions until drivers are added or rebalanced into it.
+	 * 
+	 * @param region The new region's name
+	 * @param maxSimultaneousJobs The maximum number of simultaneous bookings the region is allowed to process
+	 * @return true if the region was added, false if there already is a region with that name
+	 * @throws IllegalStateException if dispatch has been shutdown
+	 */
+	public boolean addRegion(String region, int maxSimultaneousJobs)
+	{
+		if (isShutdown) {
+			throw new IllegalStateException("Can't add region " + region + ", dispatch has been shutdown");
+		}
+		NuberRegion nuberRegion = new NuberRegion(this, region, maxSimultaneousJobs, executionMode);
+		if (nuberRegionHashMap.putIfAbsent(region, nuberRegion) != null) {
+			nuberRegion.shutdown();
+			return false;
+		}
+		System.out.println("Added Nuber region for " + region);
+		regionsChanged();
+		//shutdown may have run between the check and the put, without this region
+		if (isShutdown) {
+			nuberRegion.shutdown();
+		}
+		return true;
+	}
+	
+	/**
+	 * Removes a region while dispatch is running. New bookings for it are rejected, but every
+	 * booking it has already accepted still completes. Its idle drivers, and drivers coming
+	 * back from its bookings, go to the other regions.
+	 * 
+	 * @param region The region's name
+	 * @return true if the region was removed, false if there is no region with that name
+	 */
+	public boolean removeRegion(String region)
+	{
+		NuberRegion nuberRegion = nuberRegionHashMap.remove(region);
+		if (nuberRegion == null) {
+			return false;
+		}
+		System.out.println("Removing Nuber region for " + region);
+		nuberRegion.isRetired = true;
+		retiringRegions.add(nuberRegion);
+		regionsChanged();
+		releaseIdleDrivers(nuberRegion);
+		nuberRegion.shutdown();
+		//the removed region may have been the last one still running
+		closeCompletionsIfDrained();
+		return true;
+	}
+	
+	/**
+	 * Gets the number to book into a region with, instead of its name. Booking by handle
+	 * is an array lookup rather than hashing the name. A removed region's handle is never
+	 * given to another region.
+	 * 
+	 * @param region The region's name
+	 * @return The region's handle, or -1 if there is no region with that name
+	 */
+	public int getRegionHandle(String region)
+	{
+		NuberRegion nuberRegion = nuberRegionHashMap.get(region);
+		return nuberRegion == null ? -1 : nuberRegion.handle;
+	}
+	
+	//null once the region has been removed
+	private NuberRegion regionFor(int handle)
+	{
+		NuberRegion[] handles = regionsByHandle;
+		return handle >= 0 && handle < handles.length ? handles[handle] : null;
+	}
+	
+	/**
+	 * Changes how many bookings a region can process at once, while it is running. Raising
+	 * it starts waiting bookings straight away, lowering it lets bookings over the new
+	 * limit finish first.
+	 * 
+	 * @param region The region's name
+	 * @param maxSimultaneousJobs The new limit, at least 1
+	 * @return true if the limit was changed, false if there is no region with that name
+	 */
+	public boolean setMaxSimultaneousJobs(String region, int maxSimultaneousJobs)
+	{
+		NuberRegion nuberRegion = nuberRegionHashMap.get(region);
+		if (nuberRegion == null) {
+			return false;
+		}
+		nuberRegion.setMaxSimultaneousJobs(maxSimultaneousJobs);
+		return true;
+	}
+	
+	/**
+	 * @return The names of the current regions, and how many bookings each can process at once
+	 */
+	public Map<String, Integer> getRegionLimits()
+	{
+		Map<String, Integer> limits = new TreeMap<String, Integer>();
+		for (NuberRegion nuberRegion : nuberRegionHashMap.values()) {
+			limits.put(nuberRegion.regionName, nuberRegion.getMaxSimultaneousJobs());
+		}
+		return limits;
+	}
+	
+	//moves a removed region's idle drivers to the regions still running
+	private void releaseIdleDrivers(NuberRegion region)
+	{
+		for (Driver driver = region.idleDrivers.poll(); driver != null; driver = region.idleDrivers.poll()) {
+			poolFor(null).offer(driver);
+		}
+		if (batchMatcher == null && driverWaiterCount > 0) {
+			handOffIdleDrivers();
+		}
+	}
+	
+	//puts back what a journal held when dispatch last stopped: the drivers go back in the idle 
+	//pool and unfinished bookings are booked again. both are journaled afresh, so the segments
+	//that were read can go once that is on disk.
+	private void recover(BookingJournal.Recovery recovery)
+	{
+		if (recovery.records == 0) {
+			recovery.deleteSegments();
+			return;
+		}
+		System.out.println("Recovering " + recovery.drivers.size() + " drivers and " + recovery.bookings.size() 
+				+ " unfinished bookings from the journal (" + recovery.records + " records, " + recovery.torn + " torn)");
+		for (Driver driver : recovery.drivers) {
+			addDriver(driver);
+		}
+		for (BookingJournal.PendingBooking booking : recovery.bookings) {
+			if (!nuberRegionHashMap.containsKey(booking.region)) {
+				System.out.println("Can't recover a booking for " + booking.passenger.name + ", there is no region " + booking.region);
+				continue;
+			}
+			bookPassenger(booking.passenger, booking.region, booking.priority, null);
+		}
+		journal.sync();
+		recovery.deleteSegments();
 	}
 	
 	/**
@@ -66,19 +414,144 @@ public class NuberDispatch{
 	 * 
 	 * Must be able to have drivers added from multiple threads.
 	 * 
+	 * The driver goes to the region with the fewest idle drivers, or to the shared pool if
+	 * dispatch has no regions.
+	 * 
 	 * @param The driver to add to the queue.
 	 * @return Returns true if driver was added to the queue
 	 */
 	//works perfect.
 	public boolean addDriver(Driver newDriver)
 	{
-		try {
-			//dont need to use semaphore since Blockingqueue is thread safe.
-			idleDriver.put(newDriver);
-			return true;
-		}catch (InterruptedException ie) { ie.printStackTrace();
-		System.out.println("Missed addDriver");
-		return false;} 
+		return addDriver(newDriver, null);
+	}
+	
+	/**
+	 * Adds a driver to a region's idle pool, which is where a booking returns its driver to.
+	 * With a demand forecast, the driver is sent to the region forecast to be shortest of 
+	 * drivers instead, unless the given region is short too, see DemandForecast.
+	 * 
+	 * @param newDriver The driver to add
+	 * @param region The region whose pool the driver joins, or null to pick one
+	 * @return Returns true if driver was added
+	 */
+	public boolean addDriver(Driver newDriver, NuberRegion region)
+	{
+		BookingJournal journal = this.journal;
+		if (journal != null) {
+			journal.driverIdle(newDriver);
+		}
+		DemandForecast forecast = this.forecast;
+		if (forecast != null) {
+			region = forecast.steer(region);
+		}
+		poolFor(region).offer(newDriver);
+		
+		//a waiting booking takes the driver straight back out. a waiter registered
+		//concurrently is covered too, getDriverAsync() checks the pools after registering.
+		//batched matching leaves it for the next batch.
+		if (batchMatcher == null && driverWaiterCount > 0) {
+			handOffIdleDrivers();
+		}
+		return true;
+	}
+	
+	//the pool a driver added for the given region joins. with no region, or a removed one, the
+	//region with the fewest idle drivers, or the shared pool if there are no regions.
+	protected IdleDriverPool poolFor(NuberRegion region)
+	{
+		if (region != null && !region.isRetired) {
+			return region.idleDrivers;
+		}
+		NuberRegion[] ring = regionRing;
+		if (ring.length == 0) {
+			return idleDriver;
+		}
+		NuberRegion emptiest = ring[0];
+		int fewest = emptiest.idleDrivers.size();
+		for (int i = 1; i < ring.length && fewest > 0; i++) {
+			int idle = ring[i].idleDrivers.size();
+			if (idle < fewest) {
+				emptiest = ring[i];
+				fewest = idle;
+			}
+		}
+		return emptiest.idleDrivers;
+	}
+	
+	/**
+	 * Takes an idle driver without waiting: from the region's own pool first, then stolen from
+	 * the other regions, nearest neighbours in region order first, then from the shared pool.
+	 * 
+	 * @param passenger The passenger the driver is for, or null for any driver
+	 * @param region The booking's region, or null to look everywhere
+	 * @return A driver, or null if there are no idle drivers anywhere
+	 */
+	protected Driver pollIdleDriver(Passenger passenger, NuberRegion region)
+	{
+		if (region != null) {
+			Driver driver = poll(region.idleDrivers, passenger);
+			if (driver != null) {
+				return driver;
+			}
+		}
+		
+		NuberRegion[] ring = regionRing;
+		int home = 0;
+		for (int i = 0; i < ring.length; i++) {
+			if (ring[i] == region) {
+				home = i;
+			}
+		}
+		//neighbours at +1, -1, +2, -2 ... around the ring
+		for (int step = 1; step <= ring.length; step++) {
+			int offset = (step % 2 == 1) ? (step + 1) / 2 : -(step / 2);
+			NuberRegion neighbour = ring[Math.floorMod(home + offset, ring.length)];
+			if (neighbour == region) {
+				continue;
+			}
+			Driver driver = poll(neighbour.idleDrivers, passenger);
+			if (driver != null) {
+				if (region != null) {
+					region.counters.stole();
+				}
+				return driver;
+			}
+		}
+		return poll(idleDriver, passenger);
+	}
+	
+	private static Driver poll(IdleDriverPool pool, Passenger passenger)
+	{
+		return passenger == null ? pool.poll() : pool.poll(passenger);
+	}
+	
+	/**
+	 * Takes an idle driver out of dispatch, to move them somewhere else such as another
+	 * partition. A booking waiting for a driver is never given this one.
+	 * 
+	 * @return The driver, or null if no driver is idle
+	 */
+	public Driver removeIdleDriver()
+	{
+		Driver driver = pollIdleDriver(null, null);
+		BookingJournal journal = this.journal;
+		if (driver != null && journal != null) {
+			journal.driverLeft(driver);
+		}
+		return driver;
+	}
+	
+	/**
+	 * @return The number of idle drivers across every region and the shared pool
+	 */
+	public int getIdleDriverCount()
+	{
+		int idle = idleDriver.size();
+		for (NuberRegion region : regionRing) {
+			idle += region.idleDrivers.size();
+		}
+		return idle;
 	}
 	
 	/**
@@ -91,18 +564,273 @@ public class NuberDispatch{
 	
 	//works fine.
 	public Driver getDriver()
+	{
+		return getDriver(null, null);
+	}
+
+	/**
+	 * Gets the best idle driver for a passenger, waiting until one is available.
+	 * With NEAREST matching that is the idle driver closest to the passenger.
+	 * 
+	 * @param passenger The passenger the driver will pick up
+	 * @return A driver that has been removed from the queue, or null if interrupted
+	 */
+	public Driver getDriver(Passenger passenger)
+	{
+		return getDriver(passenger, null);
+	}
+	
+	/**
+	 * Gets the best idle driver for a passenger booked in a region, waiting until one is 
+	 * available. The region's own idle drivers are used first, see pollIdleDriver().
+	 * 
+	 * @param passenger The passenger the driver will pick up, or null for any driver
+	 * @param region The booking's region, or null for none
+	 * @return A driver that has been removed from the queue, or null if interrupted
+	 */
+	public Driver getDriver(Passenger passenger, NuberRegion region)
+	{
+		return getDriver(passenger, region, BookingPriority.STANDARD, BookingPriority.STANDARD.dueNanos(System.nanoTime(), 0));
+	}
+	
+	/**
+	 * Gets the best idle driver for a booking, waiting until one is available. While drivers
+	 * are short, they are handed to the waiting booking that is due first, see BookingPriority.
+	 * 
+	 * @param passenger The passenger the driver will pick up, or null for any driver
+	 * @param region The booking's region, or null for none
+	 * @param priority The booking's class of service
+	 * @param dueNanos System.nanoTime() the booking is due by, from BookingPriority.dueNanos()
+	 * @return A driver that has been removed from the queue, or null if interrupted or cancelled
+	 */
+	public Driver getDriver(Passenger passenger, NuberRegion region, BookingPriority priority, long dueNanos)
+	{
+		//with bookings already waiting, a driver is theirs to be handed out first due first
+		if (batchMatcher == null && driverWaiterCount == 0) {
+			Driver driver = pollIdleDriver(passenger, region);
+			if (driver != null) {
+				return driver;
+			}
+		}
+		
+		//nothing idle, so wait in line with the async bookings
+		try {
+			return await(getDriverAsync(passenger, region, priority, dueNanos), region);
+		} catch (CompletionException e) {
+			//waited the maximum
+			return null;
+		}
+	}
+	
+	/**
+	 * Gets a started booking its driver, the same way as getDriver(). While it waits, the 
+	 * booking can be cancelled, see Booking.cancelWait().
+	 * 
+	 * @return The driver, or null if the booking was cancelled or interrupted first
+	 * @throws CompletionException caused by a TimeoutException if the booking waited the maximum
+	 */
+	Driver awaitDriver(Booking booking)
+	{
+		if (booking.isCancelled()) {
+			return null;
+		}
+		if (batchMatcher == null && driverWaiterCount == 0) {
+			Driver driver = pollIdleDriver(booking.passenger, booking.region);
+			if (driver != null) {
+				return driver;
+			}
+		}
+		CompletableFuture<Driver> driver = getDriverAsync(booking.passenger, booking.region, booking.priority, booking.dueNanos);
+		booking.waitFor(driver);
+		return await(driver, booking.region);
+	}
+	
+	//waits for a driver from getDriverAsync(). null if cancelled or interrupted, a timeout is thrown.
+	private Driver await(CompletableFuture<Driver> driver, NuberRegion region)
 	{
 		try {
-			return idleDriver.take();
-		}catch (Exception e) {
-			// TODO: handle exception
-			if (idleDriver.size() == 0) {
-				System.out.println("Available driver is now 0. Sorry.");
+			return driver.get();
+		} catch (InterruptedException e) {
+			System.out.println("Interrupted while waiting for a driver");
+			//if a driver was handed over first it's ours, so give it back
+			if (!driver.cancel(false)) {
+				addDriver(driver.join(), region);
 			}
-			else {
-				System.out.println("error");
+			return null;
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof TimeoutException) {
+				throw new CompletionException(e.getCause());
 			}
 			return null;
+		} catch (CancellationException e) {
+			//cancelled by the booking, or by a deadline-bounded shutdown
+			return null;
+		}
+	}
+	
+	/**
+	 * Sets the longest a booking waits for a driver once it has started. A booking that waits 
+	 * that long leaves the line of bookings waiting without a driver, and fails with a 
+	 * DRIVER_TIMEOUT BookingRejectedException, or the TIMED_OUT outcome in a BookingStore, so 
+	 * its region position and thread are freed for the next booking. 
+	 * 
+	 * Starts at -Dnuber.driver.wait.millis, no limit if that isn't set. Applies to bookings that
+	 * start waiting from now on.
+	 * 
+	 * @param maxWait The longest wait, or null or zero for no limit
+	 */
+	public void setMaxDriverWait(Duration maxWait)
+	{
+		this.maxDriverWaitNanos = maxWait == null ? 0 : Math.max(0, maxWait.toNanos());
+	}
+	
+	/**
+	 * @return The longest a booking waits for a driver, or null for no limit
+	 */
+	public Duration getMaxDriverWait()
+	{
+		long nanos = maxDriverWaitNanos;
+		return nanos == 0 ? null : Duration.ofNanos(nanos);
+	}
+
+	/**
+	 * Gets a driver for a passenger without blocking. If one is idle the returned future is 
+	 * already complete, otherwise it is completed by a later addDriver() call.
+	 * 
+	 * @param passenger The passenger the driver will pick up
+	 * @return A future that provides a driver removed from the queue
+	 */
+	public CompletableFuture<Driver> getDriverAsync(Passenger passenger)
+	{
+		return getDriverAsync(passenger, null);
+	}
+	
+	/**
+	 * Gets a driver for a passenger booked in a region without blocking, using the region's
+	 * own idle drivers first.
+	 * 
+	 * @param passenger The passenger the driver will pick up
+	 * @param region The booking's region, or null for none
+	 * @return A future that provides a driver removed from the queue
+	 */
+	public CompletableFuture<Driver> getDriverAsync(Passenger passenger, NuberRegion region)
+	{
+		return getDriverAsync(passenger, region, BookingPriority.STANDARD, BookingPriority.STANDARD.dueNanos(System.nanoTime(), 0));
+	}
+	
+	/**
+	 * Gets a driver for a booking without blocking. If none is idle, the booking waits with
+	 * the others and drivers are handed out earliest due first, see BookingPriority.
+	 * 
+	 * @param passenger The passenger the driver will pick up
+	 * @param region The booking's region, or null for none
+	 * @param priority The booking's class of service
+	 * @param dueNanos System.nanoTime() the booking is due by, from BookingPriority.dueNanos()
+	 * @return A future that provides a driver removed from the queue. Cancelling it takes the 
+	 * booking out of the line, and it fails with a TimeoutException if the booking waits longer 
+	 * than setMaxDriverWait() allows.
+	 */
+	public CompletableFuture<Driver> getDriverAsync(Passenger passenger, NuberRegion region, BookingPriority priority, long dueNanos)
+	{
+		if (batchMatcher != null) {
+			return addDriverWaiter(passenger, region, priority, dueNanos).driver;
+		}
+		
+		//a driver freed while others wait is offered to the pool before it is handed off, so a
+		//new booking only takes one straight from the pools when nobody is waiting. otherwise it
+		//joins the line and the hand off picks whichever waiter is due first.
+		if (driverWaiterCount == 0) {
+			Driver driver = pollIdleDriver(passenger, region);
+			if (driver != null) {
+				return CompletableFuture.completedFuture(driver);
+			}
+		}
+		
+		DriverWaiter waiter = addDriverWaiter(passenger, region, priority, dueNanos);
+		//a driver added between the poll above and registering would otherwise sit idle
+		handOffIdleDrivers();
+		return waiter.driver;
+	}
+	
+	private DriverWaiter addDriverWaiter(Passenger passenger, NuberRegion region, BookingPriority priority, long dueNanos)
+	{
+		DriverWaiter waiter = new DriverWaiter(passenger, region, priority, dueNanos);
+		synchronized (driverHandOffLock) {
+			waiter.sequence = nextWaiterSequence++;
+			driverWaiters.add(waiter);
+			driverWaiterCount++;
+		}
+		//a cancelled or timed out booking leaves the line straight away, not when it reaches the front
+		waiter.driver.whenComplete((driver, error) -> {
+			if (error != null) {
+				removeDriverWaiter(waiter);
+			}
+		});
+		//orTimeout drops its timer once the driver arrives, so waiters that are served don't pile
+		//up timers, and it doesn't need the trip scheduler to still be running
+		if (maxDriverWaitNanos > 0) {
+			waiter.driver.orTimeout(maxDriverWaitNanos, TimeUnit.NANOSECONDS);
+		}
+		return waiter;
+	}
+	
+	private void removeDriverWaiter(DriverWaiter waiter)
+	{
+		synchronized (driverHandOffLock) {
+			if (driverWaiters.remove(waiter)) {
+				driverWaiterCount--;
+			}
+		}
+	}
+	
+	/**
+	 * @return A summary of batched matching so far, or null if dispatch isn't using BATCHED matching
+	 */
+	public String getBatchMatchingReport()
+	{
+		return batchMatcher == null ? null : batchMatcher.getReport();
+	}
+	
+	/**
+	 * @return A summary of shared rides so far, or null if rides aren't being pooled
+	 */
+	public String getRidePoolingReport()
+	{
+		return ridePooler == null ? null : ridePooler.getReport();
+	}
+	
+	/**
+	 * @return Each region's demand forecast and the drivers steered to it, or null if dispatch
+	 * isn't forecasting demand
+	 */
+	public String getForecastReport()
+	{
+		return forecast == null ? null : forecast.getReport();
+	}
+	
+	//moves idle drivers to waiting bookings, earliest due first, while both exist.
+	protected void handOffIdleDrivers()
+	{
+		while (true) {
+			DriverWaiter waiter;
+			Driver driver;
+			synchronized (driverHandOffLock) {
+				waiter = driverWaiters.peek();
+				if (waiter == null) {
+					return;
+				}
+				driver = pollIdleDriver(waiter.passenger, waiter.region);
+				if (driver == null) {
+					return;
+				}
+				driverWaiters.poll();
+				driverWaiterCount--;
+			}
+			//complete outside the lock, the booking's next stage runs on this thread.
+			//a cancelled waiter refuses the driver, so it goes back for the next one.
+			if (!waiter.driver.complete(driver)) {
+				poolFor(waiter.region).offer(driver);
+			}
 		}
 	}
 
@@ -120,6 +848,54 @@ public class NuberDispatch{
 		
 		System.out.println(booking + ": " + message);
 	}
+	
+	/**
+	 * Logs one of a booking's state changes. With the async event log this only records a 
+	 * few numbers in its ring buffer, otherwise it prints the same line as logEvent(booking, message).
+	 * 
+	 * @param booking The booking that's responsible for the event occurring
+	 * @param event The state change
+	 */
+	public void logEvent(Booking booking, BookingEvent event) {
+		
+		if (!logEvents) return;
+		
+		EventLog log = eventLog;
+		if (log == null) {
+			logEvent(booking, event.message);
+			return;
+		}
+		Driver driver = booking.availableDriver;
+		Passenger passenger = booking.passenger;
+		log.record(booking.jobID, driver == null ? -1 : driver.id, passenger == null ? -1 : passenger.id, event);
+	}
+	
+	/**
+	 * Writes out any events still in the async event log and closes it. Events logged after 
+	 * this are printed instead. Does nothing if the async log isn't in use.
+	 */
+	public void closeEventLog() {
+		EventLog log = eventLog;
+		if (log == null) return;
+		
+		eventLog = null;
+		log.close();
+		if (log.getDropped() > 0) {
+			System.out.println("Event log dropped " + log.getDropped() + " events because it was full");
+		}
+	}
+	
+	/**
+	 * Closes the booking journal once every booking has finished. There is nothing left to
+	 * recover, so the journal's segments are deleted.
+	 */
+	public void closeJournal() {
+		BookingJournal journal = this.journal;
+		if (journal == null) return;
+		
+		this.journal = null;
+		journal.close(true);
+	}
 
 	/**
 	 * Books a given passenger into a given Nuber region.
@@ -143,18 +919,201 @@ public class NuberDispatch{
 	*/
 	
 	public Future<BookingResult> bookPassenger(Passenger passenger, String region) {
+		return bookPassenger(passenger, region, BookingPriority.STANDARD, null);
+	}
+	
+	/**
+	 * Books a given passenger into a given Nuber region, in a class of service and with an
+	 * optional pickup deadline. Both decide when the region starts the booking and when it is
+	 * given a driver, see BookingPriority.
+	 * 
+	 * @param passenger The passenger to book
+	 * @param region The region to book them into
+	 * @param priority The booking's class of service
+	 * @param pickupWithin How soon after now the passenger must be picked up, or null for no deadline
+	 * @return returns a Future<BookingResult> object, or null if the booking was rejected
+	 */
+	public Future<BookingResult> bookPassenger(Passenger passenger, String region, BookingPriority priority, Duration pickupWithin) {
 		NuberRegion nuberRegion = nuberRegionHashMap.get(region);
+		if (nuberRegion == null) {
+			System.out.println("Booking rejected, there is no region " + region);
+			return null;
+		}
 
-		Future<BookingResult> bookingFuture = nuberRegion.bookPassenger(passenger);
-		
-		//If null, the BookingAwaitingDriver shouldn't be incremented.
-		if (bookingFuture != null) {
-			//Once a passenger is booked, the getBookingsAwaitingDriver() should be returning one higher.
-			incrementalBookingAwaitingDriver();
+		//Once a passenger is booked, the getBookingsAwaitingDriver() should be returning one higher.
+		//the region counts it as it accepts the booking, before the booking can be given a driver.
+		return nuberRegion.bookPassenger(passenger, priority, pickupWithin);
+	}
+	
+	/**
+	 * Books a given passenger into a given Nuber region, saying why if the region refuses.
+	 * 
+	 * Unlike bookPassenger(), a region whose backlog is full under the REJECT policy, or which
+	 * has been asked to shutdown, throws instead of returning null, so callers can push back.
+	 * 
+	 * @param passenger The passenger to book
+	 * @param region The region to book them into
+	 * @return returns a Future<BookingResult> object
+	 * @throws BookingRejectedException if the region refused the booking, or there is no such region
+	 * @throws InterruptedException if interrupted while waiting for room under the BLOCK policy
+	 */
+	public Future<BookingResult> tryBookPassenger(Passenger passenger, String region) throws BookingRejectedException, InterruptedException {
+		return tryBookPassenger(passenger, region, BookingPriority.STANDARD, null);
+	}
+	
+	/**
+	 * Same as tryBookPassenger(Passenger, String), for a booking in a class of service and with
+	 * an optional pickup deadline, see BookingPriority.
+	 * 
+	 * @param passenger The passenger to book
+	 * @param region The region to book them into
+	 * @param priority The booking's class of service
+	 * @param pickupWithin How soon after now the passenger must be picked up, or null for no deadline
+	 * @return returns a Future<BookingResult> object
+	 * @throws BookingRejectedException if the region refused the booking, or there is no such region
+	 * @throws InterruptedException if interrupted while waiting for room under the BLOCK policy
+	 */
+	public Future<BookingResult> tryBookPassenger(Passenger passenger, String region, BookingPriority priority, Duration pickupWithin)
+			throws BookingRejectedException, InterruptedException {
+		NuberRegion nuberRegion = nuberRegionHashMap.get(region);
+		if (nuberRegion == null) {
+			throw new BookingRejectedException(BookingRejectedException.Reason.NO_SUCH_REGION, region);
 		}
-		return bookingFuture;
+		
+		return nuberRegion.tryBookPassenger(passenger, priority, pickupWithin);
 	}
 
+	/**
+	 * Same as tryBookPassenger(Passenger, String, BookingPriority, Duration), for a region
+	 * given by its handle.
+	 * 
+	 * @param passenger The passenger to book
+	 * @param regionHandle The region's handle, from getRegionHandle()
+	 * @param priority The booking's class of service
+	 * @param pickupWithin How soon after now the passenger must be picked up, or null for no deadline
+	 * @return returns a Future<BookingResult> object
+	 * @throws BookingRejectedException if the region refused the booking, or there is no such region
+	 * @throws InterruptedException if interrupted while waiting for room under the BLOCK policy
+	 */
+	public Future<BookingResult> tryBookPassenger(Passenger passenger, int regionHandle, BookingPriority priority, Duration pickupWithin)
+			throws BookingRejectedException, InterruptedException {
+		NuberRegion nuberRegion = regionFor(regionHandle);
+		if (nuberRegion == null) {
+			throw new BookingRejectedException(BookingRejectedException.Reason.NO_SUCH_REGION, String.valueOf(regionHandle));
+		}
+		
+		return nuberRegion.tryBookPassenger(passenger, priority, pickupWithin);
+	}
+	
+	/**
+	 * Creates the store that bookings made with submit() report to. Only one store can be
+	 * opened per dispatch.
+	 * 
+	 * @param capacity The most submitted bookings that can be in flight at once
+	 * @param listener Told about each submitted booking as it finishes, see BookingStore
+	 * @return The store
+	 * @throws IllegalStateException if a store is already open
+	 */
+	public synchronized BookingStore openBookingStore(int capacity, BookingStore.Listener listener)
+	{
+		if (bookingStore != null) {
+			throw new IllegalStateException("Dispatch already has a booking store");
+		}
+		bookingStore = new BookingStore(capacity, listener);
+		return bookingStore;
+	}
+	
+	/**
+	 * @return The store submitted bookings report to, or null if none has been opened
+	 */
+	public BookingStore getBookingStore()
+	{
+		return bookingStore;
+	}
+	
+	/**
+	 * Books a passenger without a Future or a BookingResult. The booking is scheduled like 
+	 * any other, and when it finishes its result is written to the BookingStore, whose 
+	 * listener is told. Once the store's slots and the regions' executors have warmed up, 
+	 * a FIXED mode booking made this way allocates nothing in dispatch or its region, as 
+	 * long as a driver is idle when it asks for one.
+	 * 
+	 * Results identify the booking by its passenger's id, so a caller can reuse its Passenger
+	 * objects once their bookings have finished.
+	 * 
+	 * @param passenger The passenger to book
+	 * @param regionHandle The region's handle, from getRegionHandle()
+	 * @param priority The booking's class of service
+	 * @param pickupWithinNanos How soon after now the passenger must be picked up, negative for no deadline
+	 * @throws BookingRejectedException if the region refused the booking, there is no such region, 
+	 * or every store slot is in use
+	 * @throws InterruptedException if interrupted while waiting for room under the BLOCK policy
+	 * @throws IllegalStateException if no store has been opened
+	 */
+	public void submit(Passenger passenger, int regionHandle, BookingPriority priority, long pickupWithinNanos)
+			throws BookingRejectedException, InterruptedException {
+		submit(passenger, regionHandle, priority, pickupWithinNanos, 0);
+	}
+	
+	/**
+	 * Books a passenger without a Future, as submit() above, recording when the booking was
+	 * asked for. A caller that fell behind its schedule, such as a load generator or a network
+	 * front-end with requests queued, passes the time it meant to submit or received the request,
+	 * so BookingStore.getRequestedNanos() gives latencies that include that delay.
+	 * 
+	 * @param requestedNanos System.nanoTime() the booking was asked for, 0 for now. The pickup 
+	 * deadline is still counted from now.
+	 */
+	public void submit(Passenger passenger, int regionHandle, BookingPriority priority, long pickupWithinNanos, 
+			long requestedNanos) throws BookingRejectedException, InterruptedException {
+		submit(passenger, regionHandle, priority, pickupWithinNanos, requestedNanos, true);
+	}
+	
+	/**
+	 * Books a passenger without a Future, as submit() does, but never waits for room. A region
+	 * whose backlog is full refuses the booking with BACKLOG_FULL even under the BLOCK policy,
+	 * so a thread that serves many callers, such as a selector thread, is never held up by
+	 * one full region.
+	 * 
+	 * @throws BookingRejectedException if the region refused the booking, there is no such region, 
+	 * or every store slot is in use
+	 * @throws IllegalStateException if no store has been opened
+	 */
+	public void offer(Passenger passenger, int regionHandle, BookingPriority priority, long pickupWithinNanos) 
+			throws BookingRejectedException {
+		try {
+			submit(passenger, regionHandle, priority, pickupWithinNanos, 0, false);
+		} catch (InterruptedException e) {
+			//only thrown while waiting, which offer never does
+			throw new IllegalStateException(e);
+		}
+	}
+	
+	private void submit(Passenger passenger, int regionHandle, BookingPriority priority, long pickupWithinNanos, 
+			long requestedNanos, boolean mayWait) throws BookingRejectedException, InterruptedException {
+		BookingStore store = bookingStore;
+		if (store == null) {
+			throw new IllegalStateException("Open a booking store before submitting bookings");
+		}
+		NuberRegion nuberRegion = regionFor(regionHandle);
+		if (nuberRegion == null) {
+			throw new BookingRejectedException(BookingRejectedException.Reason.NO_SUCH_REGION, String.valueOf(regionHandle));
+		}
+		int slot = store.acquire();
+		if (slot < 0) {
+			throw new BookingRejectedException(BookingRejectedException.Reason.STORE_FULL, nuberRegion.regionName);
+		}
+		
+		NuberRegion.QueuedBooking queued = store.entry(slot);
+		queued.init(nuberRegion, passenger, priority, pickupWithinNanos, requestedNanos);
+		try {
+			nuberRegion.enqueue(queued, mayWait);
+		} catch (BookingRejectedException | InterruptedException e) {
+			store.release(slot);
+			throw e;
+		}
+	}
+	
 	/**
 	 * Gets the number of non-completed bookings that are awaiting a driver from dispatch
 	 * 
@@ -165,24 +1124,224 @@ public class NuberDispatch{
 	//works fine.
 	public int getBookingsAwaitingDriver()
 	{
-		return bookingAwaitingDriver;
+		return bookingAwaitingDriver.intValue();
 	}
 	
 	
 	//Add by Aoto. 
-	public synchronized void incrementalBookingAwaitingDriver() {
-		bookingAwaitingDriver++;
+	public void incrementalBookingAwaitingDriver() {
+		bookingAwaitingDriver.increment();
+	}
+	public void decrementalBookingAwaitingDriver() {
+		bookingAwaitingDriver.decrement();
+	}
+	
+	/**
+	 * Gets the phase latencies of every booking that has arrived, across all regions.
+	 * 
+	 * @return A copy of the regions' histograms added together
+	 */
+	public BookingLatencies getLatencies()
+	{
+		BookingLatencies total = new BookingLatencies();
+		for (NuberRegion nuberRegion : nuberRegionHashMap.values()) {
+			total.add(nuberRegion.latencies);
+		}
+		return total;
+	}
+	
+	/**
+	 * Gets the phase latencies of every booking that has arrived in one region.
+	 * 
+	 * @param region The region's name
+	 * @return A copy of the region's histograms, or null if there is no such region
+	 */
+	public BookingLatencies getLatencies(String region)
+	{
+		NuberRegion nuberRegion = nuberRegionHashMap.get(region);
+		return nuberRegion == null ? null : nuberRegion.latencies.copy();
+	}
+	
+	/**
+	 * @return The phase latencies of all regions, then each region by name, as text
+	 */
+	public String getLatencyReport()
+	{
+		StringBuilder builder = new StringBuilder("Booking latencies, all regions:\n").append(getLatencies());
+		for (String region : new TreeMap<String, NuberRegion>(nuberRegionHashMap).keySet()) {
+			builder.append("\n").append(region).append(":\n").append(getLatencies(region));
+		}
+		return builder.toString();
 	}
-	public synchronized void decrementalBookingAwaitingDriver() {
-		bookingAwaitingDriver--;
+	
+	/**
+	 * Takes a snapshot of the booking counts for every region and across all regions.
+	 * 
+	 * Only reads counters, so it is safe to poll every few milliseconds from a monitor thread.
+	 * 
+	 * @return The current counts
+	 */
+	public DispatchStats getStats()
+	{
+		Map<String, DispatchStats.RegionStats> regions = new TreeMap<String, DispatchStats.RegionStats>();
+		long awaiting = 0, active = 0, completed = 0, rejected = 0, issued = 0, queued = 0, started = 0, queuedNanos = 0;
+		long idle = idleDriver.size(), stolen = 0, rebalancedIn = 0, cancelled = 0, timedOut = 0, missed = 0, missedPremium = 0;
+		for (NuberRegion nuberRegion : nuberRegionHashMap.values()) {
+			DispatchStats.RegionStats stats = nuberRegion.counters.snapshot(nuberRegion.regionName, nuberRegion.idleDrivers.size());
+			regions.put(nuberRegion.regionName, stats);
+			awaiting += stats.awaitingDriver;
+			active += stats.active;
+			completed += stats.completed;
+			rejected += stats.rejected;
+			issued += stats.bookingsIssued;
+			queued += stats.queued;
+			started += stats.started;
+			queuedNanos += stats.totalQueuedNanos;
+			idle += stats.idleDrivers;
+			stolen += stats.stolen;
+			rebalancedIn += stats.rebalancedIn;
+			cancelled += stats.cancelled;
+			timedOut += stats.timedOut;
+			missed += stats.missedDeadlines;
+			missedPremium += stats.missedPremiumDeadlines;
+		}
+		DispatchStats.RegionStats total = new DispatchStats.RegionStats("All regions", awaiting, active, completed, rejected, issued,
+				queued, started, queuedNanos, idle, stolen, rebalancedIn, cancelled, timedOut, missed, missedPremium);
+		return new DispatchStats(System.nanoTime(), Booking.getBookingIdsIssued(), total, regions);
 	}
 	
 	/**
 	 * Tells all regions to finish existing bookings already allocated, and stop accepting new bookings
 	 */
 	public void shutdown() {
+		isShutdown = true;
 		for (NuberRegion nuberRegion : nuberRegionHashMap.values()) {
 			nuberRegion.shutdown();
 		}
+		closeCompletionsIfDrained();
+	}
+	
+	/**
+	 * Shuts down like shutdown(), then waits up to the deadline for every region to finish its
+	 * bookings. Whatever is left at the deadline is dealt with so the wait is bounded:
+	 * bookings still queued for a position and bookings still waiting for a driver are 
+	 * cancelled, their futures fail and no driver is held by them. Bookings already on a trip
+	 * are left to finish, there's no taking a passenger back.
+	 * 
+	 * @param deadline How long to wait for the drain
+	 * @return What happened during the drain
+	 * @throws InterruptedException if interrupted while waiting, nothing is cancelled then
+	 */
+	public DrainReport shutdown(Duration deadline) throws InterruptedException
+	{
+		long start = System.nanoTime();
+		long completedBefore = getStats().total.completed;
+		shutdown();
+		
+		long end = start + Math.max(0, deadline.toNanos());
+		synchronized (drainLock) {
+			for (long left = end - System.nanoTime(); !isDrained && left > 0; left = end - System.nanoTime()) {
+				TimeUnit.NANOSECONDS.timedWait(drainLock, left);
+			}
+		}
+		
+		int cancelledQueued = 0;
+		int cancelledWaiting = 0;
+		boolean drained;
+		synchronized (drainLock) {
+			drained = isDrained;
+		}
+		if (!drained) {
+			for (NuberRegion nuberRegion : nuberRegionHashMap.values()) {
+				cancelledQueued += nuberRegion.cancelQueuedBookings();
+			}
+			for (NuberRegion nuberRegion : retiringRegions) {
+				cancelledQueued += nuberRegion.cancelQueuedBookings();
+			}
+			cancelledWaiting = cancelDriverWaiters();
+			if (ridePooler != null) {
+				cancelledWaiting += ridePooler.cancelOpenRides();
+			}
+		}
+		
+		DispatchStats stats = getStats();
+		return new DrainReport(drained, System.nanoTime() - start, stats.total.completed - completedBefore,
+				cancelledWaiting, cancelledQueued, drained ? 0 : stats.total.active);
+	}
+	
+	//cancels every booking waiting for a driver. a booking handed a driver first keeps it.
+	private int cancelDriverWaiters()
+	{
+		List<DriverWaiter> waiters;
+		synchronized (driverHandOffLock) {
+			waiters = new ArrayList<DriverWaiter>(driverWaiters);
+			driverWaiters.clear();
+			driverWaiterCount = 0;
+		}
+		int cancelled = 0;
+		for (DriverWaiter waiter : waiters) {
+			if (waiter.driver.cancel(false)) {
+				cancelled++;
+			}
+		}
+		return cancelled;
+	}
+	
+	/**
+	 * Gets the stream of booking results. A subscriber is handed each result the moment its
+	 * booking completes, as fast as it requests them, and is completed once dispatch has been
+	 * shut down and every region has finished its bookings.
+	 * 
+	 * @return The publisher of every booking result from now on
+	 */
+	public Flow.Publisher<BookingResult> getCompletions()
+	{
+		return completions;
+	}
+	
+	//called by a region once it is shutdown and has finished every booking
+	protected void regionDrained(NuberRegion region)
+	{
+		if (region.isRetired) {
+			//drivers that came back from its last bookings
+			releaseIdleDrivers(region);
+			retiringRegions.remove(region);
+		}
+		closeCompletionsIfDrained();
+	}
+	
+	//the completion stream ends once dispatch is shutdown and no region has bookings left
+	private void closeCompletionsIfDrained()
+	{
+		if (!isShutdown) {
+			return;
+		}
+		for (NuberRegion nuberRegion : nuberRegionHashMap.values()) {
+			if (!nuberRegion.isDrained()) {
+				return;
+			}
+		}
+		if (retiringRegions.isEmpty()) {
+			completions.close();
+			//every trip has finished, there's nothing left to time, match, rebalance, resize or forecast
+			tripScheduler.shutdownNow();
+			if (batchMatcher != null) {
+				batchMatcher.shutdown();
+			}
+			DriverRebalancer rebalancer = this.rebalancer;
+			if (rebalancer != null) {
+				rebalancer.shutdown();
+			}
+			if (autoscaler != null) {
+				autoscaler.shutdown();
+			}
+			if (forecast != null) {
+				forecast.shutdown();
+			}
+			synchronized (drainLock) {
+				isDrained = true;
+				drainLock.notifyAll();
+			}
+		}
 	}
 }
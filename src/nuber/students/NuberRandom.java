@@ -0,0 +1,70 @@
+package nuber.students;
+
+import java.util.SplittableRandom;
+
+/**
+ * The randomness a run is made from, all derived from one seed so a run can be repeated exactly.
+ *
+ * Each person gets a stream of their own, split from the run's root stream when they are created,
+ * and draws their location and a passenger their trip time from it. Nothing random is drawn on
+ * a booking thread, so booking threads never contend on a shared generator, and which thread
+ * runs a booking doesn't change what it draws. Creating people in the same order from the same
+ * seed gives the same people, trips and, where callers split their own streams, the same choices.
+ *
+ * The seed is set with -Dnuber.seed, or reseed(). Without one a random seed is picked, and
+ * getSeed() gives it so the run can be repeated.
+ *
+ * @author james
+ *
+ */
+public final class NuberRandom {
+
+	/**
+	 * System property used to set the run's seed
+	 */
+	public static final String PROPERTY = "nuber.seed";
+
+	private static long seed;
+	//guarded by the class lock, SplittableRandom isn't thread safe
+	private static SplittableRandom root;
+
+	static {
+		Long configured = Long.getLong(PROPERTY);
+		reseed(configured != null ? configured : new SplittableRandom().nextLong());
+	}
+
+	private NuberRandom()
+	{
+	}
+
+	/**
+	 * Starts the root stream again from a seed. People created afterwards draw the same values,
+	 * in the same order, as after any other reseed with that seed.
+	 *
+	 * @param newSeed The seed
+	 */
+	public static synchronized void reseed(long newSeed)
+	{
+		seed = newSeed;
+		root = new SplittableRandom(newSeed);
+	}
+
+	/**
+	 * @return The seed the root stream was last started from
+	 */
+	public static synchronized long getSeed()
+	{
+		return seed;
+	}
+
+	/**
+	 * Splits a new, independent stream off the root. The stream isn't thread safe, it is for
+	 * one person, booking or thread to draw from.
+	 *
+	 * @return The new stream
+	 */
+	public static synchronized SplittableRandom split()
+	{
+		return root.split();
+	}
+}
@@ -1,13 +1,19 @@
 package nuber.students;
 
 import java.nio.channels.NonReadableChannelException;
+import java.time.Duration;
+import java.util.ArrayList;
 import java.util.Collection;
-import java.util.concurrent.Callable;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
-import java.util.concurrent.Semaphore;
 import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * A single Nuber region that operates independently of other regions, other than getting 
@@ -20,6 +26,22 @@ import java.util.concurrent.ThreadPoolExecutor;
  * 
  * Bookings do NOT have to be completed in FIFO order.
  * 
+ * Waiting bookings are started earliest deadline first, see BookingPriority, so a premium 
+ * booking or one with a close pickup deadline goes ahead of older standard bookings, and 
+ * standard bookings still start once they have waited their class's maximum.
+ * 
+ * Bookings waiting for a position are held in a bounded backlog. When it is full, the region's
+ * BacklogPolicy decides whether the caller blocks, the new booking is rejected, or the oldest
+ * waiting booking is shed, so a burst can't grow the region's memory without limit.
+ * 
+ * The concurrency limit can be changed while the region is running, see setMaxSimultaneousJobs().
+ * 
+ * Cancelling a booking's Future takes the booking out of the backlog, or out of the line for a
+ * driver, freeing its position. A booking that already has its driver finishes its trip.
+ * 
+ * Each region keeps its own idle drivers. Bookings use them first, and only steal a driver
+ * from a neighbouring region once the region's own pool is empty.
+ * 
  * @author james
  *
  */
@@ -38,12 +60,136 @@ public class NuberRegion {
 	//Added by Aoto
 	protected NuberDispatch dispatch;
 	protected String regionName;
+	//index of the region in dispatch's handle table, -1 until dispatch registers it
+	protected volatile int handle = -1;
+	//can be changed while running, guarded by backlogLock
 	protected int maxSimultaneousJobs;
-	protected Semaphore jobSemaphore;
 	
 	//Use thread pool.
 	protected ExecutorService executor;
-	protected boolean isShutdown = false;
+	protected ExecutionMode executionMode;
+	//volatile so monitors can read it without the lock, changes are still made under backlogLock
+	protected volatile boolean isShutdown = false;
+	protected final RegionCounters counters = new RegionCounters();
+	protected final BookingLatencies latencies = new BookingLatencies();
+	
+	//drivers idle in this region, see NuberDispatch.pollIdleDriver() for the stealing order
+	protected final IdleDriverPool idleDrivers;
+	
+	//bookings accepted but waiting for a position, earliest due first. backlogLock guards the 
+	//backlog, activeJobs and isShutdown changes, and a booking is only started once it has a 
+	//position, so the executor never holds more than maxSimultaneousJobs bookings.
+	protected final PriorityQueue<QueuedBooking> backlog = new PriorityQueue<QueuedBooking>();
+	protected final ReentrantLock backlogLock = new ReentrantLock();
+	private final Condition backlogHasRoom = backlogLock.newCondition();
+	protected int activeJobs = 0;
+	//breaks ties between bookings due at the same time, guarded by backlogLock
+	private long nextSequence = 0;
+	private volatile boolean drained = false;
+	
+	//set by dispatch when the region is removed, drivers then go back to the other regions
+	protected volatile boolean isRetired = false;
+	protected int maxQueuedBookings;
+	protected BacklogPolicy backlogPolicy;
+	
+	/**
+	 * A booking waiting in the backlog
+	 */
+	protected static class QueuedBooking implements Comparable<QueuedBooking>, Runnable {
+		NuberRegion region;
+		Passenger passenger;
+		//null for a booking submitted to a BookingStore, which gets the result instead
+		final CompletableFuture<BookingResult> result;
+		//the store and slot of a submitted booking, which reuses this object
+		final BookingStore store;
+		final int slot;
+		long queuedAt;
+		//System.nanoTime() the caller asked for the booking, queuedAt unless the caller said otherwise
+		long requestedAt;
+		BookingPriority priority;
+		//System.nanoTime() the passenger must be picked up by, 0 for none
+		long pickupDeadline;
+		long due;
+		long sequence;
+		//the booking's key in dispatch's journal, -1 if it isn't journaled
+		long journalKey;
+		//set once the booking has started, a store slot's booking is reused with Booking.reset().
+		//volatile with cancelled, so a cancel racing the start is seen by one side or the other.
+		volatile Booking booking;
+		//set when the booking's Future is cancelled
+		volatile boolean cancelled;
+		//links the bookings taken from the backlog to start together
+		QueuedBooking nextToStart;
+		
+		QueuedBooking(NuberRegion region, Passenger passenger, BookingPriority priority, long pickupWithinNanos)
+		{
+			this.result = new BookingFuture(this);
+			this.store = null;
+			this.slot = -1;
+			init(region, passenger, priority, pickupWithinNanos, 0);
+		}
+		
+		QueuedBooking(BookingStore store, int slot)
+		{
+			this.result = null;
+			this.store = store;
+			this.slot = slot;
+		}
+		
+		/**
+		 * Sets the booking up to be queued, for the first time or again for a new store booking
+		 * 
+		 * @param pickupWithinNanos How soon the passenger must be picked up, negative for no deadline
+		 * @param requestedNanos System.nanoTime() the booking was asked for, 0 for now
+		 */
+		void init(NuberRegion region, Passenger passenger, BookingPriority priority, long pickupWithinNanos, long requestedNanos)
+		{
+			this.region = region;
+			this.passenger = passenger;
+			this.priority = priority;
+			this.queuedAt = System.nanoTime();
+			this.requestedAt = requestedNanos == 0 ? queuedAt : requestedNanos;
+			//a deadline of exactly 0 would read as none
+			this.pickupDeadline = pickupWithinNanos < 0 ? 0 : (queuedAt + pickupWithinNanos) | 1;
+			this.due = priority.dueNanos(queuedAt, pickupDeadline);
+			this.journalKey = -1;
+			this.cancelled = false;
+		}
+		
+		@Override
+		public void run()
+		{
+			region.run(this);
+		}
+		
+		@Override
+		public int compareTo(QueuedBooking other)
+		{
+			return BookingPriority.compare(due, priority, sequence, other.due, other.priority, other.sequence);
+		}
+	}
+	
+	/**
+	 * A booking's Future, cancelling it withdraws the booking from the region
+	 */
+	private static class BookingFuture extends CompletableFuture<BookingResult> {
+		private final QueuedBooking queued;
+		
+		BookingFuture(QueuedBooking queued)
+		{
+			this.queued = queued;
+		}
+		
+		@Override
+		public boolean cancel(boolean mayInterruptIfRunning)
+		{
+			boolean cancelled = super.cancel(mayInterruptIfRunning);
+			if (cancelled) {
+				queued.region.withdraw(queued);
+			}
+			return cancelled;
+		}
+	}
 	
 	/**
 	 * Creates a new Nuber region
@@ -55,14 +201,47 @@ public class NuberRegion {
 	
 	//works fine.
 	public NuberRegion(NuberDispatch dispatch, String regionName, int maxSimultaneousJobs)
+	{
+		this(dispatch, regionName, maxSimultaneousJobs, ExecutionMode.fromSystemProperty());
+	}
+	
+	/**
+	 * Creates a new Nuber region that runs its bookings in the given execution mode
+	 * 
+	 * @param dispatch The central dispatch to use for obtaining drivers, and logging events
+	 * @param regionName The regions name, unique for the dispatch instance
+	 * @param maxSimultaneousJobs The maximum number of simultaneous bookings the region is allowed to process
+	 * @param executionMode Whether bookings run on a fixed pool or on a virtual thread each
+	 */
+	public NuberRegion(NuberDispatch dispatch, String regionName, int maxSimultaneousJobs, ExecutionMode executionMode)
+	{
+		this(dispatch, regionName, maxSimultaneousJobs, executionMode, 
+				BacklogPolicy.backlogSizeFromSystemProperty(), BacklogPolicy.fromSystemProperty());
+	}
+	
+	/**
+	 * Creates a new Nuber region with the given backlog size and policy for when it is full
+	 * 
+	 * @param dispatch The central dispatch to use for obtaining drivers, and logging events
+	 * @param regionName The regions name, unique for the dispatch instance
+	 * @param maxSimultaneousJobs The maximum number of simultaneous bookings the region is allowed to process
+	 * @param executionMode Whether bookings run on a fixed pool, a virtual thread each, or asynchronously
+	 * @param maxQueuedBookings How many bookings can wait for a position before the policy applies
+	 * @param backlogPolicy What to do with a new booking when the backlog is full
+	 */
+	public NuberRegion(NuberDispatch dispatch, String regionName, int maxSimultaneousJobs, ExecutionMode executionMode,
+			int maxQueuedBookings, BacklogPolicy backlogPolicy)
 	{
 		this.dispatch = dispatch;
 		this.regionName = regionName;
 		this.maxSimultaneousJobs = maxSimultaneousJobs;
-		this.jobSemaphore = new Semaphore(maxSimultaneousJobs);
+		this.executionMode = executionMode.supported();
+		this.maxQueuedBookings = maxQueuedBookings;
+		this.backlogPolicy = backlogPolicy;
+		this.idleDrivers = dispatch.driverMatching.newPool();
 		
-		//use thread pool.
-		this.executor = Executors.newFixedThreadPool(maxSimultaneousJobs);
+		//fixed pool or virtual thread per booking, activeJobs caps active bookings either way.
+		this.executor = this.executionMode.newExecutor(maxSimultaneousJobs);
 	}
 	
 	/**
@@ -89,40 +268,449 @@ public class NuberRegion {
 	*/
 	
 	public Future<BookingResult> bookPassenger(Passenger waitingPassenger)
+	{
+		return bookPassenger(waitingPassenger, BookingPriority.STANDARD, null);
+	}
+	
+	/**
+	 * Same as bookPassenger(Passenger), for a booking in a class of service and with an
+	 * optional pickup deadline, see BookingPriority.
+	 * 
+	 * @param waitingPassenger
+	 * @param priority The booking's class of service
+	 * @param pickupWithin How soon after now the passenger must be picked up, or null for no deadline
+	 * @return a Future that will provide the final BookingResult object, or null if the booking was rejected
+	 */
+	public Future<BookingResult> bookPassenger(Passenger waitingPassenger, BookingPriority priority, Duration pickupWithin)
 	{		
 		try {	
 			//* This is Japanese translation for understanding better.
 			//地域にシャットダウンが指示されている場合、この関数はnullを返し、
 			//* 予約が拒否されたことを示すメッセージをコンソールに記録します。
+			return tryBookPassenger(waitingPassenger, priority, pickupWithin);
+		}catch (BookingRejectedException e) {
+			//already counted and logged by tryBookPassenger.
+			return null;
+		}catch (InterruptedException e) {
+			System.out.println("Interrupted while waiting for room in " + regionName);
+			Thread.currentThread().interrupt();
+		}
+		return null;
+	}
+	
+	/**
+	 * Same as bookPassenger(), but says why a booking was refused instead of returning null, 
+	 * so a front end can push back on its clients.
+	 * 
+	 * @param waitingPassenger
+	 * @return a Future that will provide the final BookingResult object from the completed booking
+	 * @throws BookingRejectedException if the region is shutdown, or the backlog is full under REJECT
+	 * @throws InterruptedException if interrupted while waiting for room under BLOCK
+	 */
+	public Future<BookingResult> tryBookPassenger(Passenger waitingPassenger) throws BookingRejectedException, InterruptedException
+	{
+		return tryBookPassenger(waitingPassenger, BookingPriority.STANDARD, null);
+	}
+	
+	/**
+	 * Same as tryBookPassenger(Passenger), for a booking in a given class of service and with
+	 * an optional pickup deadline. Both decide when the booking starts and when it is given
+	 * a driver, see BookingPriority.
+	 * 
+	 * @param waitingPassenger
+	 * @param priority The booking's class of service
+	 * @param pickupWithin How soon after now the passenger must be picked up, or null for no deadline
+	 * @return a Future that will provide the final BookingResult object from the completed booking
+	 * @throws BookingRejectedException if the region is shutdown, or the backlog is full under REJECT
+	 * @throws InterruptedException if interrupted while waiting for room under BLOCK
+	 */
+	public Future<BookingResult> tryBookPassenger(Passenger waitingPassenger, BookingPriority priority, Duration pickupWithin)
+			throws BookingRejectedException, InterruptedException
+	{
+		QueuedBooking queued = new QueuedBooking(this, waitingPassenger, priority, 
+				pickupWithin == null ? -1 : Math.max(0, pickupWithin.toNanos()));
+		enqueue(queued);
+		return queued.result;
+	}
+	
+	//accepts a booking into the backlog, or refuses it, and starts whatever can start
+	void enqueue(QueuedBooking queued) throws BookingRejectedException, InterruptedException
+	{
+		enqueue(queued, true);
+	}
+	
+	//as above. a caller that can't wait, such as a selector thread, has a full backlog under
+	//BLOCK refused as under REJECT, and doesn't wait for the lock interruptibly either.
+	void enqueue(QueuedBooking queued, boolean mayWait) throws BookingRejectedException, InterruptedException
+	{
+		Passenger waitingPassenger = queued.passenger;
+		QueuedBooking shed = null;
+		QueuedBooking toStart;
+		
+		if (mayWait) {
+			backlogLock.lockInterruptibly();
+		} else {
+			backlogLock.lock();
+		}
+		try {
+			while (!isShutdown && activeJobs >= maxSimultaneousJobs && backlog.size() >= maxQueuedBookings) {
+				if (backlogPolicy == BacklogPolicy.REJECT || !mayWait) {
+					throw reject(waitingPassenger, BookingRejectedException.Reason.BACKLOG_FULL);
+				}
+				if (backlogPolicy == BacklogPolicy.SHED_OLDEST) {
+					if (backlog.isEmpty()) {
+						//a backlog of size 0 has nobody to shed, so the new booking is refused instead
+						throw reject(waitingPassenger, BookingRejectedException.Reason.BACKLOG_FULL);
+					}
+					shed = sheddable();
+					backlog.remove(shed);
+					break;
+				}
+				backlogHasRoom.await();
+			}
 			if (isShutdown) {
-				Booking booking = new Booking(dispatch, waitingPassenger);
-				dispatch.logEvent(booking, "Rejected booking");
-				return null;
+				throw reject(waitingPassenger, BookingRejectedException.Reason.SHUTDOWN);
 			}
 			
-			//* This is Japanese translation for understanding better.
-			//指定の乗客の予約を作成し、処理するジョブのコレクションに追加します
-			jobSemaphore.acquire();
+			counters.booked();
+			counters.enqueued();
+			dispatch.incrementalBookingAwaitingDriver();
+			BookingJournal journal = dispatch.journal;
+			if (journal != null) {
+				queued.journalKey = journal.booked(waitingPassenger, regionName, queued.priority);
+			}
+			queued.sequence = nextSequence++;
+			backlog.add(queued);
+			toStart = takeStartableBookings();
+		} finally {
+			backlogLock.unlock();
+		}
+		
+		if (shed != null) {
+			journalCancelled(shed);
+			counters.shed();
+			dispatch.decrementalBookingAwaitingDriver();
+			dispatch.logEvent(new Booking(dispatch, shed.passenger, this), BookingEvent.REJECTED);
+			refused(shed, BookingRejectedException.Reason.SHED);
+		}
+		start(toStart);
+	}
+	
+	//fails a booking that never started, through its future or its store
+	private void refused(QueuedBooking queued, BookingRejectedException.Reason reason)
+	{
+		if (queued.store == null) {
+			queued.result.completeExceptionally(new BookingRejectedException(reason, regionName));
+			return;
+		}
+		queued.store.finish(queued.slot, handle, queued.passenger, queued.priority, queued.requestedAt, null, 
+				reason == BookingRejectedException.Reason.SHED ? BookingStore.Outcome.SHED : BookingStore.Outcome.CANCELLED);
+		queued.store.release(queued.slot);
+	}
+	
+	//the oldest booking in the lowest class waiting. caller holds backlogLock.
+	private QueuedBooking sheddable()
+	{
+		QueuedBooking oldest = null;
+		for (QueuedBooking queued : backlog) {
+			if (oldest == null || queued.priority.compareTo(oldest.priority) > 0
+					|| (queued.priority == oldest.priority && queued.sequence < oldest.sequence)) {
+				oldest = queued;
+			}
+		}
+		return oldest;
+	}
+	
+	//counts and logs a refused booking, and returns the exception to throw. caller holds backlogLock.
+	private BookingRejectedException reject(Passenger waitingPassenger, BookingRejectedException.Reason reason)
+	{
+		Booking booking = new Booking(dispatch, waitingPassenger, this);
+		counters.rejected();
+		dispatch.logEvent(booking, BookingEvent.REJECTED);
+		return new BookingRejectedException(reason, regionName);
+	}
+	
+	//moves bookings from the backlog into free positions, linked through nextToStart so nothing
+	//is allocated. caller holds backlogLock, and must start the returned bookings after releasing it.
+	private QueuedBooking takeStartableBookings()
+	{
+		QueuedBooking first = null;
+		QueuedBooking last = null;
+		while (activeJobs < maxSimultaneousJobs && !backlog.isEmpty()) {
+			QueuedBooking queued = backlog.poll();
+			if (first == null) {
+				first = queued;
+			} else {
+				last.nextToStart = queued;
+			}
+			last = queued;
+			activeJobs++;
+		}
+		if (first != null) {
+			backlogHasRoom.signalAll();
+		}
+		return first;
+	}
+	
+	//* This is Japanese translation for understanding better.
+	//地域に空席があり、ドライバーが利用可能であれば、
+	// 予約は自動的に開始されます。
+	//check w9 lec around p38 if I need.
+	private void start(QueuedBooking toStart)
+	{
+		QueuedBooking next;
+		for (QueuedBooking starting = toStart; starting != null; starting = next) {
+			//unlink first, a store booking's entry can be reused as soon as it completes
+			QueuedBooking queued = starting;
+			next = queued.nextToStart;
+			queued.nextToStart = null;
+			counters.dequeued(System.nanoTime() - queued.queuedAt);
 			
-			//* This is Japanese translation for understanding better.
-			//地域に空席があり、ドライバーが利用可能であれば、
-			// 予約は自動的に開始されます。
-			//check w9 lec around p38 if I need.
-			Future<BookingResult> future = executor.submit(new Callable<BookingResult>() {
-				@Override
-				public BookingResult call() throws Exception {
-					Booking booking = new Booking(dispatch, waitingPassenger);
-					return booking.call();
+			if (executionMode == ExecutionMode.ASYNC) {
+				//no thread is tied to the booking, the position is freed when its future chain finishes
+				try {
+					Booking booking = newBooking(queued);
+					booking.callAsync(dispatch.tripScheduler).whenComplete((bookingResult, error) -> {
+						completed(queued, bookingResult, error);
+					});
+				} catch (RuntimeException e) {
+					completed(queued, null, e);
 				}
-			});
-			//semaphore release because book is done.
-			jobSemaphore.release();	
-			return future;			
-		}catch (Exception e) {
-			// TODO: handle exception
-			System.out.println("Error in bookPassenger");
+				continue;
+			}
+			
+			//runs run(queued) on the executor
+			executor.execute(queued);
 		}
-		return null;
+	}
+	
+	//runs a started booking on the executor's thread. store bookings skip making a BookingResult.
+	void run(QueuedBooking queued)
+	{
+		BookingResult bookingResult = null;
+		Throwable error = null;
+		try {
+			Booking booking = newBooking(queued);
+			if (queued.store == null) {
+				bookingResult = booking.call();
+			} else {
+				booking.ride();
+			}
+		} catch (Throwable t) {
+			error = t;
+		}
+		completed(queued, bookingResult, error);
+	}
+	
+	private Booking newBooking(QueuedBooking queued)
+	{
+		Booking booking = queued.booking;
+		if (booking == null) {
+			booking = new Booking(dispatch, queued.passenger, this, queued.queuedAt);
+		} else {
+			booking.reset(queued.passenger, this, queued.queuedAt);
+		}
+		booking.journalKey = queued.journalKey;
+		booking.priority = queued.priority;
+		booking.pickupDeadlineNanos = queued.pickupDeadline;
+		booking.dueNanos = queued.due;
+		queued.booking = booking;
+		if (queued.cancelled) {
+			booking.cancelWait();
+		}
+		return booking;
+	}
+	
+	//a booking's Future was cancelled. if it's still in the backlog it's taken out, if it has 
+	//started it stops waiting for a driver.
+	private void withdraw(QueuedBooking queued)
+	{
+		queued.cancelled = true;
+		boolean removed;
+		backlogLock.lock();
+		try {
+			removed = backlog.remove(queued);
+			if (removed) {
+				backlogHasRoom.signalAll();
+				shutdownExecutorIfDrained();
+			}
+		} finally {
+			backlogLock.unlock();
+		}
+		if (removed) {
+			journalCancelled(queued);
+			counters.cancelledQueued();
+			dispatch.decrementalBookingAwaitingDriver();
+			return;
+		}
+		Booking booking = queued.booking;
+		if (booking != null) {
+			booking.cancelWait();
+		}
+	}
+	
+	//publishes the result before the position is freed, so it is out before the region can
+	//report itself drained, then completes the booking's future or frees its store slot.
+	private void completed(QueuedBooking queued, BookingResult bookingResult, Throwable error)
+	{
+		BookingStore.Outcome outcome = BookingStore.Outcome.COMPLETED;
+		if (error == null) {
+			if (queued.store == null) {
+				dispatch.completions.publish(bookingResult);
+			}
+		} else {
+			journalCancelled(queued);
+			outcome = BookingStore.Outcome.FAILED;
+			if ((queued.booking == null || queued.booking.availableDriver == null) && timedOut(error)) {
+				counters.timedOutWaiting();
+				dispatch.decrementalBookingAwaitingDriver();
+				error = new BookingRejectedException(BookingRejectedException.Reason.DRIVER_TIMEOUT, regionName);
+				outcome = BookingStore.Outcome.TIMED_OUT;
+			} else if (queued.booking == null || queued.booking.availableDriver == null) {
+				//cancelled while it waited for a driver, it fails the same way as a queued booking
+				counters.cancelledWaiting();
+				dispatch.decrementalBookingAwaitingDriver();
+				error = new BookingRejectedException(BookingRejectedException.Reason.CANCELLED, regionName);
+				outcome = BookingStore.Outcome.CANCELLED;
+			}
+		}
+		if (queued.store != null) {
+			queued.store.finish(queued.slot, handle, queued.passenger, queued.priority, queued.requestedAt, queued.booking, outcome);
+		}
+		finished();
+		if (queued.store != null) {
+			queued.store.release(queued.slot);
+		} else if (error != null) {
+			queued.result.completeExceptionally(error);
+		} else {
+			queued.result.complete(bookingResult);
+		}
+	}
+	
+	//a booking that waited the maximum for a driver fails with a TimeoutException, wrapped by
+	//Booking.ride() or by the async booking's future chain
+	private static boolean timedOut(Throwable error)
+	{
+		return error instanceof CompletionException && error.getCause() instanceof TimeoutException;
+	}
+	
+	//a booking that won't complete has nothing to recover
+	private void journalCancelled(QueuedBooking queued)
+	{
+		BookingJournal journal = dispatch.journal;
+		if (journal != null && queued.journalKey >= 0) {
+			journal.booking(BookingJournal.Type.CANCELLED, queued.journalKey, null);
+		}
+	}
+	
+	//a booking has finished with its position, so start the next one waiting
+	private void finished()
+	{
+		QueuedBooking toStart;
+		backlogLock.lock();
+		try {
+			activeJobs--;
+			toStart = takeStartableBookings();
+			shutdownExecutorIfDrained();
+		} finally {
+			backlogLock.unlock();
+		}
+		start(toStart);
+	}
+	
+	/**
+	 * Changes how many bookings the region can process at once. Raising the limit starts
+	 * waiting bookings straight away. Lowering it doesn't stop any booking, the ones over
+	 * the new limit finish before the next booking starts.
+	 * 
+	 * @param maxSimultaneousJobs The new limit, at least 1
+	 */
+	public void setMaxSimultaneousJobs(int maxSimultaneousJobs)
+	{
+		if (maxSimultaneousJobs < 1) {
+			throw new IllegalArgumentException("A region needs at least one position, not " + maxSimultaneousJobs);
+		}
+		QueuedBooking toStart;
+		backlogLock.lock();
+		try {
+			//a fixed pool has one thread per position
+			if (executor instanceof ThreadPoolExecutor) {
+				ThreadPoolExecutor pool = (ThreadPoolExecutor) executor;
+				if (maxSimultaneousJobs > pool.getMaximumPoolSize()) {
+					pool.setMaximumPoolSize(maxSimultaneousJobs);
+					pool.setCorePoolSize(maxSimultaneousJobs);
+				} else {
+					pool.setCorePoolSize(maxSimultaneousJobs);
+					pool.setMaximumPoolSize(maxSimultaneousJobs);
+				}
+			}
+			this.maxSimultaneousJobs = maxSimultaneousJobs;
+			toStart = takeStartableBookings();
+		} finally {
+			backlogLock.unlock();
+		}
+		start(toStart);
+	}
+	
+	/**
+	 * @return How many bookings the region can process at once
+	 */
+	public int getMaxSimultaneousJobs()
+	{
+		backlogLock.lock();
+		try {
+			return maxSimultaneousJobs;
+		} finally {
+			backlogLock.unlock();
+		}
+	}
+	
+	/**
+	 * @return true once the region has been shutdown and has finished every booking
+	 */
+	public boolean isDrained()
+	{
+		return drained;
+	}
+	
+	/**
+	 * @return The number of bookings waiting in the backlog for a position
+	 */
+	public int getQueuedBookings()
+	{
+		backlogLock.lock();
+		try {
+			return backlog.size();
+		} finally {
+			backlogLock.unlock();
+		}
+	}
+	
+	/**
+	 * Cancels every booking still waiting in the backlog for a position. Their futures fail 
+	 * with a CANCELLED BookingRejectedException. Bookings that have started aren't touched.
+	 * 
+	 * @return How many bookings were cancelled
+	 */
+	public int cancelQueuedBookings()
+	{
+		List<QueuedBooking> cancelled;
+		backlogLock.lock();
+		try {
+			cancelled = new ArrayList<QueuedBooking>(backlog);
+			backlog.clear();
+			backlogHasRoom.signalAll();
+			shutdownExecutorIfDrained();
+		} finally {
+			backlogLock.unlock();
+		}
+		for (QueuedBooking queued : cancelled) {
+			journalCancelled(queued);
+			counters.cancelledQueued();
+			dispatch.decrementalBookingAwaitingDriver();
+			refused(queued, BookingRejectedException.Reason.CANCELLED);
+		}
+		return cancelled.size();
 	}
 	
 	/**
@@ -130,8 +718,29 @@ public class NuberRegion {
 	 */
 	public void shutdown()
 	{
-		isShutdown = true;
-		executor.shutdown();
+		backlogLock.lock();
+		try {
+			isShutdown = true;
+			//wake blocked callers so they are rejected
+			backlogHasRoom.signalAll();
+			shutdownExecutorIfDrained();
+		} finally {
+			backlogLock.unlock();
+		}
+	}
+	
+	//the executor is only shut down once every booking has finished with it, and then dispatch
+	//is told the region is drained, once. caller holds backlogLock.
+	private void shutdownExecutorIfDrained()
+	{
+		if (isShutdown && backlog.isEmpty() && activeJobs == 0 && !drained) {
+			drained = true;
+			//ASYNC regions have no executor, their queued bookings still finish.
+			if (executor != null) {
+				executor.shutdown();
+			}
+			dispatch.regionDrained(this);
+		}
 	}
 		
 }
@@ -0,0 +1,163 @@
+package nuber.students;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The binary protocol partitions and the router speak, see PartitionRouter.
+ *
+ * Every frame is a 4 byte length, then a 1 byte type, then the type's fields, big-endian.
+ * The length counts the type and the fields. Strings are a 2 byte length and UTF-8 bytes.
+ * A person is their name, maxSleep (int) and location (two floats), like a journal record,
+ * and a passenger is followed by their trip time (int) so it is the same in every process.
+ *
+ * Router to partition:
+ * - BOOK: request id (long), priority (byte), pickup within ms (int, -1 for none), region, passenger
+ * - DRIVERS: count (int), then that many drivers, which join the partition
+ * - TAKE_DRIVERS: most drivers to give up (int), answered with DRIVERS
+ * - STATS_REQUEST: nothing, answered with STATS
+ *
+ * Partition to router:
+ * - RESULT: request id (long), job id (int), trip duration ms (long), driver
+ * - REJECTED: request id (long), BookingRejectedException.Reason ordinal (byte), region
+ * - FAILED: request id (long), message
+ * - DRIVERS: drivers taken out of the partition for TAKE_DRIVERS, possibly none
+ * - STATS: idle drivers (int), bookings awaiting a driver (int), bookings in flight (int)
+ *
+ * @author james
+ *
+ */
+final class PartitionProtocol {
+
+	static final byte BOOK = 1;
+	static final byte RESULT = 2;
+	static final byte REJECTED = 3;
+	static final byte FAILED = 4;
+	static final byte DRIVERS = 5;
+	static final byte TAKE_DRIVERS = 6;
+	static final byte STATS_REQUEST = 7;
+	static final byte STATS = 8;
+
+	//the length field
+	static final int HEADER_BYTES = 4;
+	//anything longer is a broken stream, not a frame
+	static final int MAX_FRAME_BYTES = 1 << 20;
+
+	private static final BookingPriority[] PRIORITIES = BookingPriority.values();
+	private static final BookingRejectedException.Reason[] REASONS = BookingRejectedException.Reason.values();
+
+	private PartitionProtocol()
+	{
+	}
+
+	/**
+	 * Builds one frame, growing as fields are added
+	 */
+	static class FrameWriter {
+		private ByteBuffer buffer;
+
+		FrameWriter(byte type)
+		{
+			buffer = ByteBuffer.allocate(128);
+			buffer.putInt(0);
+			buffer.put(type);
+		}
+
+		private void ensure(int bytes)
+		{
+			if (buffer.remaining() < bytes) {
+				ByteBuffer grown = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + bytes));
+				buffer.flip();
+				grown.put(buffer);
+				buffer = grown;
+			}
+		}
+
+		FrameWriter putByte(int value)
+		{
+			ensure(1);
+			buffer.put((byte) value);
+			return this;
+		}
+
+		FrameWriter putInt(int value)
+		{
+			ensure(4);
+			buffer.putInt(value);
+			return this;
+		}
+
+		FrameWriter putLong(long value)
+		{
+			ensure(8);
+			buffer.putLong(value);
+			return this;
+		}
+
+		FrameWriter putString(String value)
+		{
+			byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+			int length = Math.min(bytes.length, Short.MAX_VALUE);
+			ensure(2 + length);
+			buffer.putShort((short) length);
+			buffer.put(bytes, 0, length);
+			return this;
+		}
+
+		FrameWriter putPerson(Person person)
+		{
+			putString(person.name);
+			ensure(12);
+			buffer.putInt(person.maxSleep);
+			buffer.putFloat((float) person.getX());
+			buffer.putFloat((float) person.getY());
+			return this;
+		}
+
+		FrameWriter putPassenger(Passenger passenger)
+		{
+			putPerson(passenger);
+			return putInt(passenger.getTravelTime());
+		}
+
+		/**
+		 * @return The frame, ready to be written
+		 */
+		ByteBuffer finish()
+		{
+			buffer.putInt(0, buffer.position() - HEADER_BYTES);
+			buffer.flip();
+			return buffer;
+		}
+	}
+
+	static String getString(ByteBuffer buffer)
+	{
+		int length = buffer.getShort() & 0xFFFF;
+		byte[] bytes = new byte[length];
+		buffer.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	static Driver getDriver(ByteBuffer buffer)
+	{
+		String name = getString(buffer);
+		return new Driver(name, buffer.getInt(), buffer.getFloat(), buffer.getFloat());
+	}
+
+	static Passenger getPassenger(ByteBuffer buffer)
+	{
+		String name = getString(buffer);
+		return new Passenger(name, buffer.getInt(), buffer.getFloat(), buffer.getFloat(), buffer.getInt());
+	}
+
+	static BookingPriority priorityOf(byte ordinal)
+	{
+		return ordinal >= 0 && ordinal < PRIORITIES.length ? PRIORITIES[ordinal] : BookingPriority.STANDARD;
+	}
+
+	static BookingRejectedException.Reason reasonOf(byte ordinal)
+	{
+		return ordinal >= 0 && ordinal < REASONS.length ? REASONS[ordinal] : BookingRejectedException.Reason.PARTITION_UNAVAILABLE;
+	}
+}
@@ -0,0 +1,516 @@
+package nuber.students;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Routes bookings to the partitions that own their regions, for a dispatch spread over several
+ * processes, and moves idle drivers between partitions.
+ *
+ * Each partition is a PartitionServer process owning some of the regions. The routes say which
+ * partitions own which region, as a spec like
+ * "North=127.0.0.1:7001,127.0.0.1:7003;South=127.0.0.1:7002". A region owned by several
+ * partitions has its bookings sent to whichever of them has the fewest in flight from this
+ * router. Routes come from the constructor or -Dnuber.partitions and can be replaced while
+ * running with setRoutes(), so a hot region is spread over more partitions by starting another
+ * partition process for it and adding that partition to its route, without changing any code.
+ *
+ * Drivers live in the partitions. Every tick (-Dnuber.partition.rebalance.millis, default 100)
+ * the router asks each partition for its idle drivers and bookings waiting for one, connecting
+ * to those it hasn't sent a booking yet. A partition
+ * with bookings waiting and no driver idle is sent idle drivers taken from the partition with
+ * the most to spare, the drivers passing through the router as DRIVERS frames.
+ *
+ * Everything is sent over one non-blocking connection per partition, see PartitionProtocol.
+ * A booking in flight on a connection that is lost fails with PARTITION_UNAVAILABLE, and the
+ * next booking for that partition connects again.
+ *
+ * @author james
+ *
+ */
+public class PartitionRouter extends SelectorLoop {
+
+	/**
+	 * System property holding the routes, see setRoutes()
+	 */
+	public static final String PROPERTY = "nuber.partitions";
+
+	/**
+	 * A booking sent to a partition and waiting for its result
+	 */
+	private static class Request {
+		final CompletableFuture<BookingResult> result = new CompletableFuture<BookingResult>();
+		final Passenger passenger;
+		final Partition partition;
+		//the connection it was sent on, it fails if that connection is lost
+		final Connection connection;
+
+		Request(Passenger passenger, Partition partition, Connection connection)
+		{
+			this.passenger = passenger;
+			this.partition = partition;
+			this.connection = connection;
+		}
+	}
+
+	/**
+	 * A partition process and what the router knows about it
+	 */
+	private class Partition {
+		final InetSocketAddress address;
+		final AtomicInteger inFlight = new AtomicInteger();
+		final LongAdder routed = new LongAdder();
+		//null until first used, replaced when lost
+		volatile Connection connection;
+		//from its last STATS, selector thread only
+		int idleDrivers;
+		int awaitingDriver;
+		boolean reported;
+
+		Partition(InetSocketAddress address)
+		{
+			this.address = address;
+		}
+
+		//the live connection, connecting again if the last one was lost
+		synchronized Connection connection() throws IOException
+		{
+			Connection current = connection;
+			if (current == null || current.isClosed()) {
+				current = connect(address);
+				connection = current;
+			}
+			return current;
+		}
+	}
+
+	private final ConcurrentHashMap<InetSocketAddress, Partition> partitions = new ConcurrentHashMap<InetSocketAddress, Partition>();
+	private volatile Map<String, Partition[]> routes = new HashMap<String, Partition[]>();
+	private final ConcurrentHashMap<Long, Request> requests = new ConcurrentHashMap<Long, Request>();
+	private final AtomicLong nextRequestId = new AtomicLong();
+	private final AtomicLong driversMoved = new AtomicLong();
+	private final ScheduledExecutorService ticker;
+	//drivers a donor gave up that neither their new partition nor the donor could be sent,
+	//tried again every tick so no driver leaves the fleet. selector thread only.
+	private final List<Driver> stranded = new ArrayList<Driver>();
+
+	/**
+	 * Creates a router with the routes in -Dnuber.partitions
+	 */
+	public PartitionRouter() throws IOException
+	{
+		this(System.getProperty(PROPERTY, ""), Long.getLong("nuber.partition.rebalance.millis", 100));
+	}
+
+	/**
+	 * Creates a router
+	 *
+	 * @param routes Which partitions own which regions, see setRoutes()
+	 * @param rebalanceMillis Time between driver rebalancing ticks in milliseconds, 0 for none
+	 * @throws IOException if the selector can't be opened
+	 */
+	public PartitionRouter(String routes, long rebalanceMillis) throws IOException
+	{
+		super("nuber-partition-router");
+		setRoutes(routes);
+		start();
+		this.ticker = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "nuber-partition-rebalancer");
+			thread.setDaemon(true);
+			return thread;
+		});
+		if (rebalanceMillis > 0) {
+			ticker.scheduleWithFixedDelay(() -> runOnSelector(this::rebalance), rebalanceMillis, rebalanceMillis, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Replaces the routes. Bookings already sent carry on in the partition they went to.
+	 *
+	 * @param spec Regions separated by semicolons, each a name, '=' and the host:port of every
+	 * partition that owns it, separated by commas
+	 * @throws IllegalArgumentException if the spec can't be parsed
+	 */
+	public void setRoutes(String spec)
+	{
+		Map<String, Partition[]> parsed = new LinkedHashMap<String, Partition[]>();
+		for (String route : spec.split(";")) {
+			if (route.isBlank()) {
+				continue;
+			}
+			int equals = route.indexOf('=');
+			if (equals < 1) {
+				throw new IllegalArgumentException("Route without a region: " + route);
+			}
+			List<Partition> owners = new ArrayList<Partition>();
+			for (String owner : route.substring(equals + 1).split(",")) {
+				int colon = owner.lastIndexOf(':');
+				if (colon < 1) {
+					throw new IllegalArgumentException("Partition address isn't host:port: " + owner);
+				}
+				InetSocketAddress address = new InetSocketAddress(owner.substring(0, colon).trim(),
+						Integer.parseInt(owner.substring(colon + 1).trim()));
+				owners.add(partitions.computeIfAbsent(address, Partition::new));
+			}
+			parsed.put(route.substring(0, equals).trim(), owners.toArray(new Partition[0]));
+		}
+		routes = parsed;
+	}
+
+	/**
+	 * Books a passenger into the region, in whichever partition owns it
+	 *
+	 * @param passenger The passenger to book
+	 * @param region The region to book them into
+	 * @return The booking's result. It fails with a BookingRejectedException if there is no route
+	 * to the region, the partition refused it, or the partition couldn't be reached.
+	 */
+	public CompletableFuture<BookingResult> bookPassenger(Passenger passenger, String region)
+	{
+		return bookPassenger(passenger, region, BookingPriority.STANDARD, null);
+	}
+
+	/**
+	 * Same as bookPassenger(Passenger, String), in a class of service and with an optional
+	 * pickup deadline, see BookingPriority
+	 *
+	 * @param pickupWithin How soon after the partition accepts it the passenger must be picked up, or null for no deadline
+	 */
+	public CompletableFuture<BookingResult> bookPassenger(Passenger passenger, String region, BookingPriority priority, Duration pickupWithin)
+	{
+		Partition[] owners = routes.get(region);
+		if (owners == null || owners.length == 0) {
+			return CompletableFuture.failedFuture(new BookingRejectedException(BookingRejectedException.Reason.NO_SUCH_REGION, region));
+		}
+		Partition partition = owners[0];
+		for (int i = 1; i < owners.length; i++) {
+			if (owners[i].inFlight.get() < partition.inFlight.get()) {
+				partition = owners[i];
+			}
+		}
+
+		Connection connection;
+		try {
+			connection = partition.connection();
+		} catch (IOException e) {
+			return CompletableFuture.failedFuture(new BookingRejectedException(BookingRejectedException.Reason.PARTITION_UNAVAILABLE, region));
+		}
+
+		//registered before it is sent, so a connection lost from here on fails it in closed()
+		long requestId = nextRequestId.getAndIncrement();
+		Request request = new Request(passenger, partition, connection);
+		requests.put(requestId, request);
+		partition.inFlight.incrementAndGet();
+		partition.routed.increment();
+		ByteBuffer frame = new PartitionProtocol.FrameWriter(PartitionProtocol.BOOK).putLong(requestId).putByte(priority.ordinal())
+				.putInt(pickupWithin == null ? -1 : (int) Math.min(Integer.MAX_VALUE, pickupWithin.toMillis())).putString(region)
+				.putPassenger(passenger).finish();
+		if (!connection.send(frame)) {
+			fail(requestId, new BookingRejectedException(BookingRejectedException.Reason.PARTITION_UNAVAILABLE, region));
+		}
+		return request.result;
+	}
+
+	/**
+	 * Adds a driver, to the partition with the fewest idle drivers when it last reported
+	 *
+	 * @return False if no partition could be reached
+	 */
+	public boolean addDriver(Driver driver)
+	{
+		Partition emptiest = null;
+		for (Partition partition : partitions.values()) {
+			if (emptiest == null || partition.idleDrivers < emptiest.idleDrivers) {
+				emptiest = partition;
+			}
+		}
+		if (emptiest == null) {
+			return false;
+		}
+		try {
+			return emptiest.connection().send(new PartitionProtocol.FrameWriter(PartitionProtocol.DRIVERS).putInt(1).putPerson(driver).finish());
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * @return How many drivers the router has moved between partitions
+	 */
+	public long getDriversMoved()
+	{
+		return driversMoved.get();
+	}
+
+	/**
+	 * @return How many bookings have been routed to each partition, by host:port
+	 */
+	public Map<String, Long> getRoutedCounts()
+	{
+		Map<String, Long> counts = new LinkedHashMap<String, Long>();
+		for (Partition partition : partitions.values()) {
+			counts.put(partition.address.getHostString() + ":" + partition.address.getPort(), partition.routed.sum());
+		}
+		return counts;
+	}
+
+	/**
+	 * Stops rebalancing and closes every connection. Bookings in flight fail with PARTITION_UNAVAILABLE.
+	 */
+	public void shutdown()
+	{
+		ticker.shutdown();
+		close();
+	}
+
+	//selector thread. moves drivers using the stats from the last tick, then asks for new ones.
+	private void rebalance()
+	{
+		if (!stranded.isEmpty()) {
+			Partition emptiest = null;
+			for (Partition partition : partitions.values()) {
+				if (partition.reported && (emptiest == null || partition.idleDrivers < emptiest.idleDrivers)) {
+					emptiest = partition;
+				}
+			}
+			if (emptiest != null && sendDrivers(emptiest, stranded)) {
+				emptiest.idleDrivers += stranded.size();
+				stranded.clear();
+			}
+		}
+		Partition donor = null;
+		for (Partition partition : partitions.values()) {
+			if (partition.reported && partition.awaitingDriver == 0 && partition.idleDrivers > 1
+					&& (donor == null || partition.idleDrivers > donor.idleDrivers)) {
+				donor = partition;
+			}
+		}
+		int wanted = 0;
+		for (Partition partition : partitions.values()) {
+			if (partition.reported && partition.idleDrivers == 0) {
+				wanted += partition.awaitingDriver;
+			}
+		}
+		if (donor != null && wanted > 0) {
+			//never more than half of what the donor has spare, so it doesn't run short itself
+			int taking = Math.min(wanted, donor.idleDrivers / 2);
+			if (send(donor, new PartitionProtocol.FrameWriter(PartitionProtocol.TAKE_DRIVERS).putInt(taking).finish())) {
+				donor.idleDrivers -= taking;
+			}
+		}
+		//every partition is asked, connecting if need be. one never booked into may be holding
+		//the idle drivers the busy ones need.
+		ByteBuffer request = new PartitionProtocol.FrameWriter(PartitionProtocol.STATS_REQUEST).finish();
+		for (Partition partition : partitions.values()) {
+			send(partition, request.duplicate());
+		}
+	}
+
+	//false if the frame couldn't be queued on a live connection
+	private static boolean send(Partition partition, ByteBuffer frame)
+	{
+		try {
+			if (partition.connection().send(frame)) {
+				return true;
+			}
+			System.out.println("Couldn't reach partition " + partition.address + ": connection closed");
+		} catch (IOException e) {
+			System.out.println("Couldn't reach partition " + partition.address + ": " + e);
+		}
+		return false;
+	}
+
+	private static boolean sendDrivers(Partition partition, List<Driver> drivers)
+	{
+		PartitionProtocol.FrameWriter frame = new PartitionProtocol.FrameWriter(PartitionProtocol.DRIVERS).putInt(drivers.size());
+		for (Driver driver : drivers) {
+			frame.putPerson(driver);
+		}
+		return send(partition, frame.finish());
+	}
+
+	@Override
+	protected void frame(Connection connection, byte type, ByteBuffer payload) throws IOException
+	{
+		switch (type) {
+		case PartitionProtocol.RESULT: {
+			Request request = take(payload.getLong());
+			if (request != null) {
+				int jobID = payload.getInt();
+				long tripDuration = payload.getLong();
+				request.result.complete(new BookingResult(jobID, request.passenger, PartitionProtocol.getDriver(payload), tripDuration));
+			}
+			break;
+		}
+		case PartitionProtocol.REJECTED: {
+			Request request = take(payload.getLong());
+			if (request != null) {
+				BookingRejectedException.Reason reason = PartitionProtocol.reasonOf(payload.get());
+				request.result.completeExceptionally(new BookingRejectedException(reason, PartitionProtocol.getString(payload)));
+			}
+			break;
+		}
+		case PartitionProtocol.FAILED: {
+			Request request = take(payload.getLong());
+			if (request != null) {
+				request.result.completeExceptionally(new IllegalStateException(PartitionProtocol.getString(payload)));
+			}
+			break;
+		}
+		case PartitionProtocol.DRIVERS:
+			moveDrivers(partitions.get(connection.address), payload);
+			break;
+		case PartitionProtocol.STATS: {
+			Partition partition = partitions.get(connection.address);
+			if (partition != null) {
+				partition.idleDrivers = payload.getInt();
+				partition.awaitingDriver = payload.getInt();
+				partition.reported = true;
+			}
+			break;
+		}
+		default:
+			throw new IOException("Unknown frame type " + type + " from " + connection.address);
+		}
+	}
+
+	//drivers given up by a donor go to the partitions waiting longest for them, most waiting first.
+	//a driver no partition can take goes back to the donor, or waits for the next tick.
+	private void moveDrivers(Partition donor, ByteBuffer payload)
+	{
+		int count = payload.getInt();
+		Map<Partition, List<Driver>> moves = new HashMap<Partition, List<Driver>>();
+		for (int i = 0; i < count; i++) {
+			Driver driver = PartitionProtocol.getDriver(payload);
+			Partition neediest = null;
+			for (Partition partition : partitions.values()) {
+				int shortBy = partition.awaitingDriver - partition.idleDrivers;
+				if (partition.reported && shortBy > 0 && (neediest == null || shortBy > neediest.awaitingDriver - neediest.idleDrivers)) {
+					neediest = partition;
+				}
+			}
+			if (neediest == null) {
+				//nobody is short any more, give it to whoever has fewest
+				for (Partition partition : partitions.values()) {
+					if (partition.reported && (neediest == null || partition.idleDrivers < neediest.idleDrivers)) {
+						neediest = partition;
+					}
+				}
+			}
+			if (neediest == null) {
+				//no partition has reported since a connection was lost
+				neediest = donor;
+			}
+			if (neediest == null) {
+				stranded.add(driver);
+				continue;
+			}
+			neediest.idleDrivers++;
+			moves.computeIfAbsent(neediest, p -> new ArrayList<Driver>()).add(driver);
+		}
+		for (Map.Entry<Partition, List<Driver>> entry : moves.entrySet()) {
+			Partition to = entry.getKey();
+			List<Driver> drivers = entry.getValue();
+			if (sendDrivers(to, drivers)) {
+				if (to != donor) {
+					driversMoved.addAndGet(drivers.size());
+				}
+				continue;
+			}
+			to.idleDrivers -= drivers.size();
+			if (to != donor && donor != null && sendDrivers(donor, drivers)) {
+				donor.idleDrivers += drivers.size();
+			} else {
+				stranded.addAll(drivers);
+			}
+		}
+	}
+
+	private Request take(long requestId)
+	{
+		Request request = requests.remove(requestId);
+		if (request != null) {
+			request.partition.inFlight.decrementAndGet();
+		}
+		return request;
+	}
+
+	private void fail(long requestId, Throwable error)
+	{
+		Request request = take(requestId);
+		if (request != null) {
+			request.result.completeExceptionally(error);
+		}
+	}
+
+	@Override
+	protected void closed(Connection connection)
+	{
+		Partition lost = partitions.get(connection.address);
+		if (lost != null) {
+			lost.reported = false;
+		}
+		for (Map.Entry<Long, Request> entry : requests.entrySet()) {
+			if (entry.getValue().connection == connection) {
+				fail(entry.getKey(), new BookingRejectedException(BookingRejectedException.Reason.PARTITION_UNAVAILABLE,
+						connection.address.toString()));
+			}
+		}
+	}
+
+	/**
+	 * Books passengers through a set of running partitions and reports how it went
+	 *
+	 * Arguments: routes, passengers, maxSleep. Start the partitions first, for example with
+	 * "java nuber.students.PartitionServer 7001 North:50 50 100" and so on.
+	 */
+	public static void main(String[] args) throws Exception
+	{
+		String spec = args.length > 0 ? args[0] : System.getProperty(PROPERTY, "North=127.0.0.1:7001;South=127.0.0.1:7002");
+		int passengers = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+		int maxSleep = args.length > 2 ? Integer.parseInt(args[2]) : 100;
+
+		PartitionRouter router = new PartitionRouter(spec, Long.getLong("nuber.partition.rebalance.millis", 100));
+		String[] regions = router.routes.keySet().toArray(new String[0]);
+		long start = System.nanoTime();
+		List<CompletableFuture<BookingResult>> results = new ArrayList<CompletableFuture<BookingResult>>();
+		for (int i = 0; i < passengers; i++) {
+			//every booking to the first region and the rest round robin, so the first runs hot
+			String region = regions[i % 2 == 0 ? 0 : (i / 2) % regions.length];
+			results.add(router.bookPassenger(new Passenger("P-" + Person.getRandomName(), maxSleep), region));
+		}
+
+		long completed = 0, rejected = 0, failed = 0;
+		for (CompletableFuture<BookingResult> result : results) {
+			try {
+				result.get();
+				completed++;
+			} catch (ExecutionException e) {
+				if (e.getCause() instanceof BookingRejectedException) {
+					rejected++;
+				} else {
+					failed++;
+				}
+			}
+		}
+		System.out.println(String.format("%d bookings in %.0fms: completed=%d rejected=%d failed=%d, drivers moved=%d, routed=%s",
+				passengers, (System.nanoTime() - start) / 1e6, completed, rejected, failed, router.getDriversMoved(), router.getRoutedCounts()));
+		router.shutdown();
+	}
+}
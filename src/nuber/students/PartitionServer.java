@@ -0,0 +1,250 @@
+package nuber.students;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * One partition of a partitioned deployment: a process running a NuberDispatch for some of the
+ * regions, taking bookings and drivers from a PartitionRouter over the network.
+ *
+ * Bookings arrive as BOOK frames and are made with NuberDispatch.submit(), so nothing waits on
+ * a Future. When one finishes, the store listener sends its RESULT, or why it was refused, back
+ * on the connection it came in on, from the booking's own thread. Drivers join with DRIVERS
+ * frames and leave again, idle ones only, when the router asks with TAKE_DRIVERS.
+ *
+ * BOOK frames are read on the selector thread, so they are admitted with NuberDispatch.offer(),
+ * which never waits. A booking for a region whose backlog is full is refused with BACKLOG_FULL,
+ * even under the BLOCK backlog policy, rather than the partition stopping reading until there
+ * is room. Stopping would also stop it reading the DRIVERS frames its waiting bookings need.
+ *
+ * @author james
+ *
+ */
+public class PartitionServer extends SelectorLoop {
+
+	/**
+	 * A booking in flight, by its passenger's id
+	 */
+	private static class Pending {
+		final Connection connection;
+		final long requestId;
+		final String region;
+
+		Pending(Connection connection, long requestId, String region)
+		{
+			this.connection = connection;
+			this.requestId = requestId;
+			this.region = region;
+		}
+	}
+
+	private final NuberDispatch dispatch;
+	private final InetSocketAddress address;
+	//passengers are made for each BOOK frame, so their ids are unique in this process
+	private final ConcurrentHashMap<Integer, Pending> pending = new ConcurrentHashMap<Integer, Pending>();
+	//every driver in this partition, so a result can name its driver from the id in the store
+	private final ConcurrentHashMap<Integer, Driver> drivers = new ConcurrentHashMap<Integer, Driver>();
+	//drivers given up at the last TAKE_DRIVERS. a driver is back in the idle pool just before its
+	//booking's result is written, so they stay in drivers until the next TAKE_DRIVERS for that
+	//result to find them. selector thread only.
+	private List<Driver> leftLastTime = new ArrayList<Driver>();
+
+	/**
+	 * Creates a partition and starts listening
+	 *
+	 * @param port The port to listen on, 0 for any
+	 * @param regions The region names and maximum simultaneous active bookings allowed in that region
+	 * @param maxInFlight The most bookings in flight at once, more are rejected as STORE_FULL
+	 * @throws IOException if the port can't be listened on
+	 */
+	public PartitionServer(int port, HashMap<String, Integer> regions, int maxInFlight) throws IOException
+	{
+		super("nuber-partition-" + port);
+		this.dispatch = new NuberDispatch(regions, false);
+		dispatch.openBookingStore(maxInFlight, this::bookingFinished);
+		this.address = listen(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+		start();
+	}
+
+	/**
+	 * @return The address the partition is listening on
+	 */
+	public InetSocketAddress getAddress()
+	{
+		return address;
+	}
+
+	/**
+	 * @return The partition's dispatch
+	 */
+	public NuberDispatch getDispatch()
+	{
+		return dispatch;
+	}
+
+	/**
+	 * Adds a driver to this partition
+	 */
+	public void addDriver(Driver driver)
+	{
+		drivers.put(driver.id, driver);
+		dispatch.addDriver(driver);
+	}
+
+	/**
+	 * Stops taking bookings, lets the ones in flight finish and stops listening
+	 */
+	public void shutdown()
+	{
+		dispatch.shutdown();
+		close();
+	}
+
+	@Override
+	protected void frame(Connection connection, byte type, ByteBuffer payload) throws IOException
+	{
+		switch (type) {
+		case PartitionProtocol.BOOK:
+			book(connection, payload);
+			break;
+		case PartitionProtocol.DRIVERS:
+			for (int count = payload.getInt(); count > 0; count--) {
+				addDriver(PartitionProtocol.getDriver(payload));
+			}
+			break;
+		case PartitionProtocol.TAKE_DRIVERS:
+			for (Driver left : leftLastTime) {
+				drivers.remove(left.id);
+			}
+			List<Driver> leaving = new ArrayList<Driver>();
+			for (int max = payload.getInt(); leaving.size() < max; ) {
+				Driver driver = dispatch.removeIdleDriver();
+				if (driver == null) {
+					break;
+				}
+				leaving.add(driver);
+			}
+			leftLastTime = leaving;
+			PartitionProtocol.FrameWriter frame = new PartitionProtocol.FrameWriter(PartitionProtocol.DRIVERS).putInt(leaving.size());
+			for (Driver driver : leaving) {
+				frame.putPerson(driver);
+			}
+			connection.send(frame.finish());
+			break;
+		case PartitionProtocol.STATS_REQUEST:
+			connection.send(new PartitionProtocol.FrameWriter(PartitionProtocol.STATS).putInt(dispatch.getIdleDriverCount())
+					.putInt(dispatch.getBookingsAwaitingDriver()).putInt(pending.size()).finish());
+			break;
+		default:
+			throw new IOException("Unknown frame type " + type + " from " + connection.address);
+		}
+	}
+
+	private void book(Connection connection, ByteBuffer payload)
+	{
+		long requestId = payload.getLong();
+		BookingPriority priority = PartitionProtocol.priorityOf(payload.get());
+		int pickupWithinMillis = payload.getInt();
+		String region = PartitionProtocol.getString(payload);
+		Passenger passenger = PartitionProtocol.getPassenger(payload);
+
+		pending.put(passenger.id, new Pending(connection, requestId, region));
+		try {
+			dispatch.offer(passenger, dispatch.getRegionHandle(region), priority,
+					pickupWithinMillis < 0 ? -1 : pickupWithinMillis * 1_000_000L);
+		} catch (BookingRejectedException e) {
+			pending.remove(passenger.id);
+			connection.send(new PartitionProtocol.FrameWriter(PartitionProtocol.REJECTED).putLong(requestId)
+					.putByte(e.getReason().ordinal()).putString(region).finish());
+		}
+	}
+
+	//called on the booking's thread once its result is in the store
+	private void bookingFinished(BookingStore store, int slot)
+	{
+		Pending request = pending.remove(store.getPassengerId(slot));
+		if (request == null) {
+			return;
+		}
+		PartitionProtocol.FrameWriter frame;
+		switch (store.getOutcome(slot)) {
+		case COMPLETED:
+			Driver driver = drivers.get(store.getDriverId(slot));
+			if (driver == null) {
+				frame = new PartitionProtocol.FrameWriter(PartitionProtocol.FAILED).putLong(request.requestId)
+						.putString("Driver " + store.getDriverId(slot) + " left " + request.region + " during the booking");
+				break;
+			}
+			frame = new PartitionProtocol.FrameWriter(PartitionProtocol.RESULT).putLong(request.requestId)
+					.putInt(store.getBookingId(slot)).putLong(store.getTripDuration(slot)).putPerson(driver);
+			break;
+		case SHED:
+			frame = rejected(request, BookingRejectedException.Reason.SHED);
+			break;
+		case CANCELLED:
+			frame = rejected(request, BookingRejectedException.Reason.CANCELLED);
+			break;
+		case TIMED_OUT:
+			frame = rejected(request, BookingRejectedException.Reason.DRIVER_TIMEOUT);
+			break;
+		default:
+			frame = new PartitionProtocol.FrameWriter(PartitionProtocol.FAILED).putLong(request.requestId)
+					.putString("Booking failed in " + request.region);
+			break;
+		}
+		request.connection.send(frame.finish());
+	}
+
+	private static PartitionProtocol.FrameWriter rejected(Pending request, BookingRejectedException.Reason reason)
+	{
+		return new PartitionProtocol.FrameWriter(PartitionProtocol.REJECTED).putLong(request.requestId)
+				.putByte(reason.ordinal()).putString(request.region);
+	}
+
+	@Override
+	protected void closed(Connection connection)
+	{
+		//bookings from a router that has gone still run, their results have nowhere to go
+		pending.values().removeIf(request -> request.connection == connection);
+	}
+
+	/**
+	 * Parses regions given on a command line as name:maxJobs pairs separated by commas, a
+	 * region without a limit gets 50
+	 */
+	static HashMap<String, Integer> parseRegions(String spec)
+	{
+		HashMap<String, Integer> regions = new HashMap<String, Integer>();
+		for (String region : spec.split(",")) {
+			String[] nameAndJobs = region.trim().split(":");
+			regions.put(nameAndJobs[0], nameAndJobs.length > 1 ? Integer.parseInt(nameAndJobs[1]) : 50);
+		}
+		return regions;
+	}
+
+	/**
+	 * Runs a partition until the process is stopped
+	 *
+	 * Arguments: port, regions as name:maxJobs pairs separated by commas, drivers, maxSleep
+	 */
+	public static void main(String[] args) throws Exception
+	{
+		int port = args.length > 0 ? Integer.parseInt(args[0]) : 7001;
+		HashMap<String, Integer> regions = parseRegions(args.length > 1 ? args[1] : "North:50,South:50");
+		int drivers = args.length > 2 ? Integer.parseInt(args[2]) : 50;
+		int maxSleep = args.length > 3 ? Integer.parseInt(args[3]) : 100;
+
+		PartitionServer partition = new PartitionServer(port, regions, 1 << 16);
+		for (int i = 0; i < drivers; i++) {
+			partition.addDriver(new Driver("D-" + Person.getRandomName(), maxSleep));
+		}
+		System.out.println("Partition listening on " + partition.getAddress() + " for " + regions.keySet() + " with " + drivers + " drivers");
+		Thread.currentThread().join();
+	}
+}
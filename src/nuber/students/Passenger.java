@@ -1,15 +1,54 @@
 package nuber.students;
 
+import java.util.SplittableRandom;
+
 public class Passenger extends Person
 {
 	
+	//drawn when the passenger is created, so it doesn't depend on which thread asks for it
+	private final int travelTime;
+	
 	public Passenger(String name, int maxSleep) {
-		super(name, maxSleep);
+		this(name, maxSleep, NuberRandom.split());
+	}
+	
+	/**
+	 * Creates a passenger whose location and trip time are drawn from the given stream
+	 */
+	public Passenger(String name, int maxSleep, SplittableRandom random) {
+		super(name, maxSleep, random);
+		this.travelTime = travelTime(random, maxSleep);
+	}
+	
+	/**
+	 * Creates a passenger waiting to be picked up at the given location
+	 */
+	public Passenger(String name, int maxSleep, double x, double y) {
+		super(name, maxSleep, x, y);
+		this.travelTime = travelTime(NuberRandom.split(), maxSleep);
+	}
+	
+	/**
+	 * Creates a passenger at the given location whose trip takes a known time, such as one 
+	 * sent from another process
+	 */
+	public Passenger(String name, int maxSleep, double x, double y, int travelTime) {
+		super(name, maxSleep, x, y);
+		this.travelTime = travelTime;
 	}
 
+	/**
+	 * @return How long the passenger's trip takes in milliseconds, between 0 and maxSleep. 
+	 * The same every time it is asked for.
+	 */
 	public int getTravelTime()
 	{
-		return (int)(Math.random() * maxSleep);
+		return travelTime;
+	}
+	
+	private static int travelTime(SplittableRandom random, int maxSleep)
+	{
+		return (int)(random.nextDouble() * maxSleep);
 	}
 
 }
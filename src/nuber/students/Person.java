@@ -1,24 +1,95 @@
 package nuber.students;
 
+import java.util.SplittableRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
 public abstract class Person
 {
 	
 	public final static String[] SAMPLE_NAMES = {"Bryan","Olivia","Vincent","Kenneth","Debra","Jack","Harold","Isabella","Jerry","Stephen","Larry","Ruth","Diane","Gerald","Brandon","Virginia","Helen","Gary","Noah","Michell","Alexis","Zachary","Gregory","Arthur","Dennis","Terry","Rose","Jeffrey","Jean","Jane","Brenda","Louis","Mary","Julia","Sandra","Catherine","Adam","Samantha","Amber","Ralp","Jacob","Raymond","Rachel","Kelly","Danielle","John","Melissa","Albert","Brian","Eugne","Jeremy","Nathan","Beverly","Margaret","Natalie","Charlotte","Ann","Betty","Randy","Tyler","Emma","Willie","Charles","Lisa","Anthony","Sara","Sean","James","Johnny","Jud","Evelyn","Theresa","Gloria","Emily","Denise","Frank","Steven","Jacqueline","Diana","Ronald","Kayla","Joe","Nicole","Scott","Henry","Lawrence","Ethan","Stephanie","Kevin","Kathleen","Angela","Joyce","Sarah","Benjamin","Carl","Cynthia","Nicholas","Andrea","Robert","Martha","Susan","Ryan","Alexander","Donna","Thomas","Brittany","Timothy","Hannah","Heather","Linda","Joan","Pamela","Maria","Kyle","Logan","Paul","Andrew","Dylan","Christina","Kimberly","Patricia","Victoria","Philip","Shirley","Billy","Jonathan","Roy","Christopher","Roger","Anna","Richard","Doris","Bruce","Peter","Dorothy","Amanda","Marilyn","Christine","Marie","Karen","Jordan","Wayne","Edward","Justin","Walter","Rebecca","Sharon","Jesse","Joshua","Sophia","Grace","Deborah","Ashley","Joseph","Matthew","Alan","Julie","Abigail","Mark","Megan","Juan","Michael","Frances","George","Eric","William","Cheryl","Daniel","Katherine","Amy","Laura","Donald","Jennifer","Judith","Carolyn","Christian","Janice","Barbara","Elijah","Nancy","Aaron","Teresa","Bobby","Douglas","Russell","Jose","Keith","Kathryn","Samuel","Austin","Jason","Jessica","David","Lauren","Patrick","Gabriel","Alice","Elizabeth","Madison","Carol"};
-	private static int nextNameIndex = 0;
+	//atomic so people can be named from any thread
+	private static final AtomicInteger nextNameIndex = new AtomicInteger(0);
+	
+	/**
+	 * Width and height of the square city everyone is located in
+	 */
+	public final static double CITY_SIZE = 100.0;
+	
+	/**
+	 * The furthest apart two people in the city can be
+	 */
+	public final static double MAX_DISTANCE = CITY_SIZE * Math.sqrt(2);
+	
+	//hands out ids so events can refer to people by number instead of by name
+	private static final AtomicInteger nextId = new AtomicInteger(0);
 	
 	public String name;
 	protected int maxSleep;
 	
+	/**
+	 * Unique number for this person, used in the async event log
+	 */
+	public final int id = nextId.getAndIncrement();
+	
+	//location in the city, volatile since a driver moves while on a booking thread
+	//and is then read by whichever thread indexes it as idle.
+	protected volatile double x;
+	protected volatile double y;
+	
+	/**
+	 * Creates a person at a random location in the city, drawn from a stream split from the 
+	 * run's seed, see NuberRandom
+	 */
 	public Person(String name,int maxSleep) {
+		this(name, maxSleep, NuberRandom.split());
+	}
+	
+	/**
+	 * Creates a person at a location in the city drawn from the given stream
+	 */
+	public Person(String name, int maxSleep, SplittableRandom random) {
+		this(name, maxSleep, random.nextDouble(CITY_SIZE), random.nextDouble(CITY_SIZE));
+	}
+	
+	/**
+	 * Creates a person at the given location, clamped to the city
+	 */
+	public Person(String name, int maxSleep, double x, double y) {
 		this.name = name;
 		this.maxSleep = maxSleep;
+		moveTo(x, y);
+	}
+	
+	public double getX()
+	{
+		return x;
+	}
+	
+	public double getY()
+	{
+		return y;
+	}
+	
+	/**
+	 * Moves the person to the given location, clamped to the city
+	 */
+	public void moveTo(double x, double y)
+	{
+		this.x = Math.min(CITY_SIZE, Math.max(0, x));
+		this.y = Math.min(CITY_SIZE, Math.max(0, y));
+	}
+	
+	/**
+	 * @return The straight line distance between this person and another
+	 */
+	public double distanceTo(Person other)
+	{
+		return Math.hypot(x - other.x, y - other.y);
 	}
 	
 	public static String getRandomName()
 	{
-		nextNameIndex = ++nextNameIndex % SAMPLE_NAMES.length;
-		
-		return SAMPLE_NAMES[nextNameIndex];
+		return SAMPLE_NAMES[Math.floorMod(nextNameIndex.incrementAndGet(), SAMPLE_NAMES.length)];
 	}
 
 }
@@ -0,0 +1,176 @@
+package nuber.students;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sizes each region's concurrency limit from its load, using Little's law.
+ *
+ * A region holding a position for W seconds per booking, with bookings arriving at L per
+ * second, has L x W bookings in progress on average. Every tick the autoscaler measures each
+ * region's arrival rate (bookings accepted) and the time a booking holds its position (from
+ * admitted to arrived, out of the region's latency histograms), smooths both, and sets the
+ * limit to L x W plus headroom for bursts. A region grows as soon as it needs to, but only
+ * shrinks once its limit is more than a tenth, and at least two, too big, so it doesn't flap.
+ *
+ * The time a position is held includes waiting for a driver, so a region short of drivers
+ * grows too. The rebalancer moves drivers to it in the meantime.
+ *
+ * The autoscaler keeps running after dispatch is shutdown, while the regions work through the
+ * bookings they have, and stops once they have drained.
+ *
+ * Turned on with -Dnuber.autoscale.millis, the tick. -Dnuber.autoscale.headroom sets the
+ * headroom (default 1.25) and -Dnuber.autoscale.max the largest limit it will set (default 1024).
+ *
+ * @author james
+ *
+ */
+public class RegionAutoscaler {
+
+	/**
+	 * System property used to set the tick in milliseconds, the autoscaler is off if it isn't set
+	 */
+	public static final String PROPERTY = "nuber.autoscale.millis";
+
+	//weight of the latest tick in the smoothed rates
+	private static final double SMOOTHING = 0.3;
+
+	/**
+	 * What was measured for a region at the last tick
+	 */
+	private static class Sample {
+		long at;
+		long accepted;
+		long finished;
+		long heldNanos;
+		double arrivalsPerSecond = -1;
+		double meanHeldNanos = -1;
+	}
+
+	private final NuberDispatch dispatch;
+	private final double headroom;
+	private final int maxJobs;
+	private final ScheduledExecutorService ticker;
+
+	//only used by the ticker thread
+	private final Map<NuberRegion, Sample> samples = new HashMap<NuberRegion, Sample>();
+
+	/**
+	 * Creates an autoscaler configured from the nuber.autoscale.* system properties
+	 *
+	 * @param dispatch The dispatch whose regions are sized
+	 */
+	public RegionAutoscaler(NuberDispatch dispatch)
+	{
+		this(dispatch, Long.getLong(PROPERTY, 1000), Double.parseDouble(System.getProperty("nuber.autoscale.headroom", "1.25")),
+				Integer.getInteger("nuber.autoscale.max", 1024));
+	}
+
+	/**
+	 * Creates an autoscaler and starts its ticks
+	 *
+	 * @param dispatch The dispatch whose regions are sized
+	 * @param tickMillis Time between resizes in milliseconds
+	 * @param headroom What L x W is multiplied by, at least 1
+	 * @param maxJobs The largest limit to give a region
+	 */
+	public RegionAutoscaler(NuberDispatch dispatch, long tickMillis, double headroom, int maxJobs)
+	{
+		this.dispatch = dispatch;
+		this.headroom = Math.max(1, headroom);
+		this.maxJobs = Math.max(1, maxJobs);
+		this.ticker = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "nuber-region-autoscaler");
+			thread.setDaemon(true);
+			return thread;
+		});
+		//the regions there from the start are measured from now, so bookings made before the
+		//first tick count towards its arrival rate
+		for (NuberRegion region : dispatch.regionRing) {
+			Sample sample = new Sample();
+			sample.at = System.nanoTime();
+			sample.accepted = region.counters.getAccepted();
+			samples.put(region, sample);
+		}
+		long tick = Math.max(1, tickMillis);
+		ticker.scheduleWithFixedDelay(this::tick, tick, tick, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Stops resizing. Regions keep the limits they have.
+	 */
+	public void shutdown()
+	{
+		ticker.shutdown();
+	}
+
+	//an exception would cancel the scheduled ticks, so log it and carry on next tick.
+	private void tick()
+	{
+		try {
+			resize();
+		} catch (RuntimeException e) {
+			System.out.println("Region autoscaling failed: " + e);
+		}
+	}
+
+	/**
+	 * Measures every region and resizes the ones whose limit is off
+	 */
+	protected void resize()
+	{
+		NuberRegion[] regions = dispatch.regionRing;
+		samples.keySet().retainAll(Arrays.asList(regions));
+
+		for (NuberRegion region : regions) {
+			long now = System.nanoTime();
+			long accepted = region.counters.getAccepted();
+			BookingLatencies latencies = region.latencies;
+			long finished = latencies.get(BookingLatencies.Phase.TOTAL).getCount();
+			long heldNanos = latencies.get(BookingLatencies.Phase.DRIVER_WAIT).getTotal()
+					+ latencies.get(BookingLatencies.Phase.PICKUP).getTotal()
+					+ latencies.get(BookingLatencies.Phase.TRIP).getTotal();
+
+			Sample sample = samples.get(region);
+			if (sample == null) {
+				sample = new Sample();
+				samples.put(region, sample);
+			} else if (now > sample.at) {
+				double arrivals = (accepted - sample.accepted) * 1e9 / (now - sample.at);
+				sample.arrivalsPerSecond = smooth(sample.arrivalsPerSecond, arrivals);
+				if (finished > sample.finished) {
+					double held = (double) (heldNanos - sample.heldNanos) / (finished - sample.finished);
+					sample.meanHeldNanos = smooth(sample.meanHeldNanos, held);
+				}
+			}
+			sample.at = now;
+			sample.accepted = accepted;
+			sample.finished = finished;
+			sample.heldNanos = heldNanos;
+
+			if (sample.meanHeldNanos < 0 || sample.arrivalsPerSecond < 0) {
+				continue;
+			}
+			double inProgress = sample.arrivalsPerSecond * sample.meanHeldNanos / 1e9;
+			int target = (int) Math.min(maxJobs, Math.max(1, Math.ceil(inProgress * headroom)));
+			int current = region.getMaxSimultaneousJobs();
+			//a shut down region takes no new bookings, so its arrivals fall away while it still
+			//has a backlog to work through. it is only grown, never shrunk, until it has drained.
+			boolean shrink = !region.isShutdown && current - target > Math.max(1, current / 10);
+			if (target > current || shrink) {
+				region.setMaxSimultaneousJobs(target);
+				System.out.println(String.format("Autoscaled %s from %d to %d (%.1f bookings/s, %.1fms each)",
+						region.regionName, current, target, sample.arrivalsPerSecond, sample.meanHeldNanos / 1e6));
+			}
+		}
+	}
+
+	private static double smooth(double smoothed, double latest)
+	{
+		return smoothed < 0 ? latest : SMOOTHING * latest + (1 - SMOOTHING) * smoothed;
+	}
+}
@@ -0,0 +1,195 @@
+package nuber.students;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Booking counters for one region. 
+ * 
+ * Every booking thread in the region updates these, so they are LongAdders rather than 
+ * synchronized ints: updates from different threads land in different cells and never block.
+ * Reading them sums the cells, which is cheap enough to poll every few milliseconds.
+ * 
+ * @author james
+ *
+ */
+public class RegionCounters {
+
+	private final LongAdder awaitingDriver = new LongAdder();
+	private final LongAdder active = new LongAdder();
+	private final LongAdder completed = new LongAdder();
+	private final LongAdder rejected = new LongAdder();
+	private final LongAdder bookingsIssued = new LongAdder();
+	private final LongAdder queued = new LongAdder();
+	private final LongAdder started = new LongAdder();
+	private final LongAdder queuedNanos = new LongAdder();
+	private final LongAdder stolen = new LongAdder();
+	private final LongAdder rebalancedIn = new LongAdder();
+	private final LongAdder accepted = new LongAdder();
+	private final LongAdder cancelled = new LongAdder();
+	private final LongAdder timedOut = new LongAdder();
+	private final LongAdder missedDeadlines = new LongAdder();
+	private final LongAdder missedPremiumDeadlines = new LongAdder();
+	
+	/**
+	 * A booking was accepted by the region and is waiting for a driver
+	 */
+	public void booked()
+	{
+		awaitingDriver.increment();
+		accepted.increment();
+	}
+	
+	/**
+	 * An accepted booking went into the region's backlog to wait for a position
+	 */
+	public void enqueued()
+	{
+		queued.increment();
+	}
+	
+	/**
+	 * A booking left the backlog and started
+	 * 
+	 * @param nanosQueued How long it waited in the backlog
+	 */
+	public void dequeued(long nanosQueued)
+	{
+		queued.decrement();
+		started.increment();
+		queuedNanos.add(nanosQueued);
+	}
+	
+	/**
+	 * A waiting booking was dropped from the backlog to make room for a newer one
+	 */
+	public void shed()
+	{
+		queued.decrement();
+		awaitingDriver.decrement();
+		rejected.increment();
+	}
+	
+	/**
+	 * A booking waiting in the backlog was cancelled
+	 */
+	public void cancelledQueued()
+	{
+		queued.decrement();
+		awaitingDriver.decrement();
+		cancelled.increment();
+	}
+	
+	/**
+	 * A started booking was cancelled before it got a driver
+	 */
+	public void cancelledWaiting()
+	{
+		awaitingDriver.decrement();
+		cancelled.increment();
+	}
+	
+	/**
+	 * A started booking waited the maximum for a driver without getting one
+	 */
+	public void timedOutWaiting()
+	{
+		awaitingDriver.decrement();
+		timedOut.increment();
+	}
+	
+	/**
+	 * A booking was given a new ID
+	 */
+	public void issued()
+	{
+		bookingsIssued.increment();
+	}
+	
+	/**
+	 * A waiting booking was given a driver and is now active
+	 */
+	public void driverAssigned()
+	{
+		awaitingDriver.decrement();
+		active.increment();
+	}
+	
+	/**
+	 * An active booking delivered its passenger
+	 */
+	public void completed()
+	{
+		active.decrement();
+		completed.increment();
+	}
+	
+	/**
+	 * The region refused a booking
+	 */
+	public void rejected()
+	{
+		rejected.increment();
+	}
+	
+	/**
+	 * A booking's passenger was picked up after the booking's pickup deadline
+	 * 
+	 * @param priority The booking's class of service
+	 */
+	public void missedDeadline(BookingPriority priority)
+	{
+		missedDeadlines.increment();
+		if (priority == BookingPriority.PREMIUM) {
+			missedPremiumDeadlines.increment();
+		}
+	}
+	
+	/**
+	 * A booking in the region took its driver from another region's idle drivers
+	 */
+	public void stole()
+	{
+		stolen.increment();
+	}
+	
+	/**
+	 * The rebalancer moved idle drivers into the region
+	 * 
+	 * @param drivers How many drivers were moved
+	 */
+	public void rebalancedIn(int drivers)
+	{
+		rebalancedIn.add(drivers);
+	}
+	
+	/**
+	 * @return How many bookings the region has accepted, ever
+	 */
+	public long getAccepted()
+	{
+		return accepted.sum();
+	}
+	
+	/**
+	 * @return How many bookings in the region are waiting for a driver, including the backlog
+	 */
+	public long getAwaitingDriver()
+	{
+		return awaitingDriver.sum();
+	}
+	
+	/**
+	 * Reads the counters. Each counter is read on its own, so under load the values
+	 * can be a few bookings apart from each other.
+	 * 
+	 * @param regionName The name to put on the snapshot
+	 * @param idleDrivers How many drivers are idle in the region right now
+	 * @return The current counts
+	 */
+	public DispatchStats.RegionStats snapshot(String regionName, long idleDrivers)
+	{
+		return new DispatchStats.RegionStats(regionName, awaitingDriver.sum(), active.sum(), 
+				completed.sum(), rejected.sum(), bookingsIssued.sum(), queued.sum(), started.sum(), queuedNanos.sum(),
+				idleDrivers, stolen.sum(), rebalancedIn.sum(), cancelled.sum(), timedOut.sum(), missedDeadlines.sum(), missedPremiumDeadlines.sum());
+	}
+}
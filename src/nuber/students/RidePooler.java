@@ -0,0 +1,407 @@
+package nuber.students;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Shares drivers between passengers, for pooled rides at peak times.
+ *
+ * A booking that starts in a region opens a shared ride there and waits up to the batching
+ * window for other bookings to join it. A booking starting later in the same region joins an
+ * open ride if its pickup is within the pooling radius of the ride's first pickup, and if it
+ * isn't due before the window closes. The ride closes when the window is up or its seats are
+ * full, and then asks dispatch for one driver like any booking would.
+ *
+ * The driver collects the passengers nearest first, then drops them off one after another.
+ * Passengers have no destination in the city, only a trip time, so each destination is placed
+ * that trip time away from the last pickup, in a direction fixed by the passenger's id. The 
+ * driver goes to the nearest destination first, then on to the nearest of the rest, each leg
+ * timed from the stop before, so only the first passenger dropped off rides no longer than 
+ * alone. Each booking still waits for its own pickup and arrival, and gets its own 
+ * BookingResult with its own measured duration. The driver goes back to the region once the 
+ * last passenger is dropped off. The stops are timed by dispatch's trip scheduler, no thread
+ * sleeps through them.
+ *
+ * PREMIUM bookings always ride alone, as do bookings due before a ride would close.
+ *
+ * Turned on with -Dnuber.pool.millis, the batching window. A longer window fills more seats
+ * at the cost of that much more latency for the first passenger. -Dnuber.pool.seats sets the
+ * passengers per ride (default 3), -Dnuber.pool.radius how far apart their pickups can be
+ * (default a quarter of the city).
+ *
+ * @author james
+ *
+ */
+public class RidePooler {
+
+	/**
+	 * System property used to set the batching window in milliseconds, pooling is off if it isn't set
+	 */
+	public static final String PROPERTY = "nuber.pool.millis";
+
+	/**
+	 * A passenger's place in a shared ride. Each future is completed once, by the ride.
+	 */
+	static class Seat {
+		final Booking booking;
+		//completed with the ride's driver, or cancelled if the ride never gets one
+		final CompletableFuture<Driver> driver = new CompletableFuture<Driver>();
+		final CompletableFuture<Void> pickedUp = new CompletableFuture<Void>();
+		final CompletableFuture<Void> droppedOff = new CompletableFuture<Void>();
+
+		Seat(Booking booking)
+		{
+			this.booking = booking;
+		}
+
+		/**
+		 * Waits for the ride's driver
+		 *
+		 * @return The driver, or null if the ride was cancelled, or this seat was given up
+		 * because the caller was interrupted or the booking cancelled before the driver arrived
+		 * @throws CompletionException caused by a TimeoutException if the ride waited dispatch's
+		 * maximum for a driver
+		 */
+		Driver awaitDriver()
+		{
+			try {
+				return driver.get();
+			} catch (InterruptedException e) {
+				System.out.println("Interrupted while waiting for a shared ride's driver");
+				if (driver.cancel(false)) {
+					return null;
+				}
+				//the driver was handed over first, so this passenger is on the ride
+				Thread.currentThread().interrupt();
+				return driver.join();
+			} catch (ExecutionException e) {
+				if (e.getCause() instanceof TimeoutException) {
+					throw new CompletionException(e.getCause());
+				}
+				return null;
+			} catch (CancellationException e) {
+				return null;
+			}
+		}
+
+		/**
+		 * Waits for one of the ride's stops
+		 */
+		static void await(CompletableFuture<Void> stop) throws InterruptedException
+		{
+			try {
+				stop.get();
+			} catch (ExecutionException e) {
+				throw new IllegalStateException("Shared ride stop failed", e.getCause());
+			}
+		}
+	}
+
+	/**
+	 * A ride taking passengers, then waiting for or on its way with a driver
+	 */
+	private static class SharedRide {
+		final NuberRegion region;
+		final double x;
+		final double y;
+		final long closesAt;
+		final List<Seat> seats = new ArrayList<Seat>();
+		//set once the ride takes no more passengers, guarded by the pooler
+		boolean closed;
+
+		SharedRide(NuberRegion region, Passenger first, long closesAt)
+		{
+			this.region = region;
+			this.x = first.getX();
+			this.y = first.getY();
+			this.closesAt = closesAt;
+		}
+	}
+
+	private final NuberDispatch dispatch;
+	private final long windowNanos;
+	private final int seatsPerRide;
+	private final double radius;
+
+	//rides still taking passengers, by region
+	private final HashMap<NuberRegion, List<SharedRide>> open = new HashMap<NuberRegion, List<SharedRide>>();
+
+	//for getReport(), all guarded by this
+	private long rides = 0;
+	private long passengers = 0;
+	private long driverMillis = 0;
+	private long soloMillis = 0;
+
+	/**
+	 * Creates a pooler configured from the nuber.pool.* system properties
+	 *
+	 * @param dispatch The dispatch rides get their drivers from
+	 */
+	public RidePooler(NuberDispatch dispatch)
+	{
+		this(dispatch, Long.getLong(PROPERTY, 0), Integer.getInteger("nuber.pool.seats", 3),
+				Double.parseDouble(System.getProperty("nuber.pool.radius", String.valueOf(Person.CITY_SIZE / 4))));
+	}
+
+	/**
+	 * Creates a pooler
+	 *
+	 * @param dispatch The dispatch rides get their drivers from
+	 * @param windowMillis How long a ride waits for more passengers after its first
+	 * @param seatsPerRide The most passengers on one ride
+	 * @param radius How far a pickup can be from the ride's first pickup
+	 */
+	public RidePooler(NuberDispatch dispatch, long windowMillis, int seatsPerRide, double radius)
+	{
+		this.dispatch = dispatch;
+		this.windowNanos = Math.max(0, windowMillis) * 1_000_000;
+		this.seatsPerRide = Math.max(1, seatsPerRide);
+		this.radius = radius;
+	}
+
+	/**
+	 * @return The batching window in milliseconds
+	 */
+	public long getWindowMillis()
+	{
+		return windowNanos / 1_000_000;
+	}
+
+	/**
+	 * Puts a booking on a shared ride in its region, joining an open one it fits or opening a
+	 * new one
+	 *
+	 * @param booking A booking that has started, and doesn't have a driver
+	 * @return The booking's seat, or null if it should ride alone
+	 */
+	Seat join(Booking booking)
+	{
+		if (booking.region == null || booking.priority == BookingPriority.PREMIUM || seatsPerRide < 2) {
+			return null;
+		}
+		long now = System.nanoTime();
+		Seat seat = new Seat(booking);
+		SharedRide full = null;
+		SharedRide opened = null;
+		synchronized (this) {
+			List<SharedRide> rides = open.computeIfAbsent(booking.region, region -> new ArrayList<SharedRide>());
+			SharedRide ride = null;
+			for (SharedRide candidate : rides) {
+				if (booking.dueNanos - candidate.closesAt > 0
+						&& Math.hypot(booking.passenger.getX() - candidate.x, booking.passenger.getY() - candidate.y) <= radius) {
+					ride = candidate;
+					break;
+				}
+			}
+			if (ride == null) {
+				if (booking.dueNanos - (now + windowNanos) <= 0) {
+					return null;
+				}
+				ride = new SharedRide(booking.region, booking.passenger, now + windowNanos);
+				rides.add(ride);
+				opened = ride;
+			}
+			ride.seats.add(seat);
+			if (ride.seats.size() >= seatsPerRide) {
+				ride.closed = true;
+				rides.remove(ride);
+				full = ride;
+			}
+		}
+		if (full != null) {
+			requestDriver(full);
+		} else if (opened != null) {
+			SharedRide closing = opened;
+			dispatch.tripScheduler.schedule(() -> close(closing), windowNanos, TimeUnit.NANOSECONDS);
+		}
+		return seat;
+	}
+
+	//the window is up, unless the ride filled first
+	private void close(SharedRide ride)
+	{
+		synchronized (this) {
+			if (ride.closed) {
+				return;
+			}
+			ride.closed = true;
+			open.get(ride.region).remove(ride);
+		}
+		requestDriver(ride);
+	}
+
+	//asks for the driver in the name of the ride's earliest due passenger
+	private void requestDriver(SharedRide ride)
+	{
+		Seat first = ride.seats.get(0);
+		for (Seat seat : ride.seats) {
+			if (seat.booking.dueNanos - first.booking.dueNanos < 0) {
+				first = seat;
+			}
+		}
+		dispatch.getDriverAsync(first.booking.passenger, ride.region, first.booking.priority, first.booking.dueNanos)
+			.whenComplete((driver, error) -> {
+				if (error instanceof TimeoutException) {
+					//every passenger on the ride waited the maximum
+					for (Seat seat : ride.seats) {
+						seat.driver.completeExceptionally(error);
+					}
+					return;
+				}
+				if (error != null) {
+					for (Seat seat : ride.seats) {
+						seat.driver.cancel(false);
+					}
+					return;
+				}
+				drive(ride, driver);
+			});
+	}
+
+	//hands the driver to every passenger still waiting, and times the stops
+	private void drive(SharedRide ride, Driver driver)
+	{
+		List<Seat> riding = new ArrayList<Seat>();
+		for (Seat seat : ride.seats) {
+			//a passenger who gave up waiting refuses the driver
+			if (seat.driver.complete(driver)) {
+				riding.add(seat);
+			}
+		}
+		if (riding.isEmpty()) {
+			dispatch.addDriver(driver, ride.region);
+			return;
+		}
+
+		//what the same trips would take the driver one at a time, from where it is now
+		long solo = 0;
+		for (Seat seat : riding) {
+			solo += driver.pickUpTime(seat.booking.passenger) + seat.booking.passenger.getTravelTime();
+		}
+
+		long at = 0;
+		//pickups nearest first
+		List<Seat> waiting = new ArrayList<Seat>(riding);
+		while (!waiting.isEmpty()) {
+			Seat nearest = waiting.get(0);
+			for (Seat seat : waiting) {
+				if (driver.distanceTo(seat.booking.passenger) < driver.distanceTo(nearest.booking.passenger)) {
+					nearest = seat;
+				}
+			}
+			waiting.remove(nearest);
+			int leg = driver.pickUpTime(nearest.booking.passenger);
+			at += leg;
+			driver.moveTo(nearest.booking.passenger.getX(), nearest.booking.passenger.getY());
+			schedule(nearest.pickedUp, at, null, null);
+		}
+
+		//drop offs nearest next, each leg from the stop before. the driver is free after the last.
+		List<Seat> aboard = new ArrayList<Seat>(riding);
+		double fromX = 0;
+		double fromY = 0;
+		while (!aboard.isEmpty()) {
+			Seat next = aboard.get(0);
+			for (Seat seat : aboard) {
+				if (leg(fromX, fromY, seat) < leg(fromX, fromY, next)) {
+					next = seat;
+				}
+			}
+			aboard.remove(next);
+			at += Math.round(leg(fromX, fromY, next));
+			fromX = destinationX(next);
+			fromY = destinationY(next);
+			schedule(next.droppedOff, at, aboard.isEmpty() ? driver : null, ride.region);
+		}
+
+		synchronized (this) {
+			rides++;
+			passengers += riding.size();
+			driverMillis += at;
+			soloMillis += solo;
+		}
+	}
+
+	//a passenger's destination, in milliseconds of driving from the last pickup
+	private static double destinationX(Seat seat)
+	{
+		return seat.booking.passenger.getTravelTime() * Math.cos(direction(seat));
+	}
+
+	private static double destinationY(Seat seat)
+	{
+		return seat.booking.passenger.getTravelTime() * Math.sin(direction(seat));
+	}
+
+	//spread evenly around the circle by the golden ratio, the same for a passenger every time
+	private static double direction(Seat seat)
+	{
+		double turns = seat.booking.passenger.id * 0.6180339887498949;
+		return 2 * Math.PI * (turns - Math.floor(turns));
+	}
+
+	//milliseconds from a point to a passenger's destination
+	private static double leg(double fromX, double fromY, Seat seat)
+	{
+		return Math.hypot(destinationX(seat) - fromX, destinationY(seat) - fromY);
+	}
+
+	//completes a stop after the given delay, returning the driver to the region first if given one
+	private void schedule(CompletableFuture<Void> stop, long delayMillis, Driver free, NuberRegion region)
+	{
+		dispatch.tripScheduler.schedule(() -> {
+			if (free != null) {
+				dispatch.addDriver(free, region);
+			}
+			stop.complete(null);
+		}, delayMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Cancels the rides still taking passengers, so their bookings stop waiting. Rides already
+	 * waiting for a driver are cancelled with dispatch's driver waiters.
+	 *
+	 * @return How many bookings were cancelled
+	 */
+	int cancelOpenRides()
+	{
+		List<SharedRide> cancelled = new ArrayList<SharedRide>();
+		synchronized (this) {
+			for (List<SharedRide> rides : open.values()) {
+				for (SharedRide ride : rides) {
+					ride.closed = true;
+					cancelled.add(ride);
+				}
+				rides.clear();
+			}
+		}
+		int count = 0;
+		for (SharedRide ride : cancelled) {
+			for (Seat seat : ride.seats) {
+				if (seat.driver.cancel(false)) {
+					count++;
+				}
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * @return A one line summary of the shared rides so far, and the driver time they took
+	 * compared to the driver making each trip alone from where it was when the ride began
+	 */
+	public synchronized String getReport()
+	{
+		double perRide = rides == 0 ? 0 : passengers / (double) rides;
+		double saved = soloMillis == 0 ? 0 : 100.0 * (soloMillis - driverMillis) / soloMillis;
+		return String.format("Pooled rides with a %dms window: %d rides, %d passengers (%.2f per ride), driver time %dms vs %dms alone (%.1f%% less)",
+				getWindowMillis(), rides, passengers, perRide, driverMillis, soloMillis, saved);
+	}
+}
@@ -0,0 +1,468 @@
+package nuber.students;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * One thread running a NIO selector over non-blocking channels, for the partitions, the
+ * partition router and the booking server.
+ *
+ * The selector thread does every read and write. Any thread can send a frame: it is queued on
+ * the connection and the selector thread is woken to write it, so booking threads never block
+ * on a socket. Frames read are handed to frame() on the selector thread, which must not keep
+ * the payload buffer after it returns.
+ *
+ * A connection is binary, length-prefixed frames, unless its first byte is printable and the
+ * owner accepts text. Frames are never a megabyte, so a binary connection always starts with
+ * a zero byte. A text connection is read as lines, handed to line().
+ *
+ * An owner can cap how much is queued to write on a connection, see maxQueuedBytes(). Past the
+ * cap the connection isn't read until the other side has taken half of it, so a client sending
+ * requests without reading the replies is held back instead of the replies piling up here.
+ *
+ * @author james
+ *
+ */
+abstract class SelectorLoop {
+
+	/**
+	 * A connection to the other side, with its half-read frame and queue of frames to write
+	 */
+	static class Connection {
+		final SocketChannel channel;
+		final InetSocketAddress address;
+		private final SelectorLoop owner;
+		private SelectionKey key;
+		//small to start with so thousands of connections are cheap, grown for bigger frames
+		private ByteBuffer in = ByteBuffer.allocate(4 * 1024);
+		//BINARY or TEXT once the first byte has been read, selector thread only
+		private int mode = UNKNOWN;
+		//whatever the owner keeps for the connection
+		volatile Object context;
+		private final Queue<ByteBuffer> out = new ConcurrentLinkedQueue<ByteBuffer>();
+		//bytes in out not yet written
+		private final AtomicLong queuedBytes = new AtomicLong();
+		//set while too much is queued to write, selector thread only
+		private boolean readPaused;
+		//set while the selector thread has been asked to write, so a burst of sends wakes it once
+		private final AtomicBoolean writing = new AtomicBoolean();
+		private volatile boolean connected;
+		private volatile boolean closed;
+
+		Connection(SelectorLoop owner, SocketChannel channel, InetSocketAddress address)
+		{
+			this.owner = owner;
+			this.channel = channel;
+			this.address = address;
+		}
+
+		/**
+		 * Queues a frame to be written, from any thread
+		 *
+		 * @return False if the connection has closed, the frame is dropped
+		 */
+		boolean send(ByteBuffer frame)
+		{
+			if (closed) {
+				return false;
+			}
+			queuedBytes.addAndGet(frame.remaining());
+			out.add(frame);
+			if (connected && writing.compareAndSet(false, true)) {
+				owner.wantWrite(this);
+			}
+			return !closed;
+		}
+
+		boolean isClosed()
+		{
+			return closed;
+		}
+
+		//selector thread only from here on
+
+		private int interestOps(boolean write)
+		{
+			return (readPaused ? 0 : SelectionKey.OP_READ) | (write ? SelectionKey.OP_WRITE : 0);
+		}
+
+		private void connected()
+		{
+			connected = true;
+			key.interestOps(interestOps(false));
+			if (!out.isEmpty() && writing.compareAndSet(false, true)) {
+				key.interestOps(interestOps(true));
+			}
+		}
+
+		private void flush() throws IOException
+		{
+			ByteBuffer frame;
+			while ((frame = out.peek()) != null) {
+				queuedBytes.addAndGet(-channel.write(frame));
+				resumeIfCaughtUp();
+				if (frame.hasRemaining()) {
+					//the socket buffer is full, carry on when it's writable again
+					key.interestOps(interestOps(true));
+					return;
+				}
+				out.poll();
+			}
+			resumeIfCaughtUp();
+			key.interestOps(interestOps(false));
+			writing.set(false);
+			//a frame queued after the last peek found nothing would otherwise wait for the next send
+			if (!out.isEmpty() && writing.compareAndSet(false, true)) {
+				key.interestOps(interestOps(true));
+			}
+		}
+
+		private void resumeIfCaughtUp()
+		{
+			if (readPaused && queuedBytes.get() <= owner.maxQueuedBytes() / 2) {
+				readPaused = false;
+			}
+		}
+
+		//stops reading while the other side isn't taking what is written to it
+		private void pauseIfBehind()
+		{
+			if (!readPaused && queuedBytes.get() > owner.maxQueuedBytes()) {
+				readPaused = true;
+				//whatever is queued has been asked to be written, so keep writing
+				key.interestOps(interestOps(true));
+			}
+		}
+
+		//reads what has arrived and hands over every complete frame. false once the other side closed.
+		private boolean read() throws IOException
+		{
+			if (channel.read(in) < 0) {
+				return false;
+			}
+			if (mode == UNKNOWN && in.position() > 0) {
+				mode = in.get(0) == 0 || !owner.acceptsText() ? BINARY : TEXT;
+			}
+			in.flip();
+			if (mode == TEXT) {
+				readLines();
+			}
+			while (mode == BINARY && in.remaining() >= PartitionProtocol.HEADER_BYTES) {
+				int at = in.position();
+				int length = in.getInt(at);
+				if (length < 1 || length > PartitionProtocol.MAX_FRAME_BYTES) {
+					throw new IOException("Bad frame length " + length + " from " + address);
+				}
+				if (in.remaining() < PartitionProtocol.HEADER_BYTES + length) {
+					break;
+				}
+				byte type = in.get(at + PartitionProtocol.HEADER_BYTES);
+				ByteBuffer payload = in.slice(at + PartitionProtocol.HEADER_BYTES + 1, length - 1);
+				in.position(at + PartitionProtocol.HEADER_BYTES + length);
+				owner.frame(this, type, payload);
+			}
+			in.compact();
+			if (!in.hasRemaining()) {
+				//a frame bigger than the buffer, make room for all of it
+				ByteBuffer grown = ByteBuffer.allocate(Math.min(in.capacity() * 2, PartitionProtocol.MAX_FRAME_BYTES + PartitionProtocol.HEADER_BYTES));
+				in.flip();
+				grown.put(in);
+				in = grown;
+			}
+			return true;
+		}
+
+		private void readLines() throws IOException
+		{
+			int start = in.position();
+			for (int at = start; at < in.limit(); at++) {
+				if (in.get(at) == '\n') {
+					int end = at > start && in.get(at - 1) == '\r' ? at - 1 : at;
+					byte[] line = new byte[end - start];
+					in.get(start, line);
+					owner.line(this, new String(line, StandardCharsets.UTF_8));
+					start = at + 1;
+				}
+			}
+			in.position(start);
+			if (in.remaining() >= MAX_LINE_BYTES) {
+				throw new IOException("Line longer than " + MAX_LINE_BYTES + " bytes from " + address);
+			}
+		}
+
+		private void close()
+		{
+			closed = true;
+			out.clear();
+			try {
+				channel.close();
+			} catch (IOException e) {
+				//closing anyway
+			}
+		}
+	}
+
+	private static final int UNKNOWN = 0;
+	private static final int BINARY = 1;
+	private static final int TEXT = 2;
+	private static final int MAX_LINE_BYTES = 8 * 1024;
+	//how long a listener that couldn't accept waits before trying again
+	private static final long LISTENER_PAUSE_MILLIS = 100;
+
+	protected final Selector selector;
+	private final Thread thread;
+	private final Queue<Connection> wantWrite = new ConcurrentLinkedQueue<Connection>();
+	private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+	//listeners not accepting until the next select, selector thread only
+	private final List<SelectionKey> pausedListeners = new ArrayList<SelectionKey>();
+	private volatile boolean stopped = false;
+
+	protected SelectorLoop(String threadName) throws IOException
+	{
+		this.selector = Selector.open();
+		this.thread = new Thread(this::run, threadName);
+	}
+
+	protected void start()
+	{
+		thread.start();
+	}
+
+	/**
+	 * Handles a frame read from a connection, on the selector thread
+	 */
+	protected abstract void frame(Connection connection, byte type, ByteBuffer payload) throws IOException;
+
+	/**
+	 * @return Whether connections can be text, false by default
+	 */
+	protected boolean acceptsText()
+	{
+		return false;
+	}
+
+	/**
+	 * @return The most bytes queued to write on a connection before it stops being read, no 
+	 * limit by default. Connections between processes that both pause would stop each other.
+	 */
+	protected long maxQueuedBytes()
+	{
+		return Long.MAX_VALUE;
+	}
+
+	/**
+	 * Handles a line read from a text connection, without its line ending, on the selector thread
+	 */
+	protected void line(Connection connection, String line) throws IOException
+	{
+		throw new IOException("Text isn't accepted from " + connection.address);
+	}
+
+	/**
+	 * Told when a connection closes or fails, on the selector thread
+	 */
+	protected abstract void closed(Connection connection);
+
+	/**
+	 * Listens for connections, which are read like any other
+	 *
+	 * @return The address it is listening on
+	 */
+	protected InetSocketAddress listen(InetSocketAddress address) throws IOException
+	{
+		ServerSocketChannel server = ServerSocketChannel.open();
+		//a deep accept queue, so thousands of clients connecting at once aren't made to retry
+		server.bind(address, 4096);
+		server.configureBlocking(false);
+		runOnSelector(() -> {
+			try {
+				server.register(selector, SelectionKey.OP_ACCEPT);
+			} catch (IOException e) {
+				System.out.println("Partition listener failed: " + e);
+			}
+		});
+		return (InetSocketAddress) server.getLocalAddress();
+	}
+
+	/**
+	 * Starts connecting to an address. Frames can be sent straight away, they are written
+	 * once the connection is made.
+	 */
+	protected Connection connect(InetSocketAddress address) throws IOException
+	{
+		SocketChannel channel = SocketChannel.open();
+		channel.configureBlocking(false);
+		channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+		Connection connection = new Connection(this, channel, address);
+		boolean done = channel.connect(address);
+		runOnSelector(() -> {
+			try {
+				connection.key = channel.register(selector, done ? SelectionKey.OP_READ : SelectionKey.OP_CONNECT, connection);
+				if (done) {
+					connection.connected();
+				}
+			} catch (IOException e) {
+				fail(connection, e);
+			}
+		});
+		return connection;
+	}
+
+	/**
+	 * Runs a task on the selector thread
+	 */
+	protected void runOnSelector(Runnable task)
+	{
+		tasks.add(task);
+		selector.wakeup();
+	}
+
+	private void wantWrite(Connection connection)
+	{
+		wantWrite.add(connection);
+		selector.wakeup();
+	}
+
+	/**
+	 * Stops the selector thread and closes every channel
+	 */
+	public void close()
+	{
+		stopped = true;
+		selector.wakeup();
+	}
+
+	private void run()
+	{
+		try {
+			while (!stopped) {
+				selector.select(pausedListeners.isEmpty() ? 0 : LISTENER_PAUSE_MILLIS);
+				for (SelectionKey listener : pausedListeners) {
+					if (listener.isValid()) {
+						listener.interestOps(SelectionKey.OP_ACCEPT);
+					}
+				}
+				pausedListeners.clear();
+				Runnable task;
+				while ((task = tasks.poll()) != null) {
+					task.run();
+				}
+				Connection writer;
+				while ((writer = wantWrite.poll()) != null) {
+					if (writer.key != null && writer.key.isValid()) {
+						writer.key.interestOps(writer.interestOps(true));
+					}
+				}
+				Iterator<SelectionKey> ready = selector.selectedKeys().iterator();
+				while (ready.hasNext()) {
+					SelectionKey key = ready.next();
+					ready.remove();
+					if (key.isValid() && key.isAcceptable()) {
+						accept(key);
+						continue;
+					}
+					Connection connection = (Connection) key.attachment();
+					try {
+						if (key.isValid() && key.isConnectable()) {
+							connection.channel.finishConnect();
+							connection.connected();
+						}
+						if (key.isValid() && key.isReadable()) {
+							if (!connection.read()) {
+								fail(connection, null);
+								continue;
+							}
+							connection.pauseIfBehind();
+						}
+						if (key.isValid() && key.isWritable()) {
+							connection.flush();
+						}
+					} catch (IOException | RuntimeException e) {
+						fail(connection, e);
+					}
+				}
+			}
+		} catch (IOException | ClosedSelectorException e) {
+			System.out.println("Partition selector failed: " + e);
+		} finally {
+			for (SelectionKey key : selector.keys()) {
+				if (key.attachment() instanceof Connection) {
+					fail((Connection) key.attachment(), null);
+				} else {
+					try {
+						key.channel().close();
+					} catch (IOException e) {
+						//closing anyway
+					}
+				}
+			}
+			try {
+				selector.close();
+			} catch (IOException e) {
+				//closing anyway
+			}
+		}
+	}
+
+	//a connection that can't be accepted, say out of file descriptors or reset before it was
+	//set up, is logged and dropped. the listener and every other connection carry on. a
+	//listener that can't accept at all stops listening for a moment, as it would only fail again.
+	private void accept(SelectionKey key)
+	{
+		ServerSocketChannel server = (ServerSocketChannel) key.channel();
+		SocketChannel channel = null;
+		try {
+			try {
+				channel = server.accept();
+			} catch (IOException e) {
+				key.interestOps(0);
+				pausedListeners.add(key);
+				throw e;
+			}
+			if (channel == null) {
+				return;
+			}
+			channel.configureBlocking(false);
+			channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+			Connection connection = new Connection(this, channel, (InetSocketAddress) channel.getRemoteAddress());
+			connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+			connection.connected();
+		} catch (IOException e) {
+			System.out.println("Partition listener couldn't accept a connection: " + e);
+			if (channel != null) {
+				try {
+					channel.close();
+				} catch (IOException closing) {
+					//closing anyway
+				}
+			}
+		}
+	}
+
+	private void fail(Connection connection, Exception cause)
+	{
+		if (connection.closed) {
+			return;
+		}
+		if (cause != null) {
+			System.out.println("Partition connection to " + connection.address + " failed: " + cause);
+		}
+		connection.close();
+		closed(connection);
+	}
+}
@@ -1,14 +1,16 @@
 package nuber.students;
 
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.HashMap;
-import java.util.Iterator;
-import java.util.LinkedList;
-import java.util.Queue;
-import java.util.Random;
-import java.util.PrimitiveIterator.OfDouble;
-import java.util.concurrent.ArrayBlockingQueue;
+import java.util.SplittableRandom;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Flow;
 import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 
 public class Simulation {
 
@@ -18,25 +20,52 @@ public class Simulation {
 	 * @param maxDrivers The number of drivers to create
 	 * @param maxPassengers The number of passengers to create
 	 * @param maxSleep The maximum amount a thread will sleep (in millseconds)) to simulate driving to, or dropping off a passenger
-	 * @param logEvents Whether to log booking events to the console
+	 * @param logEvents Whether to log booking events to the console. People, trips and regions 
+	 * are drawn from the run's seed, see NuberRandom, so the same seed gives the same workload.
 	 * @throws Exception
 	 */
 	public Simulation(HashMap<String, Integer> regions, int maxDrivers, int maxPassengers, int maxSleep, boolean logEvents) throws Exception {
+		this(regions, maxDrivers, maxPassengers, maxSleep, logEvents, maxPassengers, 0);
+	}
+	
+	/**
+	 * Runs the simulation with passengers booked in bursts instead of all at once. The regions
+	 * take turns: each burst sends burstSize bookings to one region, spread evenly over
+	 * burstMillis, then the next region has its burst, round and round until every passenger
+	 * is booked. The first burst starts on a multiple of one round, so with a demand forecast
+	 * whose day is one round (-Dnuber.forecast.bucket.millis times -Dnuber.forecast.buckets)
+	 * each region's bursts fall in the same buckets every round.
+	 * 
+	 * @param burstSize The bookings in each burst
+	 * @param burstMillis How long each burst lasts, 0 books everyone at once
+	 */
+	public Simulation(HashMap<String, Integer> regions, int maxDrivers, int maxPassengers, int maxSleep, boolean logEvents, 
+			int burstSize, long burstMillis) throws Exception {
 		
 		//store the current time
 		long start = new Date().getTime();
 		
+		//reset the peak thread count so fixed and virtual execution can be compared per run
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		threads.resetPeakThreadCount();
+		
 		//print some space in the console
 		System.out.println("\n\n\n");
 
-		//store a queue of all current bookings as Future's that will eventually give us back a BookingResult object
-		Queue<Future<BookingResult>> bookings = new LinkedList<Future<BookingResult>>();
-
-		//convert the region names from the regions map into an array
+		//convert the region names from the regions map into an array, sorted so the seed picks
+		//the same regions whatever order the map iterates in
 		String[] regionNames = regions.keySet().toArray(new String[0]);
+		Arrays.sort(regionNames);
+		SplittableRandom random = NuberRandom.split();
+		System.out.println("Seed: " + NuberRandom.getSeed());
 
 		//create a new dispatch object
 		NuberDispatch dispatch = new NuberDispatch(regions, logEvents);
+		
+		//count results as dispatch pushes them to us, instead of polling a Future per booking
+		ResultCounter results = new ResultCounter();
+		dispatch.getCompletions().subscribe(results);
+		long booked = 0;
 
 		// create drivers that are available for jobs
 		for (int i = 0; i < maxDrivers; i++) {
@@ -44,20 +73,37 @@ public class Simulation {
 			dispatch.addDriver(d);
 		}
 
+		//bursts start on a round's boundary, so they line up with the forecast's day
+		long roundMillis = burstMillis * regionNames.length;
+		long firstBurst = System.currentTimeMillis();
+		if (burstMillis > 0) {
+			firstBurst += roundMillis - firstBurst % roundMillis;
+		}
+		
 		// create passengers
 		for (int i = 0; i < maxPassengers; i++) {
 			
 			Passenger p = new Passenger("P-" + Person.getRandomName(), maxSleep);
 			
-			//choose a random region to assign this person
-			String randomRegion = regionNames[new Random().nextInt(regionNames.length)];
+			//choose a random region to assign this person, or the region whose burst it is
+			String randomRegion;
+			if (burstMillis > 0) {
+				int burst = i / burstSize;
+				long sendAt = firstBurst + burst * burstMillis + (i % burstSize) * burstMillis / burstSize;
+				long wait = sendAt - System.currentTimeMillis();
+				if (wait > 0) {
+					Thread.sleep(wait);
+				}
+				randomRegion = regionNames[burst % regionNames.length];
+			} else {
+				randomRegion = regionNames[random.nextInt(regionNames.length)];
+			}
 			
 			//add each passenger to dispatch to book their travel for a random region
 			Future<BookingResult> f = dispatch.bookPassenger(p, randomRegion);
 			if (f != null)
 			{
-				//store the future to our list
-				bookings.add(f);
+				booked++;
 			}
 		}
 
@@ -65,37 +111,90 @@ public class Simulation {
 		dispatch.shutdown();
 		
 		//check that dispatch won't let us book passengers after we've told it to shutdown
-		if (dispatch.bookPassenger(new Passenger("Test", maxSleep), regionNames[new Random().nextInt(regionNames.length)]) != null)
+		if (dispatch.bookPassenger(new Passenger("Test", maxSleep), regionNames[random.nextInt(regionNames.length)]) != null)
 		{
 			throw new Exception("Dispatch bookPassenger() should return null if passenger requests booking after dispatch has started the shutdown");
 		}
 
-		//whilst there are still active bookings, print out an update every 1s
-		while (bookings.size() > 0) {
-			
-			//go through each booking, and if it's done, remove it from our active bookings list
-			Iterator<Future<BookingResult>> i = bookings.iterator();
-			while (i.hasNext()) {
-				Future<BookingResult> f = i.next();
-
-				if (f.isDone()) {
-					i.remove();
-				}
-			}
-
-			//print status update
-			System.out.println("Active bookings: " + bookings.size()+", pending: "+dispatch.getBookingsAwaitingDriver());
-
-			//sleep for 1s and then print out the current bookings
-			try {
-				Thread.sleep(1000);
-			} catch (InterruptedException e) {
-				e.printStackTrace();
-			}
+		//whilst there are still active bookings, print out an update every 1s. dispatch completes
+		//the stream once every region has finished its bookings.
+		while (!results.done.await(1, TimeUnit.SECONDS)) {
+			System.out.println("Active bookings: " + (booked - results.received.sum()) + ", pending: " + dispatch.getBookingsAwaitingDriver());
 		}
 
+		//make sure every booking event has been written before reporting
+		dispatch.closeEventLog();
+		dispatch.closeJournal();
+		
 		//print out the final information for the simulation run
 		long totalTime = new Date().getTime() - start;
 		System.out.println("Simulation complete in "+totalTime+"ms");
+		System.out.println(dispatch.getStats());
+		System.out.println(dispatch.getLatencyReport());
+		if (dispatch.getBatchMatchingReport() != null) {
+			System.out.println(dispatch.getBatchMatchingReport());
+		}
+		if (dispatch.getRidePoolingReport() != null) {
+			System.out.println(dispatch.getRidePoolingReport());
+		}
+		if (dispatch.getForecastReport() != null) {
+			System.out.println(dispatch.getForecastReport());
+		}
+		Runtime runtime = Runtime.getRuntime();
+		long usedHeapMb = (runtime.totalMemory() - runtime.freeMemory()) / (1024 * 1024);
+		System.out.println("Peak threads: " + threads.getPeakThreadCount() + ", heap used: " + usedHeapMb + "MB, "
+				+ (maxPassengers * 1000L / Math.max(1, totalTime)) + " bookings/s");
+	}
+	
+	/**
+	 * Runs a bursty simulation over North and South, 200 slots each
+	 * 
+	 * Arguments: drivers, passengers, maxSleep, burst size, burst millis. A burst millis of 0
+	 * books everyone at once.
+	 */
+	public static void main(String[] args) throws Exception {
+		int drivers = args.length > 0 ? Integer.parseInt(args[0]) : 12;
+		int passengers = args.length > 1 ? Integer.parseInt(args[1]) : 640;
+		int maxSleep = args.length > 2 ? Integer.parseInt(args[2]) : 200;
+		int burstSize = args.length > 3 ? Integer.parseInt(args[3]) : 40;
+		long burstMillis = args.length > 4 ? Long.parseLong(args[4]) : 1000;
+		
+		HashMap<String, Integer> regions = new HashMap<String, Integer>();
+		regions.put("North", 200);
+		regions.put("South", 200);
+		new Simulation(regions, drivers, passengers, maxSleep, false, burstSize, burstMillis);
+	}
+	
+	/**
+	 * Counts booking results as they arrive, and notes when there will be no more
+	 */
+	private static class ResultCounter implements Flow.Subscriber<BookingResult> {
+		final LongAdder received = new LongAdder();
+		final CountDownLatch done = new CountDownLatch(1);
+		
+		@Override
+		public void onSubscribe(Flow.Subscription subscription)
+		{
+			subscription.request(Long.MAX_VALUE);
+		}
+		
+		@Override
+		public void onNext(BookingResult result)
+		{
+			received.increment();
+		}
+		
+		@Override
+		public void onError(Throwable error)
+		{
+			System.out.println("Booking results failed: " + error);
+			done.countDown();
+		}
+		
+		@Override
+		public void onComplete()
+		{
+			done.countDown();
+		}
 	}
 }